@@ -1,18 +1,23 @@
 package com.iisc.csa.pods.projects.bookingdatabase;
 
 
+import com.iisc.csa.pods.projects.bookingdatabase.procedure.BookingProcedures;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.boot.web.servlet.support.SpringBootServletInitializer;
 import org.springframework.context.annotation.Bean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.h2.tools.Server;
 
 import java.sql.SQLException;
 
 
 @SpringBootApplication
+@EnableScheduling
 public class BookingDatabaseApplication extends SpringBootServletInitializer {
 
     public static void main(String[] args) {
@@ -26,11 +31,22 @@ public class BookingDatabaseApplication extends SpringBootServletInitializer {
         return application.sources(BookingDatabaseApplication.class);
     }
     /**
-     * Method to start H2 server on 8084 port for Booking Service to connect to.
+     * Register the stored functions of BookingProcedures, called by Booking Service over the H2 server.
+     */
+    @Bean
+    public InitializingBean bookingProcedures(JdbcTemplate jdbcTemplate) {
+        return () -> jdbcTemplate.execute("CREATE ALIAS IF NOT EXISTS "+BookingProcedures.BOOK_SEATS+
+                " FOR \""+BookingProcedures.BOOK_SEATS_METHOD+"\"");
+    }
+
+    /**
+     * Method to start H2 server on 8084 port, or BOOKING_DB_TCP_PORT if set, for Booking Service to connect to.
+     * Shards running on the same host are given distinct ports.
      */
     private static void startH2Server() {
+        String tcpPort = System.getenv().getOrDefault("BOOKING_DB_TCP_PORT", "8084");
         try {
-            Server h2Server = Server.createTcpServer("-tcp", "-tcpAllowOthers", "-tcpPort", "8084").start();
+            Server h2Server = Server.createTcpServer("-tcp", "-tcpAllowOthers", "-tcpPort", tcpPort).start();
             if (h2Server.isRunning(true)) {
                 System.out.println("H2 server was started and is running.");
             } else {
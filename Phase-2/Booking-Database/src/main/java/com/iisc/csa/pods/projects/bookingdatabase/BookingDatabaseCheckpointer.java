@@ -0,0 +1,31 @@
+/**
+ * Periodic checkpoint of the file-backed booking database
+ */
+package com.iisc.csa.pods.projects.bookingdatabase;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * In durable mode, changes are written to the database file within <i>booking.db.write-delay-ms</i> of their
+ * commit. Every <i>booking.db.checkpoint-interval-ms</i>, a checkpoint additionally flushes the file to disk,
+ * which bounds the changes lost on a crash of the host.
+ */
+@Component
+@Profile("durable")
+public class BookingDatabaseCheckpointer {
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Scheduled(fixedDelayString = "${booking.db.checkpoint-interval-ms:10000}")
+    public void checkpoint() {
+        try {
+            jdbcTemplate.execute("CHECKPOINT SYNC");
+        } catch (RuntimeException e) {
+            System.out.println("checkpoint: Exception "+e);
+        }
+    }
+}
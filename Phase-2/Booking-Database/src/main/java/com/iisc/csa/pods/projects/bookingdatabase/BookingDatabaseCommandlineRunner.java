@@ -3,25 +3,40 @@
  */
 package com.iisc.csa.pods.projects.bookingdatabase;
 
-import com.iisc.csa.pods.projects.bookingdatabase.model.Show;
-import com.iisc.csa.pods.projects.bookingdatabase.model.Theatre;
+import com.iisc.csa.pods.projects.bookingdatabase.loader.CatalogLoader;
 import com.iisc.csa.pods.projects.bookingdatabase.repository.ShowRepository;
 import com.iisc.csa.pods.projects.bookingdatabase.repository.TheatreRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
-import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.sql.SQLException;
+import java.util.List;
 
 @Component
 public class BookingDatabaseCommandlineRunner implements CommandLineRunner {
     // Resource loader instance to access theatres.csv and shows.csv
     @Autowired
     private ResourceLoader resourceLoader;
+    // Bulk loader of CSV files
+    @Autowired
+    private CatalogLoader catalogLoader;
+    // Locations of the CSV files; a file on disk may be given in place of the packaged ones
+    @Value("${catalog.load.theatres:classpath:static/theatres.csv}")
+    private String theatresCsv;
+    @Value("${catalog.load.shows:classpath:static/shows.csv}")
+    private String showsCsv;
+    // Shard of this instance, and JDBC access for setting up its id range
+    @Value("${booking.db.shard-count:1}")
+    private int shardCount;
+    @Value("${booking.db.shard-index:0}")
+    private int shardIndex;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
     // Repository instance for Theatre and Shows entities
     private final TheatreRepository theatreRepo;
     private final ShowRepository showRepo;
@@ -34,81 +49,89 @@ public class BookingDatabaseCommandlineRunner implements CommandLineRunner {
 
     @Override
     public void run (String... args) throws Exception {
+        CheckShardIdRange();
+        // In durable mode, the catalog loaded by a previous run is kept along with the bookings
+        if (this.theatreRepo.count() > 0 && this.showRepo.count() > 0) {
+            System.out.println("Catalog already present, skipping DB initialization.");
+            return;
+        }
         System.out.println("Running DB initialization.");
         PopulateTheatreTable();
         PopulateShowsTable();
+        AssignShardIdRange();
     }
 
 
     /**
-     * Constants to handle CSV indices/columns of Theatres.csv file
+     * Columns of Theatre table, in the order of the fields of theatres.csv
      */
-    private final Integer THEATRE_CSV_IDX_ID = 0;
-    private final Integer THEATRE_CSV_IDX_NAME = 1;
-    private final Integer THEATRE_CSV_IDX_LOCATION = 2;
+    private static final String[] THEATRE_CSV_COLUMNS = {"id", "name", "location"};
+    private static final boolean[] THEATRE_CSV_NUMERIC = {true, false, false};
 
     /**
      * Method to populate Theatre Entity from theatres.csv.
-     *
-     * @throws IOException
      */
-    private void PopulateTheatreTable() throws IOException {
-        final Resource theatresFileResource = resourceLoader.getResource("classpath:static/theatres.csv");
-        try {
-            BufferedReader br = new BufferedReader(new InputStreamReader( theatresFileResource.getInputStream()));
-            String line;
-            Integer lineCtr = 0;
-            while ((line = br.readLine()) != null) {
-                System.out.println(line);
-                String [] values = line.split(",");
-                if (lineCtr > 0 ){
-                    // Skip the header line in CSV
-                    Theatre newRec = new Theatre(Integer.parseInt(values[THEATRE_CSV_IDX_ID]),
-                            values[THEATRE_CSV_IDX_NAME],
-                            values[THEATRE_CSV_IDX_LOCATION]);
-                    this.theatreRepo.save(newRec);
-                }
-                lineCtr++;
-            }
-        } catch (IOException e) {}
-
+    private void PopulateTheatreTable() throws IOException, SQLException {
+        // Theatres are held by every shard
+        this.catalogLoader.load(resourceLoader.getResource(theatresCsv), "theatre",
+                THEATRE_CSV_COLUMNS, THEATRE_CSV_NUMERIC, -1);
     }
 
     /**
-     * Constants to handle CSV indices/columsn of Theatres.csv file
+     * Columns of Show table, in the order of the fields of shows.csv
      */
-    private final Integer SHOWS_CSV_IDX_ID = 0;
-    private final Integer SHOWS_CSV_IDX_THEATRE_ID = 1;
-    private final Integer SHOWS_CSV_IDX_TITLE = 2;
-    private final Integer SHOWS_CSV_IDX_PRICE = 3;
-    private final Integer SHOWS_CSV_IDX_SEATS_AVAILABLE = 4;
+    private static final String[] SHOWS_CSV_COLUMNS = {"id", "theatre_id", "title", "price", "seats_available"};
+    private static final boolean[] SHOWS_CSV_NUMERIC = {true, true, false, true, true};
+    private static final int SHOWS_CSV_IDX_THEATRE_ID = 1;
 
     /**
      * Method to populate Shows Entity from shows.csv.
-     *
-     * @throws IOException
      */
-    private void PopulateShowsTable()  throws IOException{
-        final Resource showsFileResource = resourceLoader.getResource("classpath:static/shows.csv");
-        try {
-            BufferedReader br = new BufferedReader(new InputStreamReader( showsFileResource.getInputStream()));
-            String line;
-            Integer lineCtr = 0;
-            while ((line = br.readLine()) != null) {
-                String [] values = line.split(",");
-                if (lineCtr > 0 ){
-                    // Skip the header line in CSV
-                    System.out.println("Record = "+values[0]+" ; "+values[1]+" ; "+values[2]);
-                    Show newRec = new Show(Integer.parseInt(values[SHOWS_CSV_IDX_ID]),
-                            Integer.parseInt(values[SHOWS_CSV_IDX_THEATRE_ID]),
-                            values[SHOWS_CSV_IDX_TITLE],
-                            Integer.parseInt(values[SHOWS_CSV_IDX_PRICE]),
-                            Integer.parseInt(values[SHOWS_CSV_IDX_SEATS_AVAILABLE]));
-                    this.showRepo.save(newRec);
-                }
-                lineCtr++;
-            }
-        } catch (IOException e) {}
+    private void PopulateShowsTable() throws IOException, SQLException {
+        // Shows are partitioned across shards by theatre_id
+        this.catalogLoader.load(resourceLoader.getResource(showsCsv), "show",
+                SHOWS_CSV_COLUMNS, SHOWS_CSV_NUMERIC, SHOWS_CSV_IDX_THEATRE_ID);
+    }
+
+    /**
+     * Size of the range of ids allocated by each shard
+     */
+    private static final int SHARD_ID_RANGE = 100_000_000;
+
+    /**
+     * Largest number of shards whose id ranges fit in Integer ids
+     */
+    static final int MAX_SHARD_COUNT = Integer.MAX_VALUE / SHARD_ID_RANGE;
+
+    /**
+     * Method to check that the id range of the shard fits in Integer ids, before any id is allocated.
+     */
+    private void CheckShardIdRange() {
+        if (shardCount < 1 || shardCount > MAX_SHARD_COUNT) {
+            throw new IllegalStateException("booking.db.shard-count must be from 1 to "+MAX_SHARD_COUNT+
+                    " for id ranges of "+SHARD_ID_RANGE+", got "+shardCount);
+        }
+        if (shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalStateException("booking.db.shard-index must be from 0 to "+(shardCount - 1)+
+                    ", got "+shardIndex);
+        }
+    }
 
+    /**
+     * Method to move the sequences of a fresh database to the id range of the shard, so that ids of bookings
+     * and of other generated rows are unique across shards.
+     */
+    private void AssignShardIdRange() {
+        if (shardIndex == 0) {
+            return;
+        }
+        List<String> sequences = this.jdbcTemplate.queryForList(
+                "SELECT SEQUENCE_NAME FROM INFORMATION_SCHEMA.SEQUENCES WHERE SEQUENCE_SCHEMA = 'PUBLIC'", String.class);
+        for (String sequence : sequences) {
+            // A value read from a sequence stands for the block of increment ids starting at it (pooled-lo)
+            long start = (long) shardIndex * SHARD_ID_RANGE + 1;
+            this.jdbcTemplate.execute("ALTER SEQUENCE "+sequence+" RESTART WITH "+start);
+        }
+        System.out.println("Shard "+shardIndex+" allocates ids from "+((long) shardIndex * SHARD_ID_RANGE + 1));
     }
 }
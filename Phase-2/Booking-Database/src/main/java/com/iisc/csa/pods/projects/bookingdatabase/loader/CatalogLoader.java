@@ -0,0 +1,305 @@
+/**
+ * Bulk loader of the catalog CSV files into the booking database.
+ */
+package com.iisc.csa.pods.projects.bookingdatabase.loader;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Streams a CSV file into a table with batched MERGE statements over a single connection.<br/><br/>
+ *
+ * Files on the file system are memory-mapped, while resources packaged in the jar are read through a channel into
+ * a buffer of <i>catalog.load.buffer-size</i> bytes. Rows are parsed in place in the buffer: numeric fields are
+ * converted from their bytes, and only text fields are decoded into strings. Rows are sent in JDBC batches of
+ * <i>catalog.load.batch-size</i>, each committed on its own, and progress is reported every
+ * <i>catalog.load.progress-rows</i> rows.<br/><br/>
+ *
+ * Fields are separated by commas and are not quoted, as in the catalog files. Since rows are merged on their
+ * id, loading a file again does not fail on rows loaded before.<br/><br/>
+ *
+ * Tables partitioned across shards only get the rows of this shard, whose partition column modulo
+ * <i>booking.db.shard-count</i> equals <i>booking.db.shard-index</i>.
+ */
+@Component
+public class CatalogLoader {
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${catalog.load.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${catalog.load.progress-rows:100000}")
+    private long progressRows;
+
+    @Value("${catalog.load.buffer-size:65536}")
+    private int bufferSize;
+
+    @Value("${booking.db.shard-count:1}")
+    private int shardCount;
+
+    @Value("${booking.db.shard-index:0}")
+    private int shardIndex;
+
+    /**
+     * Load the rows of a CSV file into a table. The header line of the file must list the columns, in order.
+     *
+     * @param resource CSV file
+     * @param table table to be loaded
+     * @param columns columns of the table, in the order of the fields of the file; the first one is the key
+     * @param numeric true for columns holding integers, false for text
+     * @param partition_column index of the integer column partitioning rows across shards; -1 to load all rows
+     * @return number of rows loaded
+     */
+    public long load(Resource resource, String table, String[] columns, boolean[] numeric, int partition_column)
+            throws IOException, SQLException {
+        long start = System.nanoTime();
+        long rows = 0;
+        try (CsvReader reader = open(resource, columns.length);
+             Connection connection = this.dataSource.getConnection()) {
+            String header = reader.next() ? reader.header() : "";
+            if (!header.equals(String.join(",", columns))) {
+                throw new IllegalStateException("Unexpected header '"+header+"' in "+resource.getDescription());
+            }
+
+            boolean auto_commit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement merge = connection.prepareStatement(mergeSql(table, columns))) {
+                int batched = 0;
+                while (reader.next()) {
+                    if (!reader.split()) {
+                        throw new IllegalStateException("Malformed line "+reader.getLine()+" in "+
+                                resource.getDescription());
+                    }
+                    if (partition_column >= 0 &&
+                            Math.floorMod(reader.intField(partition_column), shardCount) != shardIndex) {
+                        continue;
+                    }
+                    for (int i = 0; i < columns.length; i++) {
+                        if (numeric[i]) {
+                            merge.setInt(i + 1, reader.intField(i));
+                        } else {
+                            merge.setString(i + 1, reader.stringField(i));
+                        }
+                    }
+                    merge.addBatch();
+                    rows++;
+                    if (++batched == batchSize) {
+                        merge.executeBatch();
+                        connection.commit();
+                        batched = 0;
+                    }
+                    if (rows % progressRows == 0) {
+                        report(table, rows, start, "Loading");
+                    }
+                }
+                if (batched > 0) {
+                    merge.executeBatch();
+                    connection.commit();
+                }
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(auto_commit);
+            }
+        }
+        report(table, rows, start, "Loaded");
+        return rows;
+    }
+
+    ////////////////////////////////////// Helper methods //////////////////////////////////////
+
+    private CsvReader open(Resource resource, int fields) throws IOException {
+        if (resource.isFile()) {
+            try (FileChannel channel = FileChannel.open(resource.getFile().toPath(), StandardOpenOption.READ)) {
+                // Mapping stays valid once the channel is closed
+                if (channel.size() <= Integer.MAX_VALUE) {
+                    return new CsvReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), null, fields);
+                }
+            }
+        }
+        return new CsvReader(ByteBuffer.allocate(bufferSize).flip(), Channels.newChannel(resource.getInputStream()),
+                fields);
+    }
+
+    private static String mergeSql(String table, String[] columns) {
+        return "MERGE INTO "+table+" ("+String.join(", ", columns)+") KEY ("+columns[0]+") VALUES ("+
+                "?, ".repeat(columns.length - 1)+"?)";
+    }
+
+    private static void report(String table, long rows, long start, String action) {
+        long elapsed_ms = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        System.out.println(action+" "+table+": "+rows+" rows in "+elapsed_ms+" ms ("+
+                (rows * 1000 / elapsed_ms)+" rows/s)");
+    }
+
+    /**
+     * Reads lines of a CSV file from a buffer, refilled from a channel unless the whole file is mapped, and splits
+     * them into fields held as offsets within the buffer.
+     */
+    private static final class CsvReader implements AutoCloseable {
+        private ByteBuffer buffer;
+        private final ReadableByteChannel channel;   // null if the buffer holds the whole file
+        private boolean eof;
+
+        // Current line, as offsets within the buffer, and its number
+        private int lineStart;
+        private int lineEnd;
+        private long line;
+
+        // Start and end offsets of each field of the current line
+        private final int[] bounds;
+
+        // Bytes of a text field being decoded
+        private byte[] scratch = new byte[256];
+
+        CsvReader(ByteBuffer buffer_, ReadableByteChannel channel_, int fields) {
+            this.buffer = buffer_;
+            this.channel = channel_;
+            this.eof = channel_ == null;
+            this.bounds = new int[fields * 2];
+        }
+
+        long getLine() {
+            return this.line;
+        }
+
+        /**
+         * Move to the next line, skipping empty lines.
+         *
+         * @return false at the end of the file
+         */
+        boolean next() throws IOException {
+            while (true) {
+                int position = buffer.position();
+                int limit = buffer.limit();
+                int newline = position;
+                while (newline < limit && buffer.get(newline) != '\n') {
+                    newline++;
+                }
+                if (newline == limit && !eof) {
+                    fill();
+                    continue;
+                }
+                if (position == limit) {
+                    return false;
+                }
+                buffer.position(newline == limit ? limit : newline + 1);
+                line++;
+                int end = newline;
+                if (end > position && buffer.get(end - 1) == '\r') {
+                    end--;
+                }
+                if (end > position) {
+                    this.lineStart = position;
+                    this.lineEnd = end;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return current line decoded as text
+         */
+        String header() {
+            return decode(lineStart, lineEnd);
+        }
+
+        /**
+         * Split the current line into fields.
+         *
+         * @return false if the line does not have the expected number of fields
+         */
+        boolean split() {
+            int field = 0;
+            bounds[0] = lineStart;
+            for (int i = lineStart; i < lineEnd; i++) {
+                if (buffer.get(i) == ',') {
+                    if (2 * field + 2 >= bounds.length) {
+                        return false;
+                    }
+                    bounds[2 * field + 1] = i;
+                    bounds[2 * field + 2] = i + 1;
+                    field++;
+                }
+            }
+            bounds[2 * field + 1] = lineEnd;
+            return 2 * field + 2 == bounds.length;
+        }
+
+        int intField(int field) {
+            int start = bounds[2 * field];
+            int end = bounds[2 * field + 1];
+            boolean negative = start < end && buffer.get(start) == '-';
+            if (negative) {
+                start++;
+            }
+            if (start == end) {
+                throw new NumberFormatException("Empty number at line "+line);
+            }
+            int value = 0;
+            for (int i = start; i < end; i++) {
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new NumberFormatException("Invalid number '"+decode(bounds[2 * field], end)+
+                            "' at line "+line);
+                }
+                value = Math.addExact(Math.multiplyExact(value, 10), digit);
+            }
+            return negative ? -value : value;
+        }
+
+        String stringField(int field) {
+            return decode(bounds[2 * field], bounds[2 * field + 1]);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+
+        private String decode(int start, int end) {
+            int length = end - start;
+            if (length > scratch.length) {
+                scratch = new byte[Math.max(length, 2 * scratch.length)];
+            }
+            buffer.get(start, scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Keep the partial line at the end of the buffer and read more of the file after it, growing the buffer
+         * if the line does not fit.
+         */
+        private void fill() throws IOException {
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                ByteBuffer larger = ByteBuffer.allocate(2 * buffer.capacity());
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            if (channel.read(buffer) < 0) {
+                eof = true;
+            }
+            buffer.flip();
+        }
+    }
+}
@@ -13,18 +13,25 @@ import lombok.Setter;
  */
 @Entity
 @Data
-@Table(name="Booking")
+@Table(name="Booking", indexes = {
+        // Bookings of a user, looked up on the read and cancellation paths
+        @Index(name = "idx_booking_user_id", columnList = "user_id"),
+        @Index(name = "idx_booking_user_id_show_id", columnList = "user_id, show_id")
+})
 @Setter
 @Getter
 public class Booking {
     /**
      * Primary key - ID field for Booking entity.<br/><br/>
      *
-     * Values will be autogenerated for each booking.
+     * Values will be autogenerated for each booking. Each Booking replica, and BOOK_SEATS in Booking-Database,
+     * reserves ids in blocks of allocationSize with one read of the sequence, value v reserving the ids from v up to
+     * v + allocationSize - 1 (pooled-lo optimizer), so blocks never overlap. Ids are unique but have gaps, and
+     * bookings of different replicas are not committed in id order; keyset paging and the reset do not rely on it.
      */
     @Id
             @GeneratedValue(strategy = GenerationType.SEQUENCE, generator="bookingidgen")
-            @SequenceGenerator(name = "bookingidgen", initialValue = 1, allocationSize = 1)
+            @SequenceGenerator(name = "bookingidgen", initialValue = 1, allocationSize = 50)
     Integer id;
 
     /**
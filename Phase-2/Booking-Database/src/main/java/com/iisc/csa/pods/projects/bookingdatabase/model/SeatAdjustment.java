@@ -0,0 +1,63 @@
+/**
+ * Model for SeatAdjustment JPA entity.
+ */
+package com.iisc.csa.pods.projects.bookingdatabase.model;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * JPA Model class for seat changes not yet applied to Show table (write-behind journal of the seat inventory).<br/><br/>
+ *
+ * Rows are written in the same transaction as the booking change they belong to, and are folded into the
+ * seats_available column of their show, in id order, by the replica owning the show.
+ */
+@Entity
+@Table(name="seat_adjustment", indexes = {
+        // Pending adjustments of the shows owned by a replica, polled by the flush in id order
+        @Index(name = "idx_seat_adjustment_owner_replica_id", columnList = "owner_replica, id")
+})
+@Setter
+@Getter
+public class SeatAdjustment {
+    /**
+     * Primary key - ID field for SeatAdjustment entity, also the order in which adjustments are applied.<br/><br/>
+     *
+     * Values will be autogenerated for each adjustment.
+     */
+    @Id
+            @GeneratedValue(strategy = GenerationType.SEQUENCE, generator="seatadjustmentidgen")
+            @SequenceGenerator(name = "seatadjustmentidgen", initialValue = 1, allocationSize = 1)
+    Integer id;
+
+    @Column (name = "show_id")
+    Integer show_id;
+
+    /**
+     * Change in seats available; negative for seats taken, positive for seats returned
+     */
+    @Column (name = "delta")
+    Integer delta;
+
+    /**
+     * Index of the Booking replica which made the change
+     */
+    @Column (name = "replica")
+    Integer replica;
+
+    /**
+     * Index of the Booking replica owning the show, which folds the change into Show table
+     */
+    @Column (name = "owner_replica")
+    Integer owner_replica;
+
+    // Constructors
+    public SeatAdjustment(){}
+    public SeatAdjustment(Integer show_id_, Integer delta_, Integer replica_, Integer owner_replica_) {
+        this.show_id = show_id_;
+        this.delta = delta_;
+        this.replica = replica_;
+        this.owner_replica = owner_replica_;
+    }
+}
@@ -6,6 +6,7 @@ package com.iisc.csa.pods.projects.bookingdatabase.model;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.Table;
 import lombok.Data;
 import lombok.Getter;
@@ -16,7 +17,10 @@ import lombok.Setter;
  */
 @Entity
 @Data
-@Table(name = "Show")
+@Table(name = "Show", indexes = {
+        // Shows of a theatre
+        @Index(name = "idx_show_theatre_id", columnList = "theatre_id")
+})
 @Getter
 @Setter
 public class Show {
@@ -0,0 +1,87 @@
+/**
+ * Model for WalletOutbox JPA entity.
+ */
+package com.iisc.csa.pods.projects.bookingdatabase.model;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * JPA Model class for pending wallet operations (transactional outbox).<br/><br/>
+ *
+ * Rows are written in the same transaction as the booking change they belong to and are removed once
+ * Wallet service has applied the operation.
+ */
+@Entity
+@Table(name="wallet_outbox", indexes = {
+        // Operations due for dispatch, polled by the background dispatcher
+        @Index(name = "idx_wallet_outbox_next_attempt_at", columnList = "next_attempt_at")
+})
+@Setter
+@Getter
+public class WalletOutbox {
+    /**
+     * Primary key - ID field for WalletOutbox entity, also the dispatch order.<br/><br/>
+     *
+     * Values will be autogenerated for each operation.
+     */
+    @Id
+            @GeneratedValue(strategy = GenerationType.SEQUENCE, generator="walletoutboxidgen")
+            @SequenceGenerator(name = "walletoutboxidgen", initialValue = 1, allocationSize = 1)
+    Integer id;
+
+    /**
+     * Idempotency key sent along with the operation, so that Wallet service applies it at most once
+     */
+    @Column (name = "idempotency_key", unique = true)
+    String idempotency_key;
+
+    @Column (name = "user_id")
+    Integer user_id;
+
+    /**
+     * Wallet action, credit or debit, or commit_hold committing the hold whose hold_id is the idempotency key
+     */
+    @Column (name = "action")
+    String action;
+
+    @Column (name = "amount")
+    Integer amount;
+
+    /**
+     * Number of failed dispatch attempts
+     */
+    @Column (name = "attempts")
+    Integer attempts;
+
+    /**
+     * Time in epoch milliseconds before which the operation is not dispatched again
+     */
+    @Column (name = "next_attempt_at")
+    Long next_attempt_at;
+
+    @Column (name = "created_at")
+    Long created_at;
+
+    @Column (name = "last_error")
+    String last_error;
+
+    /**
+     * Booking paid by a commit_hold operation, cancelled should neither the hold nor a debit charge it
+     */
+    @Column (name = "booking_id")
+    Integer booking_id;
+
+    // Constructors
+    public WalletOutbox(){}
+    public WalletOutbox(String idempotency_key_, Integer user_id_, String action_, Integer amount_) {
+        this.idempotency_key = idempotency_key_;
+        this.user_id = user_id_;
+        this.action = action_;
+        this.amount = amount_;
+        this.attempts = 0;
+        this.created_at = System.currentTimeMillis();
+        this.next_attempt_at = this.created_at;
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Java stored functions of the booking database, run by H2 within the session of the caller.
+ */
+package com.iisc.csa.pods.projects.bookingdatabase.procedure;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Functions registered as H2 aliases by BookingDatabaseApplication.<br/><br/>
+ *
+ * Since the functions run on the connection of the calling session, their statements are part of the transaction
+ * of the caller and are rolled back along with it.
+ */
+public final class BookingProcedures {
+    /**
+     * Alias names and their Java methods
+     */
+    public static final String BOOK_SEATS = "BOOK_SEATS";
+    public static final String BOOK_SEATS_METHOD = BookingProcedures.class.getName() + ".bookSeats";
+
+    /**
+     * Result codes of BOOK_SEATS, for bookings which were not made
+     */
+    public static final int SHOW_NOT_FOUND = -1;
+    public static final int SEATS_UNAVAILABLE = -2;
+    public static final int INVALID_SEATS = -3;
+
+    /**
+     * Size of the blocks of booking ids reserved from bookingidgen sequence; must match allocationSize of Booking.id,
+     * the increment of the sequence, so that ids taken here and by Hibernate in Booking replicas come from disjoint
+     * blocks.
+     */
+    static final int BOOKING_ID_BLOCK = 50;
+
+    // Block of booking ids reserved by this instance
+    private static int nextBookingId = 1;
+    private static int lastBookingId = 0;
+
+    private BookingProcedures() {}
+
+    /**
+     * BOOK_SEATS(show_id, user_id, seats): take seats from a show, provided enough seats are available, and
+     * insert the booking.
+     *
+     * @param connection connection of the calling session, passed by H2
+     * @return id of the booking; SHOW_NOT_FOUND, SEATS_UNAVAILABLE or INVALID_SEATS if not booked
+     */
+    public static int bookSeats(Connection connection, int show_id, int user_id, int seats) throws SQLException {
+        if (seats <= 0) {
+            return INVALID_SEATS;
+        }
+        try (PreparedStatement update = connection.prepareStatement(
+                "UPDATE show SET seats_available = seats_available - ? WHERE id = ? AND seats_available >= ?")) {
+            update.setInt(1, seats);
+            update.setInt(2, show_id);
+            update.setInt(3, seats);
+            if (update.executeUpdate() == 0) {
+                try (PreparedStatement exists = connection.prepareStatement("SELECT 1 FROM show WHERE id = ?")) {
+                    exists.setInt(1, show_id);
+                    try (ResultSet row = exists.executeQuery()) {
+                        return row.next() ? SEATS_UNAVAILABLE : SHOW_NOT_FOUND;
+                    }
+                }
+            }
+        }
+
+        int booking_id = nextBookingId(connection);
+        try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO booking (id, show_id, user_id, seats_booked) VALUES (?, ?, ?, ?)")) {
+            insert.setInt(1, booking_id);
+            insert.setInt(2, show_id);
+            insert.setInt(3, user_id);
+            insert.setInt(4, seats);
+            insert.executeUpdate();
+        }
+        return booking_id;
+    }
+
+    ////////////////////////////////////// Helper methods //////////////////////////////////////
+
+    /**
+     * Next booking id, following the pooled-lo optimizer used by Booking replicas for Booking.id: a value v read
+     * from the sequence reserves the ids from v up to v + BOOKING_ID_BLOCK - 1. Sequence values are not rolled
+     * back, so ids of bookings which are not committed are left as gaps.
+     */
+    private static synchronized int nextBookingId(Connection connection) throws SQLException {
+        if (nextBookingId > lastBookingId) {
+            try (PreparedStatement next = connection.prepareStatement("SELECT NEXT VALUE FOR bookingidgen");
+                 ResultSet row = next.executeQuery()) {
+                row.next();
+                nextBookingId = row.getInt(1);
+                lastBookingId = nextBookingId + BOOKING_ID_BLOCK - 1;
+            }
+        }
+        return nextBookingId++;
+    }
+}
@@ -4,9 +4,12 @@ import jakarta.persistence.EntityManagerFactory;
 import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.transaction.TransactionManagerCustomizer;
 import org.springframework.boot.jdbc.DatabaseDriver;
 import org.springframework.context.annotation.Bean;
 import org.springframework.jdbc.support.DatabaseStartupValidator;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 
 import javax.sql.DataSource;
@@ -14,6 +17,7 @@ import java.util.stream.Stream;
 
 @SpringBootApplication
 @EnableTransactionManagement
+@EnableScheduling
 public class BookingApplication {
 
 	public static void main(String[] args) {
@@ -49,4 +53,20 @@ public class BookingApplication {
 			Stream.of(jpa).map(bf::getBeanDefinition).forEach(it -> it.setDependsOn("databaseStartupValidator"));
 		};
 	}
+
+	/**
+	 * Bean to restrict transaction synchronization to actual transactions.
+	 *
+	 * Service methods holding booking locks run with propagation NOT_SUPPORTED and open their own
+	 * transactions. With synchronization in such scopes, the entity manager and its database connection
+	 * would stay bound to the thread until the method returns, including while waiting for locks and
+	 * for remote calls, and threads holding locks could starve for connections.
+	 *
+	 * @return TransactionManagerCustomizer instance
+	 */
+	@Bean
+	public TransactionManagerCustomizer<AbstractPlatformTransactionManager> transactionSynchronizationCustomizer() {
+		return transactionManager -> transactionManager.setTransactionSynchronization(
+				AbstractPlatformTransactionManager.SYNCHRONIZATION_ON_ACTUAL_TRANSACTION);
+	}
 }
@@ -0,0 +1,83 @@
+/**
+ * Configuration of the executors used internally by the service module.
+ */
+package com.iisc.csa.pods.projects.booking.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * Executors follow the threading mode of the request handling threads.<br/><br/>
+ *
+ * With <i>spring.threads.virtual.enabled</i> on Java 21 or later, Tomcat, the scheduler and these executors run
+ * tasks on virtual threads, and an executor only limits the number of tasks running concurrently. Otherwise, a
+ * fixed pool of platform threads is used.
+ */
+@Configuration
+public class ExecutorConfig {
+    @Value("${booking.reset.parallelism:4}")
+    private int resetParallelism;
+
+    @Value("${booking.validation.concurrency:64}")
+    private int validationConcurrency;
+
+    @Value("${booking.shards.scatter-concurrency:64}")
+    private int scatterConcurrency;
+
+    @Value("${booking.wallet.concurrency:64}")
+    private int walletConcurrency;
+
+    /**
+     * Executor cancelling partitions of bookings for DELETE /bookings
+     */
+    @Bean
+    public AsyncTaskExecutor resetExecutor(Environment environment) {
+        return boundedExecutor("booking-reset-", resetParallelism, environment);
+    }
+
+    /**
+     * Executor running remote user checks of booking requests, concurrently with the local show lookup
+     */
+    @Bean
+    public AsyncTaskExecutor validationExecutor(Environment environment) {
+        return boundedExecutor("booking-validation-", validationConcurrency, environment);
+    }
+
+    /**
+     * Executor running reads on all Booking-Database shards in parallel
+     */
+    @Bean
+    public AsyncTaskExecutor shardExecutor(Environment environment) {
+        return boundedExecutor("booking-shard-", scatterConcurrency, environment);
+    }
+
+    /**
+     * Executor reserving wallet holds of bookings, concurrently with taking seats, and committing them
+     */
+    @Bean
+    public AsyncTaskExecutor walletExecutor(Environment environment) {
+        return boundedExecutor("booking-wallet-", walletConcurrency, environment);
+    }
+
+    ////////////////////////////////////// Helper methods //////////////////////////////////////
+
+    static AsyncTaskExecutor boundedExecutor(String prefix, int limit, Environment environment) {
+        if (Threading.VIRTUAL.isActive(environment)) {
+            SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor(prefix);
+            executor.setVirtualThreads(true);
+            executor.setConcurrencyLimit(limit);
+            return executor;
+        }
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix(prefix);
+        executor.setCorePoolSize(limit);
+        executor.setMaxPoolSize(limit);
+        return executor;
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Configuration of the HTTP client used for REST calls to other microservices.
+ */
+package com.iisc.csa.pods.projects.booking.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.hc5.PoolingHttpClientConnectionManagerMetricsBinder;
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import java.net.URISyntaxException;
+import java.util.Map;
+
+/**
+ * Single RestTemplate shared by the service module, backed by a pooled Apache HttpClient.<br/><br/>
+ *
+ * Connections to User and Wallet services are kept alive and reused across requests. Connect, read and
+ * response timeouts bound the time a request thread can be held up by a slow remote instance.
+ * Pool utilisation is published as <i>httpcomponents.httpclient.pool.*</i> metrics.
+ */
+@Configuration
+public class RestClientConfig {
+    @Value("${rest.client.max-connections:200}")
+    private int maxConnections;
+
+    @Value("${rest.client.max-connections-per-route:50}")
+    private int maxConnectionsPerRoute;
+
+    /**
+     * Per destination overrides of the connection limit, e.g. {'walletservice:8080': 100}
+     */
+    @Value("#{${rest.client.route-limits:{:}}}")
+    private Map<String, Integer> routeLimits;
+
+    @Value("${rest.client.connect-timeout-ms:2000}")
+    private long connectTimeoutMs;
+
+    @Value("${rest.client.read-timeout-ms:5000}")
+    private long readTimeoutMs;
+
+    @Value("${rest.client.response-timeout-ms:5000}")
+    private long responseTimeoutMs;
+
+    @Value("${rest.client.pool-timeout-ms:2000}")
+    private long poolTimeoutMs;
+
+    @Value("${rest.client.idle-timeout-ms:30000}")
+    private long idleTimeoutMs;
+
+    @Bean
+    public PoolingHttpClientConnectionManager restConnectionManager(MeterRegistry meterRegistry)
+            throws URISyntaxException {
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnectionsPerRoute)
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.ofMilliseconds(connectTimeoutMs))
+                        .setSocketTimeout(Timeout.ofMilliseconds(readTimeoutMs))
+                        .build())
+                .build();
+        for (Map.Entry<String, Integer> limit : routeLimits.entrySet()) {
+            HttpHost host = HttpHost.create("http://"+limit.getKey());
+            connectionManager.setMaxPerRoute(new HttpRoute(host), limit.getValue());
+        }
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, "rest-client").bindTo(meterRegistry);
+        return connectionManager;
+    }
+
+    @Bean(destroyMethod = "close")
+    public CloseableHttpClient restHttpClient(PoolingHttpClientConnectionManager restConnectionManager) {
+        return HttpClients.custom()
+                .setConnectionManager(restConnectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout(Timeout.ofMilliseconds(poolTimeoutMs))
+                        .setResponseTimeout(Timeout.ofMilliseconds(responseTimeoutMs))
+                        .build())
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofMilliseconds(idleTimeoutMs))
+                .build();
+    }
+
+    @Bean
+    public RestTemplate restTemplate(CloseableHttpClient restHttpClient) {
+        return new RestTemplate(new HttpComponentsClientHttpRequestFactory(restHttpClient));
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Configuration of the DataSource over sharded Booking-Database instances.
+ */
+package com.iisc.csa.pods.projects.booking.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * With <i>booking.shards.urls</i> listing the JDBC URL of each Booking-Database shard, in shard index order,
+ * a connection pool is created per shard and the DataSource of the service routes between them. Otherwise the
+ * single database of <i>spring.datasource.url</i> is used.
+ */
+@Configuration
+@ConditionalOnExpression("!'${booking.shards.urls:}'.isEmpty()")
+public class ShardDataSourceConfig {
+    @Value("${booking.shards.urls}")
+    private String[] shardUrls;
+
+    @Value("${spring.datasource.driver-class-name:org.h2.Driver}")
+    private String driverClassName;
+
+    @Value("${spring.datasource.username:sa}")
+    private String username;
+
+    @Value("${spring.datasource.password:}")
+    private String password;
+
+    @Bean
+    public DataSource dataSource() {
+        Map<Object, Object> shards = new HashMap<>();
+        for (int shard = 0; shard < shardUrls.length; shard++) {
+            HikariDataSource pool = DataSourceBuilder.create()
+                    .type(HikariDataSource.class)
+                    .driverClassName(driverClassName)
+                    .url(shardUrls[shard].trim())
+                    .username(username)
+                    .password(password)
+                    .build();
+            pool.setPoolName("booking-shard-"+shard);
+            shards.put(shard, pool);
+        }
+        ShardRoutingDataSource dataSource = new ShardRoutingDataSource();
+        dataSource.setTargetDataSources(shards);
+        dataSource.setDefaultTargetDataSource(shards.get(0));
+        dataSource.setLenientFallback(false);
+        return dataSource;
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * DataSource routing connections to the Booking-Database shard selected by the current thread.
+ */
+package com.iisc.csa.pods.projects.booking.config;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+/**
+ * Connections are taken from the pool of the shard set for the current thread by ShardRouter, and from the pool
+ * of shard 0 when none is set. Since a transaction keeps the connection it started with, the shard has to be
+ * selected before the transaction is opened.
+ */
+public class ShardRoutingDataSource extends AbstractRoutingDataSource {
+    private static final ThreadLocal<Integer> currentShard = new ThreadLocal<>();
+
+    /**
+     * @return shard selected for the current thread; null if none
+     */
+    public static Integer getCurrentShard() {
+        return currentShard.get();
+    }
+
+    /**
+     * @param shard shard to be used by the current thread; null to clear
+     */
+    public static void setCurrentShard(Integer shard) {
+        if (shard == null) {
+            currentShard.remove();
+        } else {
+            currentShard.set(shard);
+        }
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return currentShard.get();
+    }
+}
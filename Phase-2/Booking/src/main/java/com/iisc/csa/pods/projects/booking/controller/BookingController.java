@@ -3,22 +3,29 @@
  */
 package com.iisc.csa.pods.projects.booking.controller;
 
+import com.iisc.csa.pods.projects.booking.exception.BookingForwardException;
 import com.iisc.csa.pods.projects.booking.exception.ShowInfoException;
 import com.iisc.csa.pods.projects.booking.exception.TheatreInfoException;
 import com.iisc.csa.pods.projects.booking.exception.UserValidationException;
 import com.iisc.csa.pods.projects.booking.exception.WalletOperationException;
 import com.iisc.csa.pods.projects.booking.model.*;
+import com.iisc.csa.pods.projects.booking.service.BookingResetService;
 import com.iisc.csa.pods.projects.booking.service.BookingService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.*;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import java.util.List;
+import java.util.function.Function;
 
 @RestController
 public class BookingController {
     @Autowired
     BookingService bookingService;
+    @Autowired
+    BookingResetService bookingResetService;
 
     ////////////////////////////////////// Controller Endpoints //////////////////////////////////////
     /**
@@ -28,14 +35,37 @@ public class BookingController {
      *        This endpoint returns the list of all available theatres.<br/><br/>
      *
      *        Response JSON payload: [{“id”: Integer, “name”: String, “location”: String}] with
-     *        HTTP status code 200 (OK). (Return empty list if no theatres are there.)<br/>
+     *        HTTP status code 200 (OK). (Return empty list if no theatres are there.)<br/><br/>
+     *
+     *        The payload is served pre-encoded, gzip compressed if accepted by the client, along with its ETag.
+     *        A request whose If-None-Match lists the current ETag gets HTTP 304 (Not Modified).<br/><br/>
+     *
+     *        Supports the paging and streaming parameters described in {@link #pageResponse}.<br/>
      * </p>
      *
      * @return HTTP/OK (200) on success with JSON Payload of theatre info
      */
     @GetMapping("/theatres")
-    ResponseEntity<?> getTheatres(){
-        return ResponseEntity.ok(bookingService.getTheatres());
+    ResponseEntity<?> getTheatres(@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String if_none_match,
+                                  @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String accept_encoding,
+                                  @RequestParam(required = false) Integer after,
+                                  @RequestParam(required = false) Integer limit){
+        if (after != null || limit != null) {
+            return pageResponse(bookingService.getTheatresPage(after, limit), Theatre::getId);
+        }
+        CatalogSnapshot snapshot = bookingService.getTheatresSnapshot();
+        boolean gzip = snapshot.getGzip() != null && accept_encoding != null && accept_encoding.contains("gzip");
+        String etag = gzip ? snapshot.getGzip_etag() : snapshot.getEtag();
+        if (snapshot.matches(if_none_match)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).header(HttpHeaders.VARY,
+                    HttpHeaders.ACCEPT_ENCODING).build();
+        }
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().eTag(etag).contentType(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(snapshot.getGzip());
+        }
+        return response.body(snapshot.getJson());
     }
 
     /**
@@ -48,15 +78,22 @@ public class BookingController {
      *        Integer, “seats_available”: Integer}] with HTTP status code 200 (OK). (Return empty
      *        list if no shows are there for the given theatre.)<br/><br/>
      *
-     *        If the theatre does not exist then return HTTP 404 (Not Found).<br/>
+     *        If the theatre does not exist then return HTTP 404 (Not Found).<br/><br/>
+     *
+     *        Supports the paging and streaming parameters described in {@link #pageResponse}.<br/>
      * </p>
      *
      * @param theater_id TheatreID to be queried
      * @return HTTP/OK(200) on success with JSON payload of Show info; In case of failure return HTTP/NotFound(404)
      */
     @GetMapping("/shows/theatres/{theater_id}")
-    ResponseEntity<?> getShowsTheatres(@PathVariable Integer theater_id) {
+    ResponseEntity<?> getShowsTheatres(@PathVariable Integer theater_id,
+                                       @RequestParam(required = false) Integer after,
+                                       @RequestParam(required = false) Integer limit) {
         try {
+            if (after != null || limit != null) {
+                return pageResponse(bookingService.getShowsTheatresPage(theater_id, after, limit), Show::getId);
+            }
             return ResponseEntity.ok(bookingService.getShowsTheatres(theater_id));
         } catch (Exception e) {
             System.out.println("getShowsTheatres: Exception "+ e.toString());
@@ -97,13 +134,20 @@ public class BookingController {
      *        Response JSON payload: [{“id”: Integer, “show_id”: Integer, “user_id”: Integer,
      *        “seats_booked”: Integer}] with HTTP status code 200 (OK). To return an empty list if
      *        the user does not have any bookings.<br/><br/>
+     *
+     *        Supports the paging and streaming parameters described in {@link #pageResponse}.<br/>
      * </p>
      *
      * @param user_id UserID for which query is to be performed
      * @return HTTP/OK(200) with JSON payload containing list of show information for supplied UserID.
      */
     @GetMapping("/bookings/users/{user_id}")
-    ResponseEntity<?> getBookingsUsers(@PathVariable Integer user_id) {
+    ResponseEntity<?> getBookingsUsers(@PathVariable Integer user_id,
+                                       @RequestParam(required = false) Integer after,
+                                       @RequestParam(required = false) Integer limit) {
+        if (after != null || limit != null) {
+            return pageResponse(bookingService.getBookingsUsersPage(user_id, after, limit), Booking::getId);
+        }
         return ResponseEntity.ok(bookingService.getBookingsUsers(user_id));
     }
 
@@ -126,7 +170,10 @@ public class BookingController {
      *        the price of the show times seats_booked. If the Wallet deduction does not happen
      *        because of insufficient balance in the user’s wallet, return HTTP 400 (Bad Request),
      *        else reduce the number of seats available in the show by seats_booked and return
-     *        HTTP 200 (OK).<br/>
+     *        HTTP 200 (OK).<br/><br/>
+     *
+     *        A booking forwarded to the replica owning the show is answered with the status of that replica,
+     *        or HTTP 503 (Service Unavailable) if it cannot be reached.<br/>
      * </p>
      *
      * @param bookingreq JSON Payload with booking information to be processed
@@ -138,6 +185,9 @@ public class BookingController {
         try {
             bookingService.transact(bookingreq);
             return new ResponseEntity<>(HttpStatus.OK);
+        } catch (BookingForwardException e) {
+            System.out.println("postBookings: BookingForwardException "+ e.toString());
+            return new ResponseEntity<>(e.getStatus());
         } catch (Exception e) {
             System.out.println("postBookings: Exception "+ e.toString());
             return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
@@ -207,19 +257,136 @@ public class BookingController {
      * <b><u>Endpoint Requirement:</u> 8. DELETE /bookings</b><br/><br/>
      * <p>
      *         This endpoint deletes all bookings of all users in all shows, and returns back the
-     *         seats to their available pools and the wallet amounts. Always returns HTTP code 200(OK).<br/>
+     *         seats to their available pools and the wallet amounts.<br/><br/>
+     *
+     *         Bookings are cancelled page by page; if a page fails, or bookings are still being made after the last
+     *         pass, HTTP code 400 (Bad Request) is returned and invoking the endpoint again resumes from the last
+     *         completed page. HTTP code 400 is also returned if the show locks cannot be acquired.<br/>
      * </p>
      *
-     * @return HTTP/OK (200) returned after all bookings are deleted along with wallet/seats refund.
+     * @return HTTP/OK (200) returned after all bookings are deleted along with wallet/seats refund; HTTP/BAD_REQUEST
+     *         (400) otherwise.
      */
     @DeleteMapping("/bookings")
     ResponseEntity<?> deleteBookings() {
         try {
-            bookingService.deleteBookings();
+            bookingResetService.resetBookings();
             return new ResponseEntity<>(HttpStatus.OK);
         }  catch (WalletOperationException e) {
             System.out.println("deleteBookings: WalletOperationException "+ e.toString());
             return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        } catch (Exception e) {
+            System.out.println("deleteBookings: Exception "+ e.toString());
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    ////////////////////////////////////// Streaming Endpoints //////////////////////////////////////
+    /**
+     * <b>GET /theatres</b> with <i>Accept: application/x-ndjson</i>, see {@link #pageResponse}
+     */
+    @GetMapping(value = "/theatres", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    ResponseEntity<StreamingResponseBody> streamTheatres(@RequestParam(required = false) Integer after) {
+        return ndjsonResponse(bookingService.streamTheatres(after));
+    }
+
+    /**
+     * <b>GET /shows/theatres/{theater_id}</b> with <i>Accept: application/x-ndjson</i>, see {@link #pageResponse}
+     */
+    @GetMapping(value = "/shows/theatres/{theater_id}", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    ResponseEntity<StreamingResponseBody> streamShowsTheatres(@PathVariable Integer theater_id,
+                                                              @RequestParam(required = false) Integer after) {
+        try {
+            return ndjsonResponse(bookingService.streamShowsTheatres(theater_id, after));
+        } catch (TheatreInfoException e) {
+            System.out.println("streamShowsTheatres: Exception "+ e.toString());
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+    }
+
+    /**
+     * <b>GET /bookings/users/{user_id}</b> with <i>Accept: application/x-ndjson</i>, see {@link #pageResponse}
+     */
+    @GetMapping(value = "/bookings/users/{user_id}", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    ResponseEntity<StreamingResponseBody> streamBookingsUsers(@PathVariable Integer user_id,
+                                                              @RequestParam(required = false) Integer after) {
+        return ndjsonResponse(bookingService.streamBookingsUsers(user_id, after));
+    }
+
+    ////////////////////////////////////// Internal Endpoints //////////////////////////////////////
+    /**
+     * <b>GET /bookings/reset/status</b><br/><br/>
+     * <p>
+     *         Returns progress of the current or last reset of bookings (DELETE /bookings), run by any instance.<br/><br/>
+     *
+     *         Response JSON payload: {“status”: String, “started_at”: Long, “finished_at”: Long, “cursor”: Integer,
+     *         “pages”: Integer, “bookings_cancelled”: Integer, “error”: String, “resumable”: Boolean} with
+     *         HTTP status code 200 (OK).<br/>
+     * </p>
+     *
+     * @return HTTP/OK (200) with JSON payload of reset progress
+     */
+    @GetMapping("/bookings/reset/status")
+    ResponseEntity<?> getResetStatus() {
+        return ResponseEntity.ok(bookingResetService.getProgress());
+    }
+
+    /**
+     * <b>DELETE /cache/users/{user_id}</b><br/><br/>
+     * <p>
+     *         Invoked by User service on deletion of a user, to drop the user from the cache of validated users.
+     *         Always returns HTTP code 200(OK).<br/>
+     * </p>
+     *
+     * @param user_id UserID to be dropped
+     * @return HTTP/OK (200)
+     */
+    @DeleteMapping("/cache/users/{user_id}")
+    ResponseEntity<?> deleteCacheUser(@PathVariable Integer user_id) {
+        bookingService.invalidateUser(user_id);
+        return new ResponseEntity<>(HttpStatus.OK);
+    }
+
+    /**
+     * <b>DELETE /cache/users</b><br/><br/>
+     * <p>
+     *         Invoked by User service on deletion of all users, to clear the cache of validated users.
+     *         Always returns HTTP code 200(OK).<br/>
+     * </p>
+     *
+     * @return HTTP/OK (200)
+     */
+    @DeleteMapping("/cache/users")
+    ResponseEntity<?> deleteCacheUsers() {
+        bookingService.invalidateUser(null);
+        return new ResponseEntity<>(HttpStatus.OK);
+    }
+
+    ////////////////////////////////////// Helper methods //////////////////////////////////////
+    static ResponseEntity<StreamingResponseBody> ndjsonResponse(StreamingResponseBody body) {
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+
+    /**
+     * <b>Paging and streaming of list endpoints</b><br/><br/>
+     * <p>
+     *         With <i>?after=&lt;id&gt;&amp;limit=&lt;n&gt;</i> (either one), a list endpoint returns at most limit rows
+     *         with id greater than after, by ascending id. A non-empty page comes with a Link header with
+     *         rel="next" giving the URI of the following page; an empty page marks the end of the list. Pages are
+     *         not a snapshot: booking ids are reserved in blocks and not committed in id order, so a booking
+     *         committed after a page was read may fall behind its last id and is only listed from the start.<br/><br/>
+     *
+     *         With <i>Accept: application/x-ndjson</i>, all the rows with id greater than after are streamed, one
+     *         JSON object per line, as they are read from the database.<br/>
+     * </p>
+     */
+    static <T> ResponseEntity<?> pageResponse(List<T> page, Function<T, Integer> id_of) {
+        if (page.isEmpty()) {
+            return ResponseEntity.ok(page);
         }
+        String next = ServletUriComponentsBuilder.fromCurrentRequest()
+                .replaceQueryParam("after", id_of.apply(page.get(page.size() - 1)))
+                .build().toUriString();
+        return ResponseEntity.ok().header(HttpHeaders.LINK, "<"+next+">; rel=\"next\"").body(page);
     }
 }
@@ -0,0 +1,15 @@
+package com.iisc.csa.pods.projects.booking.exception;
+
+import lombok.Getter;
+import org.springframework.http.HttpStatusCode;
+
+@Getter
+public class BookingForwardException extends RuntimeException {
+    // Status answered by the replica owning the show, or 503 if it could not be reached
+    private final HttpStatusCode status;
+
+    public BookingForwardException(String owner_uri, HttpStatusCode status_) {
+        super("Booking forwarded to "+owner_uri+" failed with "+status_);
+        this.status = status_;
+    }
+}
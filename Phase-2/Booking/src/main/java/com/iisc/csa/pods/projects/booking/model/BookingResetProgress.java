@@ -0,0 +1,62 @@
+/**
+ * Model for BookingResetProgress JPA entity.
+ */
+package com.iisc.csa.pods.projects.booking.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * JPA Model class for progress information of the booking reset pipeline (DELETE /bookings).<br/><br/>
+ *
+ * A single row, kept on the first Booking-Database shard, is updated as pages of bookings are cancelled, so that
+ * any replica reports the progress of a reset and resumes a failed one from its cursor, also after a restart.
+ */
+@Entity
+@Table(name="booking_reset_progress")
+@Setter
+@Getter
+public class BookingResetProgress {
+    // Status values of the reset
+    public static final String STATUS_IDLE = "idle";
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_COMPLETED = "completed";
+    public static final String STATUS_FAILED = "failed";
+
+    // ID of the single progress row
+    public static final Integer PROGRESS_ID = 1;
+
+    @Id
+    @JsonIgnore
+    Integer id = PROGRESS_ID;
+
+    @Column (name = "status")
+    String status = STATUS_IDLE;
+
+    @Column (name = "started_at")
+    Long started_at;       // epoch milliseconds
+
+    @Column (name = "finished_at")
+    Long finished_at;      // epoch milliseconds
+
+    /**
+     * Bookings with id up to cursor have been processed
+     */
+    @Column (name = "reset_cursor")
+    Integer cursor = 0;
+
+    @Column (name = "pages")
+    Integer pages = 0;
+
+    @Column (name = "bookings_cancelled")
+    Integer bookings_cancelled = 0;
+
+    @Column (name = "error")
+    String error;
+
+    public boolean isResumable() {
+        return STATUS_FAILED.equals(this.status);
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Model for a pre-serialized snapshot of a catalog response.
+ */
+package com.iisc.csa.pods.projects.booking.model;
+
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * Immutable JSON encoding of a catalog list, optionally along with its gzip encoding, and their entity tags.<br/><br/>
+ *
+ * The source list is kept so that a snapshot can be checked against the list it was built from.
+ */
+@Getter
+public class CatalogSnapshot {
+    private final List<?> source;
+    private final byte[] json;
+    private final byte[] gzip;        // null if gzip encoding is disabled
+    private final String etag;        // strong ETag of the JSON encoding, quoted
+    private final String gzip_etag;   // strong ETag of the gzip encoding, quoted
+
+    public CatalogSnapshot(List<?> source_, byte[] json_, byte[] gzip_, String tag_) {
+        this.source = source_;
+        this.json = json_;
+        this.gzip = gzip_;
+        this.etag = "\""+tag_+"\"";
+        this.gzip_etag = "\""+tag_+"-gzip\"";
+    }
+
+    /**
+     * @param if_none_match value of If-None-Match request header, may be null
+     * @return true if the header lists either encoding of the snapshot, or is *
+     */
+    public boolean matches(String if_none_match) {
+        if (if_none_match == null) {
+            return false;
+        }
+        for (String tag : if_none_match.split(",")) {
+            // If-None-Match uses weak comparison
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag) || tag.equals(gzip_etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -13,7 +13,10 @@ import lombok.Setter;
  */
 @Entity
 @Data
-@Table(name = "Show")
+@Table(name = "Show", indexes = {
+        // Shows of a theatre
+        @Index(name = "idx_show_theatre_id", columnList = "theatre_id")
+})
 @Getter
 @Setter
 public class Show {
@@ -0,0 +1,62 @@
+/**
+ * Model for WalletDeadLetter JPA entity.
+ */
+package com.iisc.csa.pods.projects.booking.model;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * JPA Model class for wallet operations which could not be applied by Wallet service within the
+ * configured number of attempts. These are kept for inspection and manual replay.
+ */
+@Entity
+@Table(name="wallet_dead_letter")
+@Setter
+@Getter
+public class WalletDeadLetter {
+    /**
+     * Primary key - same as ID of the outbox entry moved here
+     */
+    @Id
+    Integer id;
+
+    @Column (name = "idempotency_key")
+    String idempotency_key;
+
+    @Column (name = "user_id")
+    Integer user_id;
+
+    @Column (name = "action")
+    String action;
+
+    @Column (name = "amount")
+    Integer amount;
+
+    @Column (name = "attempts")
+    Integer attempts;
+
+    @Column (name = "created_at")
+    Long created_at;
+
+    @Column (name = "failed_at")
+    Long failed_at;
+
+    @Column (name = "last_error")
+    String last_error;
+
+    // Constructors
+    public WalletDeadLetter(){}
+    public WalletDeadLetter(WalletOutbox entry) {
+        this.id = entry.getId();
+        this.idempotency_key = entry.getIdempotency_key();
+        this.user_id = entry.getUser_id();
+        this.action = entry.getAction();
+        this.amount = entry.getAmount();
+        this.attempts = entry.getAttempts();
+        this.created_at = entry.getCreated_at();
+        this.failed_at = System.currentTimeMillis();
+        this.last_error = entry.getLast_error();
+    }
+}
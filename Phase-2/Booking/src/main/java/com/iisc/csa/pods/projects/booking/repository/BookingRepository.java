@@ -5,19 +5,69 @@ package com.iisc.csa.pods.projects.booking.repository;
 
 import com.iisc.csa.pods.projects.booking.model.Booking;
 import com.iisc.csa.pods.projects.booking.model.Show;
+import jakarta.persistence.QueryHint;
 import jakarta.transaction.Transactional;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 
 import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.HibernateHints.HINT_FETCH_SIZE;
 
 public interface BookingRepository extends JpaRepository<Booking, Integer> {
     <S extends Booking> S save (S entity);
 
+    /**
+     * Result codes of BOOK_SEATS, for bookings which were not made
+     */
+    int BOOK_SEATS_SHOW_NOT_FOUND = -1;
+    int BOOK_SEATS_SEATS_UNAVAILABLE = -2;
+    int BOOK_SEATS_INVALID_SEATS = -3;
+
+    /**
+     * Take seats from a show and insert the booking with one call to the BOOK_SEATS function registered by
+     * Booking-Database, within the transaction of the caller.
+     *
+     * @return id of the booking; one of the BOOK_SEATS_* codes if not booked
+     */
+    @Query(value = "SELECT BOOK_SEATS(:show_id, :user_id, :seats)", nativeQuery = true)
+    int bookSeats(Integer show_id, Integer user_id, Integer seats);
+
     @Query("SELECT b FROM Booking b WHERE b.user_id = :user_id")
     List<Booking> findByUser_id(Integer user_id);
 
+    @Query("SELECT b FROM Booking b JOIN FETCH b.show_id WHERE b.user_id = :user_id")
+    List<Booking> findWithShowByUser_id(Integer user_id);
+
+    /**
+     * Page of bookings of a user following a booking id, by ascending id
+     */
+    @Query("SELECT b FROM Booking b JOIN FETCH b.show_id WHERE b.user_id = :user_id AND b.id > :after ORDER BY b.id")
+    List<Booking> findPageWithShowByUser_idAfter(Integer user_id, Integer after, Pageable page);
+
+    /**
+     * Bookings of a user following a booking id, by ascending id, fetched from the database as the stream is consumed
+     */
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "100"))
+    @Query("SELECT b FROM Booking b JOIN FETCH b.show_id WHERE b.user_id = :user_id AND b.id > :after ORDER BY b.id")
+    Stream<Booking> streamWithShowByUser_idAfter(Integer user_id, Integer after);
+
+    @Query("SELECT b FROM Booking b JOIN FETCH b.show_id WHERE b.user_id = :user_id AND b.show_id.id = :show_id")
+    List<Booking> findWithShowByUser_idAndShow_id(Integer user_id, Integer show_id);
+
+    @Query("SELECT b FROM Booking b JOIN FETCH b.show_id WHERE b.id = :id")
+    List<Booking> findWithShowById(Integer id);
+
+    @Query("SELECT b FROM Booking b JOIN FETCH b.show_id WHERE b.id > :after ORDER BY b.id")
+    List<Booking> findWithShowAfter(Integer after, Pageable page);
+
+    @Query("SELECT DISTINCT b.show_id.id FROM Booking b WHERE b.user_id = :user_id")
+    List<Integer> findShowIdsByUser_id(Integer user_id);
+
     @Query("SELECT b from Booking b WHERE b.user_id = :user_id AND b.show_id = :show_id")
     List<Booking> findAllByUser_idAndShow_id(Integer user_id, Show show_id);
 
@@ -32,6 +82,10 @@ public interface BookingRepository extends JpaRepository<Booking, Integer> {
     @Query("DELETE FROM Booking b WHERE b.id = :id")
     void deleteById(Integer id);
 
+    @Modifying
+    @Query("DELETE FROM Booking b WHERE b.id IN :ids")
+    int deleteAllByIdIn(List<Integer> ids);
+
     @Transactional
     @Modifying
     @Query("DELETE FROM Booking b WHERE b.user_id = :user_id")
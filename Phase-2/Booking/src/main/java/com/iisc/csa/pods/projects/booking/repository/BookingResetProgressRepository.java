@@ -0,0 +1,10 @@
+/**
+ * Repository for JPA BookingResetProgress Entity management
+ */
+package com.iisc.csa.pods.projects.booking.repository;
+
+import com.iisc.csa.pods.projects.booking.model.BookingResetProgress;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface BookingResetProgressRepository extends JpaRepository<BookingResetProgress, Integer> {
+}
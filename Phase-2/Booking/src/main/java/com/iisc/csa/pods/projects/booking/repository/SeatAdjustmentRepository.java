@@ -0,0 +1,25 @@
+/**
+ * Repository for JPA SeatAdjustment Entity management
+ */
+package com.iisc.csa.pods.projects.booking.repository;
+
+import com.iisc.csa.pods.projects.booking.model.SeatAdjustment;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface SeatAdjustmentRepository extends JpaRepository<SeatAdjustment, Integer> {
+    /**
+     * Pending adjustments of the shows owned by a replica, in the order they are to be applied.
+     */
+    @Query("SELECT a FROM SeatAdjustment a WHERE a.owner_replica = :owner_replica ORDER BY a.id")
+    List<SeatAdjustment> findByOwner_replica(Integer owner_replica, Pageable page);
+
+    @Modifying
+    @Query("DELETE FROM SeatAdjustment a WHERE a.id IN :ids")
+    int deleteAllByIdIn(Collection<Integer> ids);
+}
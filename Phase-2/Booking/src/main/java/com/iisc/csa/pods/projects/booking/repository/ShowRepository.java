@@ -4,10 +4,18 @@
 package com.iisc.csa.pods.projects.booking.repository;
 
 import com.iisc.csa.pods.projects.booking.model.Show;
+import jakarta.persistence.QueryHint;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.HibernateHints.HINT_FETCH_SIZE;
 
 public interface ShowRepository extends JpaRepository<Show, Integer> {
     <S extends Show> S save (S entity);
@@ -15,6 +23,49 @@ public interface ShowRepository extends JpaRepository<Show, Integer> {
     @Query("SELECT b FROM Show b WHERE b.theatre_id = :theater_id")
     List<Show> findByTheatre_id(Integer theater_id);
 
+    /**
+     * Page of shows of a theatre following a show id, by ascending id
+     */
+    @Query("SELECT s FROM Show s WHERE s.theatre_id = :theater_id AND s.id > :after ORDER BY s.id")
+    List<Show> findPageByTheatre_idAfter(Integer theater_id, Integer after, Pageable page);
+
+    /**
+     * Shows of a theatre following a show id, by ascending id, fetched from the database as the stream is consumed
+     */
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "100"))
+    @Query("SELECT s FROM Show s WHERE s.theatre_id = :theater_id AND s.id > :after ORDER BY s.id")
+    Stream<Show> streamByTheatre_idAfter(Integer theater_id, Integer after);
+
     @Query("SELECT b from Show b WHERE b.id = :show_id")
     Show findByShowId(Integer show_id);
+
+    /**
+     * Atomically return seats to a show.
+     *
+     * @return number of rows updated
+     */
+    @Modifying
+    @Query("UPDATE Show s SET s.seats_available = s.seats_available + :seats WHERE s.id = :show_id")
+    int releaseSeats(Integer show_id, Integer seats);
+
+    /**
+     * Apply a net change in seats to a show, as folded from the seat adjustment journal.
+     *
+     * @return number of rows updated
+     */
+    @Modifying
+    @Query("UPDATE Show s SET s.seats_available = s.seats_available + :delta WHERE s.id = :show_id")
+    int adjustSeats(Integer show_id, Integer delta);
+
+    /**
+     * Seats available of shows, as rows of [id, seats_available]
+     */
+    @Query("SELECT s.id, s.seats_available FROM Show s WHERE s.id IN :show_ids")
+    List<Object[]> findSeatsByIds(Collection<? extends Integer> show_ids);
+
+    /**
+     * Page of all shows following a show id, by ascending id
+     */
+    @Query("SELECT s FROM Show s WHERE s.id > :after ORDER BY s.id")
+    List<Show> findPageAfter(Integer after, Pageable page);
 }
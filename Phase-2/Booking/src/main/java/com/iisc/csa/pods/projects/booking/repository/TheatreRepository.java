@@ -4,16 +4,36 @@
 package com.iisc.csa.pods.projects.booking.repository;
 
 import com.iisc.csa.pods.projects.booking.model.Theatre;
+import jakarta.persistence.QueryHint;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.HibernateHints.HINT_FETCH_SIZE;
 
 @Repository
 public interface TheatreRepository extends JpaRepository<Theatre, Integer> {
     <S extends Theatre> S save(S entity);
 
+    /**
+     * Page of theatres following a theatre id, by ascending id
+     */
+    @Query("SELECT t FROM Theatre t WHERE t.id > :after ORDER BY t.id")
+    List<Theatre> findPageAfter(Integer after, Pageable page);
+
+    /**
+     * Theatres following a theatre id, by ascending id, fetched from the database as the stream is consumed
+     */
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "100"))
+    @Query("SELECT t FROM Theatre t WHERE t.id > :after ORDER BY t.id")
+    Stream<Theatre> streamAfter(Integer after);
+
 //    @Query("SELECT b from Theatre b WHERE b.id = :id")
 //    Theatre findById (Integer id);
 }
@@ -0,0 +1,10 @@
+/**
+ * Repository for JPA WalletDeadLetter Entity management
+ */
+package com.iisc.csa.pods.projects.booking.repository;
+
+import com.iisc.csa.pods.projects.booking.model.WalletDeadLetter;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface WalletDeadLetterRepository extends JpaRepository<WalletDeadLetter, Integer> {
+}
@@ -0,0 +1,31 @@
+/**
+ * Repository for JPA WalletOutbox Entity management
+ */
+package com.iisc.csa.pods.projects.booking.repository;
+
+import com.iisc.csa.pods.projects.booking.model.WalletOutbox;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface WalletOutboxRepository extends JpaRepository<WalletOutbox, Integer> {
+    @Query("SELECT o FROM WalletOutbox o WHERE o.next_attempt_at <= :now ORDER BY o.id")
+    List<WalletOutbox> findDue(Long now, Pageable page);
+
+    @Modifying
+    @Query("UPDATE WalletOutbox o SET o.next_attempt_at = :claimed_until WHERE o.id IN :ids AND o.next_attempt_at <= :now")
+    int claim(Collection<Integer> ids, Long now, Long claimed_until);
+
+    @Modifying
+    @Query("UPDATE WalletOutbox o SET o.attempts = :attempts, o.next_attempt_at = :next_attempt_at, " +
+            "o.last_error = :last_error WHERE o.id = :id")
+    int recordFailure(Integer id, Integer attempts, Long next_attempt_at, String last_error);
+
+    @Modifying
+    @Query("DELETE FROM WalletOutbox o WHERE o.id IN :ids")
+    int deleteAllByIdIn(Collection<Integer> ids);
+}
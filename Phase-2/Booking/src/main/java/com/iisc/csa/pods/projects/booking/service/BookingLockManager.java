@@ -0,0 +1,165 @@
+/**
+ * Striped locking layer used by the service module to serialize booking operations.
+ */
+package com.iisc.csa.pods.projects.booking.service;
+
+import com.iisc.csa.pods.projects.booking.exception.LockAcquisitionException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Lock manager holding two sets of lock stripes, one keyed by show_id and one keyed by user_id.<br/><br/>
+ *
+ * Bookings only need the stripe of the show being booked, so requests for unrelated shows proceed
+ * in parallel. Cancellations take the stripe of the user followed by the stripes of every show
+ * whose seats are returned.<br/><br/>
+ *
+ * Deadlock avoidance: user stripes are always taken before show stripes and stripes within a set are
+ * taken in ascending index order. Each acquisition waits at most <i>booking.lock.timeout-ms</i>, after which
+ * already held stripes are released and LockAcquisitionException is thrown.
+ */
+@Component
+public class BookingLockManager {
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${booking.lock.stripes:64}")
+    private int stripeCount;
+
+    @Value("${booking.lock.timeout-ms:5000}")
+    private long timeoutMs;
+
+    // Lock stripes for show and user keys
+    private ReentrantLock[] showStripes;
+    private ReentrantLock[] userStripes;
+
+    // Contention metrics
+    private Counter acquisitions;
+    private Counter contended;
+    private Counter timeouts;
+    private Timer waitTimer;
+
+    @PostConstruct
+    void init() {
+        this.showStripes = new ReentrantLock[stripeCount];
+        this.userStripes = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            this.showStripes[i] = new ReentrantLock();
+            this.userStripes[i] = new ReentrantLock();
+        }
+        this.acquisitions = meterRegistry.counter("booking.lock.acquisitions");
+        this.contended = meterRegistry.counter("booking.lock.contended");
+        this.timeouts = meterRegistry.counter("booking.lock.timeouts");
+        this.waitTimer = meterRegistry.timer("booking.lock.wait");
+        meterRegistry.gauge("booking.lock.queued", this, BookingLockManager::queuedThreads);
+    }
+
+    ////////////////////////////////////// Locking methods //////////////////////////////////////
+
+    /**
+     * Run an action while holding the stripe of a show.
+     *
+     * @param show_id show id to be locked
+     * @param action action to be performed
+     * @return result of action
+     */
+    public <T> T withShowLock(Integer show_id, Supplier<T> action) {
+        List<ReentrantLock> locks = new ArrayList<>();
+        locks.add(showStripes[stripeOf(show_id)]);
+        return withLocks(locks, "show "+show_id, action);
+    }
+
+    /**
+     * Run a cancellation action while holding the stripe of the user and the stripes of the shows touched.
+     *
+     * @param user_id user whose bookings are cancelled
+     * @param show_ids shows to which seats are returned
+     * @param action action to be performed
+     * @return result of action
+     */
+    public <T> T withUserLock(Integer user_id, Collection<Integer> show_ids, Supplier<T> action) {
+        List<ReentrantLock> locks = new ArrayList<>();
+        locks.add(userStripes[stripeOf(user_id)]);
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (Integer show_id : show_ids) {
+            stripes.add(stripeOf(show_id));
+        }
+        for (Integer stripe : stripes) {
+            locks.add(showStripes[stripe]);
+        }
+        return withLocks(locks, "user "+user_id, action);
+    }
+
+    /**
+     * Run an action while holding every show stripe, used for resetting all bookings.
+     *
+     * @param action action to be performed
+     * @return result of action
+     */
+    public <T> T withAllShowLocks(Supplier<T> action) {
+        return withLocks(List.of(showStripes), "all shows", action);
+    }
+
+    ////////////////////////////////////// Helper methods //////////////////////////////////////
+
+    private int stripeOf(Integer key) {
+        return Math.floorMod(key == null ? 0 : key.hashCode(), stripeCount);
+    }
+
+    private <T> T withLocks(List<ReentrantLock> locks, String resource, Supplier<T> action) {
+        List<ReentrantLock> held = new ArrayList<>(locks.size());
+        try {
+            for (ReentrantLock lock : locks) {
+                acquire(lock, resource);
+                held.add(lock);
+            }
+            return action.get();
+        } finally {
+            for (int i = held.size() - 1; i >= 0; i--) {
+                held.get(i).unlock();
+            }
+        }
+    }
+
+    private void acquire(ReentrantLock lock, String resource) {
+        acquisitions.increment();
+        if (lock.tryLock()) {
+            return;
+        }
+        contended.increment();
+        long start = System.nanoTime();
+        boolean locked;
+        try {
+            locked = lock.tryLock(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            locked = false;
+        }
+        waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (!locked) {
+            timeouts.increment();
+            throw new LockAcquisitionException(resource, timeoutMs);
+        }
+    }
+
+    private double queuedThreads() {
+        int queued = 0;
+        for (int i = 0; i < stripeCount; i++) {
+            queued += showStripes[i].getQueueLength() + userStripes[i].getQueueLength();
+        }
+        return queued;
+    }
+}
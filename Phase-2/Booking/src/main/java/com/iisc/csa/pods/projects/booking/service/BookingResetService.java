@@ -0,0 +1,219 @@
+/**
+ * Service layer for resetting all the bookings (DELETE /bookings).
+ */
+package com.iisc.csa.pods.projects.booking.service;
+
+import com.iisc.csa.pods.projects.booking.exception.UnmetBookingRequirementException;
+import com.iisc.csa.pods.projects.booking.exception.WalletOperationException;
+import com.iisc.csa.pods.projects.booking.model.Booking;
+import com.iisc.csa.pods.projects.booking.model.BookingResetProgress;
+import com.iisc.csa.pods.projects.booking.repository.BookingRepository;
+import com.iisc.csa.pods.projects.booking.repository.BookingResetProgressRepository;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Streaming reset pipeline for cancelling all the bookings.<br/><br/>
+ *
+ * Bookings are read in pages of <i>booking.reset.page-size</i> by ascending id, so memory use does not depend
+ * on the size of Booking table. Bookings of a page are partitioned by user, so that the bookings of a user on a page
+ * are refunded together, and the partitions are cancelled in parallel by at most <i>booking.reset.parallelism</i>
+ * threads. Each partition runs in its own transaction and adds one refund per user to the wallet outbox; seats of
+ * shows are returned in ascending show order, so partitions returning seats of the same show do not deadlock.<br/><br/>
+ *
+ * The id up to which bookings have been processed is kept as the cursor of BookingResetProgress, saved on the first
+ * shard after each page. Committed partitions are removed from Booking table, so a failed reset resumes from the
+ * cursor when invoked again, on any replica and after a restart; the progress is reported by any replica.<br/><br/>
+ *
+ * Shards are reset one after the other, in shard order, with a single cursor covering all shards.<br/><br/>
+ *
+ * The show locks held by the reset only cover this replica, and booking ids are not committed in ascending order,
+ * so bookings may be committed behind the cursor while a pass runs. Passes are hence repeated from the first
+ * booking until a pass finds no bookings, at most <i>booking.reset.max-passes</i> times, after which the reset
+ * fails and can be resumed.
+ */
+@Service
+public class BookingResetService {
+    @Autowired
+    private BookingRepository bookingRepository;
+    @Autowired
+    private BookingResetProgressRepository progressRepository;
+    @Autowired
+    private BookingService bookingService;
+    @Autowired
+    private BookingLockManager lockManager;
+    @Autowired
+    private WalletOutboxService walletOutboxService;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    @Autowired
+    private ShardRouter shardRouter;
+    @Autowired
+    @Qualifier("resetExecutor")
+    private AsyncTaskExecutor executor;
+
+    @Value("${booking.reset.page-size:500}")
+    private int pageSize;
+
+    @Value("${booking.reset.parallelism:4}")
+    private int parallelism;
+
+    @Value("${booking.reset.max-passes:5}")
+    private int maxPasses;
+
+    private TransactionTemplate transactionTemplate;
+
+    @PostConstruct
+    void init() {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+    }
+
+    ////////////////////////////////////// Service methods //////////////////////////////////////
+
+    /**
+     * Method to obtain progress of the current or last reset
+     * @return reset progress
+     */
+    public BookingResetProgress getProgress() {
+        return this.shardRouter.onShard(0, () -> this.progressRepository.findById(BookingResetProgress.PROGRESS_ID)
+                .orElseGet(BookingResetProgress::new));
+    }
+
+    /**
+     * Delete all the bookings, returning seats and refunding wallets.
+     * All show locks of this replica are held for the duration of the reset.
+     *
+     * @return progress of the completed reset
+     * @throws WalletOperationException if a partition could not be cancelled; the reset can be resumed
+     * @throws UnmetBookingRequirementException if bookings were still found after the last pass
+     */
+    public BookingResetProgress resetBookings() {
+        return this.lockManager.withAllShowLocks(this::runReset);
+    }
+
+    ////////////////////////////////////// Helper methods //////////////////////////////////////
+
+    private BookingResetProgress runReset() {
+        BookingResetProgress last = this.getProgress();
+        BookingResetProgress current = last.isResumable() ? last : new BookingResetProgress();
+        current.setStatus(BookingResetProgress.STATUS_RUNNING);
+        current.setStarted_at(System.currentTimeMillis());
+        current.setFinished_at(null);
+        current.setError(null);
+        this.saveProgress(current);
+
+        // The first pass resumes from the cursor; later passes start over, until a pass finds no bookings
+        boolean found = this.runPass(current);
+        for (int pass = 1; found && pass < maxPasses; pass++) {
+            current.setCursor(0);
+            found = this.runPass(current);
+        }
+        if (found) {
+            current.setCursor(0);
+            this.failReset(current, "Bookings still found after "+maxPasses+" passes");
+            throw new UnmetBookingRequirementException("Bookings still being made after "+maxPasses+
+                    " passes of reset");
+        }
+        current.setStatus(BookingResetProgress.STATUS_COMPLETED);
+        current.setFinished_at(System.currentTimeMillis());
+        this.saveProgress(current);
+        return current;
+    }
+
+    /**
+     * Cancel the bookings of all shards after the cursor of progress
+     * @return true if any bookings were found
+     */
+    private boolean runPass(BookingResetProgress current) {
+        boolean found = false;
+        for (int shard = 0; shard < this.shardRouter.getShardCount(); shard++) {
+            int current_shard = shard;
+            while (true) {
+                List<Booking> page = this.shardRouter.onShard(current_shard, () ->
+                        this.bookingRepository.findWithShowAfter(current.getCursor(), PageRequest.ofSize(pageSize)));
+                if (page.isEmpty()) {
+                    break;
+                }
+                found = true;
+                try {
+                    cancelPage(current_shard, page);
+                } catch (RuntimeException e) {
+                    System.out.println("resetBookings: Cancelling page after "+current.getCursor()+" failed "+e);
+                    this.failReset(current, e.getMessage());
+                    throw new WalletOperationException("Reset of bookings after "+current.getCursor()+" failed");
+                }
+                current.setCursor(page.get(page.size() - 1).getId());
+                current.setPages(current.getPages() + 1);
+                current.setBookings_cancelled(current.getBookings_cancelled() + page.size());
+                this.saveProgress(current);
+            }
+        }
+        return found;
+    }
+
+    private void failReset(BookingResetProgress progress, String error) {
+        progress.setStatus(BookingResetProgress.STATUS_FAILED);
+        progress.setError(error);
+        progress.setFinished_at(System.currentTimeMillis());
+        this.saveProgress(progress);
+    }
+
+    private void saveProgress(BookingResetProgress progress) {
+        this.shardRouter.onShard(0, () -> this.transactionTemplate.execute(status ->
+                this.progressRepository.save(progress)));
+    }
+
+    /**
+     * Cancel a page of bookings of a shard, partitioned by user, in parallel.
+     * Waits for all partitions so that the cursor only moves past completed pages.
+     */
+    private void cancelPage(int shard, List<Booking> page) {
+        List<List<Booking>> partitions = new ArrayList<>();
+        for (int i = 0; i < parallelism; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (Booking booking : page) {
+            partitions.get(Math.floorMod(booking.getUser_id(), parallelism)).add(booking);
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (List<Booking> partition : partitions) {
+            if (!partition.isEmpty()) {
+                futures.add(this.executor.submit(() -> this.shardRouter.onShard(shard, () ->
+                        this.walletOutboxService.dispatchAfter(() -> this.transactionTemplate.execute(status -> {
+                            this.bookingService.CancelBookings(partition);
+                            return null;
+                        })))));
+            }
+        }
+
+        RuntimeException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                failure = e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new RuntimeException(e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
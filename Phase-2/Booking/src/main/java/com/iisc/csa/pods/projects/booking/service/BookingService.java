@@ -7,23 +7,56 @@ package com.iisc.csa.pods.projects.booking.service;
 import com.iisc.csa.pods.projects.booking.exception.*;
 import com.iisc.csa.pods.projects.booking.model.Booking;
 import com.iisc.csa.pods.projects.booking.model.BookingPayload;
+import com.iisc.csa.pods.projects.booking.model.CatalogSnapshot;
 import com.iisc.csa.pods.projects.booking.model.Show;
 import com.iisc.csa.pods.projects.booking.model.Theatre;
+import com.iisc.csa.pods.projects.booking.model.WalletOutbox;
 import com.iisc.csa.pods.projects.booking.repository.BookingRepository;
 import com.iisc.csa.pods.projects.booking.repository.ShowRepository;
 import com.iisc.csa.pods.projects.booking.repository.TheatreRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.*;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @Service
 @Transactional(isolation = Isolation.SERIALIZABLE)
@@ -36,6 +69,102 @@ public class BookingService {
     @Autowired
     private BookingRepository bookingRepository;
 
+    // Read-through cache of theatres and shows, in front of their repositories
+    @Autowired
+    private CatalogCache catalogCache;
+
+    // Shared pooled client for calls to User and Wallet services
+    @Autowired
+    private RestTemplate restTemplate;
+    @Autowired
+    private UserValidationCache userValidationCache;
+
+    // Executor for remote user checks run concurrently with the show lookup of a booking
+    @Autowired
+    @Qualifier("validationExecutor")
+    private AsyncTaskExecutor validationExecutor;
+
+    @Value("${booking.validation.timeout-ms:3000}")
+    private long validationTimeoutMs;
+
+    /**
+     * With <i>booking.wallet.holds.enabled</i>, the ticket cost is reserved with a wallet hold concurrently with
+     * taking the seats, and the hold is committed through the wallet outbox once the booking commits, or released
+     * otherwise, rather than debiting the wallet up front and refunding failed bookings. A hold not made within
+     * <i>booking.wallet.hold-timeout-ms</i> fails the booking. Holds left unsettled, e.g. by a crash, are released
+     * by Wallet service after <i>booking.wallet.hold-ttl-ms</i>; a booking whose hold was released before its
+     * commit is charged with a debit instead, and cancelled if the wallet does not cover it.
+     */
+    @Value("${booking.wallet.holds.enabled:false}")
+    private boolean walletHoldsEnabled;
+
+    @Value("${booking.wallet.hold-ttl-ms:60000}")
+    private long walletHoldTtlMs;
+
+    @Value("${booking.wallet.hold-timeout-ms:5000}")
+    private long walletHoldTimeoutMs;
+
+    @Autowired
+    @Qualifier("walletExecutor")
+    private AsyncTaskExecutor walletExecutor;
+
+    // Outbox of refunds, written along with the cancellation of bookings, and of hold commits
+    @Autowired
+    private WalletOutboxService walletOutboxService;
+
+    // In-memory seat counters, used in place of the seat updates of Show table when enabled
+    @Autowired
+    private SeatInventory seatInventory;
+
+    /**
+     * Shards of Booking-Database. Operations on a show, and its bookings, run on the shard of its theatre; lists of
+     * bookings of a user are gathered from all shards.
+     */
+    @Autowired
+    private ShardRouter shardRouter;
+
+    /**
+     * Striped locks replacing the service wide monitor.<br/>
+     *
+     * Locks must be held until the database transaction commits, hence the locked methods are run outside of the
+     * class level transaction and open their own transaction through transactionTemplate once the locks are held.<br/><br/>
+     *
+     * These locks only cover a single replica. Seat accounting across replicas relies on the conditional updates
+     * of BOOK_SEATS and ShowRepository, hence transactionTemplate runs with READ_COMMITTED isolation so that the conditions are
+     * evaluated against the latest committed seat count rather than failing on concurrent updates.
+     */
+    @Autowired
+    private BookingLockManager lockManager;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    private TransactionTemplate transactionTemplate;
+
+    /**
+     * Pages of list endpoints hold <i>catalog.page.default-limit</i> rows unless a limit is requested, and at most
+     * <i>catalog.page.max-limit</i> rows. Streamed lists are written a row at a time from a scrolled result set,
+     * within a read-only transaction of streamTemplate.
+     */
+    @Value("${catalog.page.default-limit:100}")
+    private int defaultPageLimit;
+
+    @Value("${catalog.page.max-limit:1000}")
+    private int maxPageLimit;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+    @Autowired
+    private ObjectMapper objectMapper;
+    private TransactionTemplate streamTemplate;
+
+    @PostConstruct
+    void init() {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+        this.streamTemplate = new TransactionTemplate(transactionManager);
+        this.streamTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+        this.streamTemplate.setReadOnly(true);
+    }
+
     ////////////////////////////////////// URI Management //////////////////////////////////////
     /**
      * Since each of the microservices that are part of this project have separate in-memory database entities,
@@ -64,16 +193,23 @@ public class BookingService {
         return "http://"+uriStrngWallet+"/wallets/{user_id}";
     }
 
+    private String getWalletHoldsUri () {
+        return "http://"+uriStrngWallet+"/wallets/{user_id}/holds";
+    }
+
+    private String getWalletHoldUri () {
+        return "http://"+uriStrngWallet+"/wallets/{user_id}/holds/{hold_id}";
+    }
+
     ////////////////////////////////////// Service methods //////////////////////////////////////
 
     /**
-     * Method to obtain list of theatres
-     * @return List of theatres
+     * Method to obtain the list of theatres, encoded as JSON
+     * @return snapshot of the list of theatres
      */
-    @Transactional
-    public List<Theatre> getTheatres() {
-        List<Theatre> theatres = this.theatreRepository.findAll();
-        return theatres;
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public CatalogSnapshot getTheatresSnapshot() {
+        return this.catalogCache.getTheatresSnapshot();
     }
 
     /**
@@ -81,12 +217,14 @@ public class BookingService {
      * @param theater_id theatre id
      * @return list of shows
      */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public List<Show> getShowsTheatres (Integer theater_id) {
         // Check for validity of provided theatre_id
-        if (!this.theatreRepository.existsById(theater_id)) {
+        List<Show> shows = this.catalogCache.getTheatreShows(theater_id);
+        if (shows == null) {
             throw new TheatreInfoException(theater_id);
         }
-        return this.showRepository.findByTheatre_id(theater_id);
+        return shows.stream().map(this::withInventorySeats).toList();
     }
 
     /**
@@ -94,55 +232,280 @@ public class BookingService {
      * @param show_id show id
      * @return Show information
      */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public Show getShows (Integer show_id) {
         // Check for validity of show_id prior to fetching details
-        if (!this.showRepository.existsById(show_id)) {
+        Show show = this.catalogCache.getShow(show_id);
+        if (show == null) {
             throw new ShowInfoException(show_id);
         }
-        return this.showRepository.findByShowId(show_id);
+        return this.withInventorySeats(show);
+    }
+
+    /**
+     * Method to obtain a page of theatres
+     * @param after theatre id after which the page starts; null for the first page
+     * @param limit maximum number of theatres; null for the default
+     * @return theatres by ascending id
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public List<Theatre> getTheatresPage(Integer after, Integer limit) {
+        return this.theatreRepository.findPageAfter(after == null ? 0 : after, this.pageOf(limit));
+    }
+
+    /**
+     * Method to obtain a page of shows from theatre
+     * @param theater_id theatre id
+     * @param after show id after which the page starts; null for the first page
+     * @param limit maximum number of shows; null for the default
+     * @return shows by ascending id
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public List<Show> getShowsTheatresPage(Integer theater_id, Integer after, Integer limit) {
+        if (!this.theatreRepository.existsById(theater_id)) {
+            throw new TheatreInfoException(theater_id);
+        }
+        List<Show> shows = this.shardRouter.onShard(this.shardRouter.shardOfTheatre(theater_id), () ->
+                this.showRepository.findPageByTheatre_idAfter(theater_id, after == null ? 0 : after,
+                        this.pageOf(limit)));
+        return shows.stream().map(this::withInventorySeats).toList();
+    }
+
+    /**
+     * Method to obtain a page of Booking information of a user
+     * @param user_id user id to be queried
+     * @param after booking id after which the page starts; null for the first page
+     * @param limit maximum number of bookings; null for the default
+     * @return bookings by ascending id
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public List<Booking> getBookingsUsersPage(Integer user_id, Integer after, Integer limit) {
+        // Booking ids of a shard precede those of later shards, so shards are read in order until the page is full
+        int size = this.pageOf(limit).getPageSize();
+        List<Booking> page = new ArrayList<>();
+        for (int shard = 0; shard < this.shardRouter.getShardCount() && page.size() < size; shard++) {
+            int remaining = size - page.size();
+            page.addAll(this.shardRouter.onShard(shard, () -> this.bookingRepository.findPageWithShowByUser_idAfter(
+                    user_id, after == null ? 0 : after, PageRequest.ofSize(remaining))));
+        }
+        return page;
     }
 
     /**
-     * Method to obtain Booking information of a user
+     * Method to stream theatres as newline delimited JSON
+     * @param after theatre id after which the stream starts; null for all theatres
+     * @return response body writing theatres by ascending id
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public StreamingResponseBody streamTheatres(Integer after) {
+        return out -> this.writeNdjson(() -> this.theatreRepository.streamAfter(after == null ? 0 : after),
+                Function.identity(), out);
+    }
+
+    /**
+     * Method to stream shows from theatre as newline delimited JSON
+     * @param theater_id theatre id
+     * @param after show id after which the stream starts; null for all shows
+     * @return response body writing shows by ascending id
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public StreamingResponseBody streamShowsTheatres(Integer theater_id, Integer after) {
+        if (!this.theatreRepository.existsById(theater_id)) {
+            throw new TheatreInfoException(theater_id);
+        }
+        int shard = this.shardRouter.shardOfTheatre(theater_id);
+        return out -> this.shardRouter.onShard(shard, () -> {
+            this.writeNdjson(() -> this.showRepository.streamByTheatre_idAfter(theater_id, after == null ? 0 : after),
+                    this::withInventorySeats, out);
+            return null;
+        });
+    }
+
+    /**
+     * Method to stream Booking information of a user as newline delimited JSON
+     * @param user_id user id to be queried
+     * @param after booking id after which the stream starts; null for all bookings
+     * @return response body writing bookings by ascending id
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public StreamingResponseBody streamBookingsUsers(Integer user_id, Integer after) {
+        // Shards are streamed in order, so that bookings are written by ascending id
+        return out -> {
+            for (int shard = 0; shard < this.shardRouter.getShardCount(); shard++) {
+                this.shardRouter.onShard(shard, () -> {
+                    this.writeNdjson(() -> this.bookingRepository.streamWithShowByUser_idAfter(user_id,
+                            after == null ? 0 : after), Function.identity(), out);
+                    return null;
+                });
+            }
+        };
+    }
+
+    /**
+     * Method to obtain Booking information of a user, gathered from all shards in parallel
      *
      * @param user_id user id to be queried
      * @return List of booking
      */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public List<Booking> getBookingsUsers(Integer user_id) {
-        return this.bookingRepository.findByUser_id(user_id);
+        List<Booking> bookings = new ArrayList<>();
+        this.shardRouter.scatter(shard -> this.bookingRepository.findByUser_id(user_id)).forEach(bookings::addAll);
+        return bookings;
     }
 
     /**
-     * Transaction method to inssue booking request and communicate to other services too
+     * Transaction method to inssue booking request and communicate to other services too.<br/>
+     *
+     * With the seat inventory enabled, seats are taken with compare-and-set on the counter of the show; the show
+     * lock is still held, so that cancellations and the reset of bookings exclude the booking. Bookings for shows
+     * owned by another replica are forwarded to it.
      * @param bookingreq Booking request information
      */
-    public synchronized void transact(BookingPayload bookingreq){
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void transact(BookingPayload bookingreq){
+        if (this.seatInventory.isEnabled()) {
+            if (!this.seatInventory.owns(bookingreq.getShow_id())) {
+                this.forwardBooking(bookingreq);
+                return;
+            }
+            this.walletOutboxService.dispatchAfter(() -> this.lockManager.withShowLock(bookingreq.getShow_id(),
+                    () -> this.transactionTemplate.execute(status -> {
+                        this.processBooking(bookingreq);
+                        return null;
+                    })));
+            return;
+        }
+        int shard = this.shardOfShow(bookingreq.getShow_id());
+        this.walletOutboxService.dispatchAfter(() -> this.lockManager.withShowLock(bookingreq.getShow_id(),
+                () -> this.shardRouter.onShard(shard, () -> this.transactionTemplate.execute(status -> {
+                    this.processBooking(bookingreq);
+                    return null;
+                }))));
+    }
 
-        // Check for validity of show_id
-        if (!this.showRepository.existsById(bookingreq.getShow_id())) {
-            throw new ShowInfoException(bookingreq.getShow_id());
+    /**
+     * Method to drop a user from the validated user cache, invoked by User service on user deletion
+     * @param user_id user id to be dropped; all users if null
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void invalidateUser(Integer user_id) {
+        if (user_id == null) {
+            this.userValidationCache.invalidateAll();
+        } else {
+            this.userValidationCache.invalidate(user_id);
         }
+    }
 
-        // Check if the user_id is a valid one by RestAPI call to User service
-        try {
-            RestTemplate restTemplate = new RestTemplate();
-            // Since each of the microservices in this project have separate in-memory database entities,
-            // interaction between these microservices need to be done over HTTP/Rest request.
-            // URIs for the doing the same.
-            String user_check_uri = getUserCheckUri();
-            restTemplate.getForObject(user_check_uri, String.class, bookingreq.getUser_id());
-        } catch (HttpClientErrorException e) {
-            if (e.getStatusCode().is4xxClientError()) {
-                System.out.println("User check failed");
-                throw new UserValidationException(bookingreq.getUser_id());
+    /**
+     * Method to delete bookings from a user, with one transaction per shard holding bookings of the user
+     * @param user_id
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void deleteUsers(Integer user_id) {
+        List<List<Integer>> show_ids_per_shard = this.shardRouter.scatter(shard ->
+                this.bookingRepository.findShowIdsByUser_id(user_id));
+        boolean has_bookings = show_ids_per_shard.stream().anyMatch(show_ids -> !show_ids.isEmpty());
+        for (int shard = 0; shard < show_ids_per_shard.size(); shard++) {
+            List<Integer> show_ids = show_ids_per_shard.get(shard);
+            // Shard 0 is tried when the user has no bookings, so that the user is reported as not found
+            if (has_bookings ? show_ids.isEmpty() : shard > 0) {
+                continue;
             }
+            int current = shard;
+            // Shows booked by the user after they were read are not locked, hence the cancellation is retried with
+            // the shows read again until they are all locked
+            while (!this.cancelUserBookingsOnShard(user_id, show_ids, current)) {
+                show_ids = this.shardRouter.onShard(current, () -> this.bookingRepository.findShowIdsByUser_id(user_id));
+            }
+        }
+    }
+
+    /**
+     * Method to delete booking from user for a given show
+     * @param user_id
+     * @param show_id
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void deleteUsersShows(Integer user_id, Integer show_id){
+        int shard = this.shardOfShow(show_id);
+        this.walletOutboxService.dispatchAfter(() -> this.lockManager.withUserLock(user_id, List.of(show_id),
+                () -> this.shardRouter.onShard(shard, () -> this.transactionTemplate.execute(status -> {
+                    this.cancelUserShowBookings(user_id, show_id);
+                    return null;
+                }))));
+    }
+
+    /**
+     * Method cancelling the booking of a wallet hold commit which Wallet service could neither commit, the hold
+     * being released or unknown, nor replace with a debit. The seats are returned and no refund is made, as the
+     * ticket cost was never charged. Invoked by the wallet outbox, outside of its transactions.
+     * @param entry commit_hold operation of the booking, along with its shard
+     * @return false if the booking is no longer there, e.g. cancelled by the user and refunded
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public boolean cancelUnpaidBooking(WalletOutbox entry) {
+        int shard = entry.getShard();
+        List<Booking> bookings = this.shardRouter.onShard(shard, () -> this.transactionTemplate.execute(status ->
+                this.bookingRepository.findWithShowById(entry.getBooking_id())));
+        if (bookings.isEmpty()) {
+            return false;
         }
+        return this.lockManager.withShowLock(bookings.get(0).getShow_id().getId(),
+                () -> this.shardRouter.onShard(shard, () -> this.transactionTemplate.execute(status -> {
+                    // Fetched again with the show lock held, excluding a concurrent cancellation by the user
+                    List<Booking> unpaid = this.bookingRepository.findWithShowById(entry.getBooking_id());
+                    if (unpaid.isEmpty() || !unpaid.get(0).getUser_id().equals(entry.getUser_id())) {
+                        return false;
+                    }
+                    this.removeBookings(unpaid);
+                    System.out.println("Booking "+entry.getBooking_id()+" of user "+entry.getUser_id()+
+                            " cancelled, its wallet hold "+entry.getIdempotency_key()+" could not be charged");
+                    return true;
+                })));
+    }
 
-        // Check for availability of seat
-        Show show_details = this.showRepository.findByShowId(bookingreq.getShow_id());
-        if (show_details.getSeats_available() < bookingreq.getSeats_booked()) {
-            throw new UnmetBookingRequirementException("Not enough seats available"+show_details.getSeats_available()+
-                    " for a request of "+bookingreq.getSeats_booked());
+    ////////////////////////////////////// Helper methods //////////////////////////////////////
+    /**
+     * Helper method performing the booking, invoked within a transaction with the show lock held.
+     * @param bookingreq Booking request information
+     */
+    void processBooking(BookingPayload bookingreq){
+
+        // Check if the user_id is a valid one by RestAPI call to User service, unless validated recently. The call
+        // runs concurrently with the show lookup below, and is cancelled if the show cannot be booked.
+        long deadline = System.currentTimeMillis() + validationTimeoutMs;
+        Future<?> user_check = this.userValidationCache.isValidated(bookingreq.getUser_id()) ? null :
+                this.validationExecutor.submit(() -> this.checkUser(bookingreq.getUser_id()));
+        Integer price;
+        try {
+            // Check for validity of show_id and availability of seat; seats are taken atomically once the wallet
+            // is debited, or while the wallet hold is made
+            Integer seats_available;
+            if (this.seatInventory.isEnabled()) {
+                price = this.seatInventory.getPrice(bookingreq.getShow_id());
+                seats_available = this.seatInventory.getSeatsAvailable(bookingreq.getShow_id());
+            } else {
+                Show show_details = this.catalogCache.getShow(bookingreq.getShow_id());
+                if (show_details != null && show_details.getSeats_available() < bookingreq.getSeats_booked()) {
+                    // Seats may have been returned since they were cached
+                    show_details = this.showRepository.findByShowId(bookingreq.getShow_id());
+                }
+                price = show_details == null ? null : show_details.getPrice();
+                seats_available = show_details == null ? null : show_details.getSeats_available();
+            }
+            if (price == null) {
+                throw new ShowInfoException(bookingreq.getShow_id());
+            }
+            if (seats_available < bookingreq.getSeats_booked()) {
+                throw new UnmetBookingRequirementException("Not enough seats available"+
+                        seats_available+" for a request of "+bookingreq.getSeats_booked());
+            }
+            this.awaitUserCheck(user_check, bookingreq.getUser_id(), deadline);
+        } finally {
+            if (user_check != null && !user_check.isDone()) {
+                user_check.cancel(true);
+            }
         }
 
         // Special case handling: Handle 0 booking request case
@@ -151,138 +514,412 @@ public class BookingService {
                     bookingreq.getSeats_booked());
         }
 
-        // Perform wallet transaction
-        Integer ticket_cost = bookingreq.getSeats_booked() * show_details.getPrice();
-        if (!this.WalletTransaction(bookingreq.getUser_id(), true, ticket_cost)) {
+        Integer ticket_cost = bookingreq.getSeats_booked() * price;
+        if (this.walletHoldsEnabled) {
+            // Reserve the ticket cost on the wallet while the seats are taken; the hold is committed through the
+            // outbox along with the booking, and released if the booking does not get committed
+            String hold_id = "hold-"+UUID.randomUUID();
+            long hold_deadline = System.currentTimeMillis() + walletHoldTimeoutMs;
+            Future<Boolean> hold = this.walletExecutor.submit(() ->
+                    this.reserveWalletHold(bookingreq.getUser_id(), ticket_cost, hold_id));
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status != STATUS_COMMITTED) {
+                        releaseWalletHold(bookingreq.getUser_id(), hold_id, hold, hold_deadline);
+                    }
+                }
+            });
+            int booking_id = this.takeSeats(bookingreq);
+            if (!this.awaitWalletHold(hold, hold_id, hold_deadline)) {
+                throw new WalletOperationException("Wallet hold for booking from "+bookingreq.getUser_id() +
+                        "failed for ticket cost"+ticket_cost);
+            }
+            WalletOutbox commit = new WalletOutbox(hold_id, bookingreq.getUser_id(), WalletOutbox.ACTION_COMMIT_HOLD,
+                    ticket_cost);
+            commit.setBooking_id(booking_id);
+            this.walletOutboxService.enqueue(List.of(commit));
+            return;
+        }
+
+        // Perform wallet transaction; the idempotency key makes a retried debit take effect once
+        String debit_key = "debit-"+UUID.randomUUID();
+        if (!this.WalletTransaction(bookingreq.getUser_id(), true, ticket_cost, debit_key)) {
             throw new WalletOperationException("Wallet operation for booking from "+bookingreq.getUser_id() +
                     "failed for ticket cost"+ticket_cost);
         }
+        // Refund the debited amount through the outbox if the booking does not get committed
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status != STATUS_COMMITTED) {
+                    walletOutboxService.compensate(new WalletOutbox("refund-"+debit_key, bookingreq.getUser_id(),
+                            "credit", ticket_cost));
+                }
+            }
+        });
+        this.takeSeats(bookingreq);
+    }
+
+    /**
+     * Helper method taking the seats of a booking and recording it, within the transaction of the booking.
+     * @param bookingreq Booking request information
+     * @return id of the booking
+     */
+    int takeSeats(BookingPayload bookingreq) {
+        this.catalogCache.invalidateSeatsAfterCommit(List.of(bookingreq.getShow_id()));
+        if (!this.seatInventory.isEnabled()) {
+            // Update available seat counter, provided seats were not taken concurrently by another booking, and
+            // Booking table with a single call to the database
+            int booking_id = this.bookingRepository.bookSeats(bookingreq.getShow_id(), bookingreq.getUser_id(),
+                    bookingreq.getSeats_booked());
+            if (booking_id == BookingRepository.BOOK_SEATS_SHOW_NOT_FOUND) {
+                throw new ShowInfoException(bookingreq.getShow_id());
+            }
+            if (booking_id < 0) {
+                throw new UnmetBookingRequirementException("Seats for show "+bookingreq.getShow_id()+
+                        " were taken by a concurrent booking");
+            }
+            return booking_id;
+        }
+
+        // Update available seat counter, provided seats were not taken concurrently by another booking
+        if (!this.seatInventory.reserve(bookingreq.getShow_id(), bookingreq.getSeats_booked())) {
+            throw new UnmetBookingRequirementException("Seats for show "+bookingreq.getShow_id()+
+                    " were taken by a concurrent booking");
+        }
 
         // Update Booking table for the successful booking
-        this.bookingRepository.save(new Booking(show_details, bookingreq.getUser_id(), bookingreq.getSeats_booked()));
+        return this.bookingRepository.save(new Booking(this.showRepository.getReferenceById(bookingreq.getShow_id()),
+                bookingreq.getUser_id(), bookingreq.getSeats_booked())).getId();
+    }
 
-        // Update available seat counter
-        show_details.setSeats_available(show_details.getSeats_available() - bookingreq.getSeats_booked());
-        this.showRepository.save(show_details);
+    /**
+     * Helper method looking up the shard holding a show and its bookings.
+     * @return shard of the theatre of the show; shard 0 for shows not found, where the lookup fails again
+     */
+    int shardOfShow(Integer show_id) {
+        Show show = this.catalogCache.getShow(show_id);
+        return show == null ? 0 : this.shardRouter.shardOfTheatre(show.getTheatre_id());
     }
 
     /**
-     * Method to delete bookings from a user
-     * @param user_id
+     * Helper method bounding the page size requested for a list endpoint.
      */
-    public synchronized void deleteUsers(Integer user_id) {
-        // Sanity check for the user_id parameter
-        if (!this.bookingRepository.existsByUser_id(user_id)){
-            throw new UserValidationException(user_id);
+    PageRequest pageOf(Integer limit) {
+        return PageRequest.ofSize(limit == null ? defaultPageLimit : Math.max(1, Math.min(limit, maxPageLimit)));
+    }
+
+    /**
+     * Helper method writing rows of a scrolled result set as newline delimited JSON. Each row is detached from
+     * the persistence context once written, so that memory use does not depend on the number of rows.
+     * @param rows query opening the result set, run within a read-only transaction
+     * @param view mapping of a row to the object written
+     * @param out response stream
+     */
+    <T> void writeNdjson(Supplier<Stream<T>> rows, Function<T, ?> view, OutputStream out) {
+        this.streamTemplate.executeWithoutResult(status -> {
+            try (Stream<T> stream = rows.get()) {
+                stream.forEach(row -> {
+                    try {
+                        out.write(this.objectMapper.writeValueAsBytes(view.apply(row)));
+                        out.write('\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    this.entityManager.detach(row);
+                });
+            }
+        });
+    }
+
+    /**
+     * Helper method sending a booking for a show owned by another replica to that replica.
+     * @param bookingreq Booking request information
+     * @throws BookingForwardException with the status answered by the owner, or 503 if it could not be reached
+     */
+    void forwardBooking(BookingPayload bookingreq) {
+        String owner_uri = this.seatInventory.getOwnerBookingUri(bookingreq.getShow_id());
+        try {
+            restTemplate.postForEntity(owner_uri, bookingreq, Void.class);
+        } catch (HttpStatusCodeException e) {
+            throw new BookingForwardException(owner_uri, e.getStatusCode());
+        } catch (ResourceAccessException e) {
+            System.out.println("Booking forwarded to "+owner_uri+" failed with "+e.getMessage());
+            throw new BookingForwardException(owner_uri, HttpStatus.SERVICE_UNAVAILABLE);
         }
+    }
 
-        // Now handle the case of return of seats and refund
-        List<Booking> bookings = this.bookingRepository.findByUser_id(user_id);
+    /**
+     * Helper method returning a show with the seats available from the seat inventory, for shows owned by this
+     * replica. A copy is returned, so that the managed entity is not updated.
+     */
+    Show withInventorySeats(Show show) {
+        if (!this.seatInventory.isEnabled() || !this.seatInventory.owns(show.getId())) {
+            return show;
+        }
+        Integer seats_available = this.seatInventory.getSeatsAvailable(show.getId());
+        return seats_available == null ? show : new Show(show.getId(), show.getTheatre_id(), show.getTitle(),
+                show.getPrice(), seats_available);
+    }
 
-        // Process each booking and perform refunds and return of seats
-        for (Booking booking : bookings) {
-            if (!this.CancelBooking(booking)) {
-                System.out.println("deleteUsers: Cancelling booking failed");
-                throw new WalletOperationException("Cancellation failed for booking "+booking.toString()+
-                        " due to wallet error");
+    /**
+     * Helper method checking a user with User service, run on validationExecutor.
+     * @param user_id user id to be validated
+     * @throws UserValidationException if User service does not know the user
+     */
+    void checkUser(Integer user_id) {
+        try {
+            // Since each of the microservices in this project have separate in-memory database entities,
+            // interaction between these microservices need to be done over HTTP/Rest request.
+            // URIs for the doing the same.
+            String user_check_uri = getUserCheckUri();
+            restTemplate.getForObject(user_check_uri, String.class, user_id);
+            this.userValidationCache.markValidated(user_id);
+        } catch (HttpClientErrorException e) {
+            if (e.getStatusCode().is4xxClientError()) {
+                System.out.println("User check failed");
+                throw new UserValidationException(user_id);
             }
-            this.bookingRepository.deleteById(booking.getId());
         }
-        // this delete may not be required, as each rows are removed iteratively
-        //this.bookingRepository.deleteAllByUser_id(user_id);
     }
 
     /**
-     * Method to delete booking from user for a given show
+     * Helper method waiting for the user check until the deadline of the booking request.
+     * @param user_check pending user check; null if the user was validated recently
+     * @param user_id user id being validated
+     * @param deadline time in epoch milliseconds by which the check must complete
+     */
+    void awaitUserCheck(Future<?> user_check, Integer user_id, long deadline) {
+        if (user_check == null) {
+            return;
+        }
+        try {
+            user_check.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new UserValidationException(user_id);
+        } catch (TimeoutException e) {
+            throw new UnmetBookingRequirementException("User check for "+user_id+" did not complete within "+
+                    validationTimeoutMs+" ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UserValidationException(user_id);
+        }
+    }
+
+    /**
+     * Helper method cancelling the bookings of a user on a shard with the user lock and locks of the given shows held
+     * @return false if the user has bookings for other shows
+     */
+    boolean cancelUserBookingsOnShard(Integer user_id, List<Integer> show_ids, int shard) {
+        return this.walletOutboxService.dispatchAfter(() -> this.lockManager.withUserLock(user_id, show_ids,
+                () -> this.shardRouter.onShard(shard, () -> this.transactionTemplate.execute(status ->
+                        this.cancelUserBookings(user_id, show_ids)))));
+    }
+
+    /**
+     * Helper method cancelling all bookings of a user, invoked with the user lock held and within a transaction.
+     * Nothing is cancelled when the user has bookings for shows other than those locked.
+     * @param user_id
+     * @param locked_show_ids shows whose locks are held
+     * @return false if bookings for other shows were found
+     */
+    boolean cancelUserBookings(Integer user_id, List<Integer> locked_show_ids) {
+        // Fetch bookings along with their shows, for return of seats and refund
+        List<Booking> bookings = this.bookingRepository.findWithShowByUser_id(user_id);
+
+        // Sanity check for the user_id parameter
+        if (bookings.isEmpty()){
+            throw new UserValidationException(user_id);
+        }
+        if (!bookings.stream().allMatch(booking -> locked_show_ids.contains(booking.getShow_id().getId()))) {
+            return false;
+        }
+
+        // Perform refunds and return of seats for all the bookings
+        this.CancelBookings(bookings);
+        return true;
+    }
+
+    /**
+     * Helper method cancelling bookings of a user for a show, invoked with the user lock held and within a transaction.
      * @param user_id
      * @param show_id
      */
-    public synchronized void deleteUsersShows(Integer user_id, Integer show_id){
-        Show show = this.showRepository.findByShowId(show_id);
+    void cancelUserShowBookings(Integer user_id, Integer show_id){
+        // Fetch bookings along with their show, for return of seats and refund
+        List<Booking> bookings = this.bookingRepository.findWithShowByUser_idAndShow_id(user_id, show_id);
 
         // Sanity check of arguments prior to processing
-        if (!this.bookingRepository.existsByUser_idAndShow_id(user_id, show)){
+        if (bookings.isEmpty()){
             throw new ShowInfoException(show_id);
-
         }
 
-        // Now handle the case of return of seats and refund
-        List<Booking> bookings = this.bookingRepository.findAllByUser_idAndShow_id(user_id, show);
+        // Perform refunds and return of seats for all the bookings
+        this.CancelBookings(bookings);
+    }
 
-        // Process each booking and perform refunds and return of seats
+    /**
+     * Helper method for Canceling given bookings, with their shows fetched.<br/><br/>
+     *
+     * Booking rows are removed with one statement by id; rows removed concurrently by another replica make the
+     * cancellation fail rather than refund twice. Seats are returned with one update per show and a single
+     * refund per user is added to the wallet outbox, in the same transaction, to be sent once it commits.<br/>
+     *
+     * Each refund gets a random idempotency key, stored with its outbox row so that every resend uses the same key;
+     * booking ids are not used as they repeat across shards and after the database is recreated.
+     *
+     * @param bookings Instances of booking to be canceled
+     */
+    void CancelBookings (List<Booking> bookings){
+        if (bookings.isEmpty()) {
+            return;
+        }
+        this.removeBookings(bookings);
+
+        // Refund per user, ordered as the seats are returned
+        Map<Integer, Integer> refund_per_user = new TreeMap<>();
         for (Booking booking : bookings) {
-            if (!this.CancelBooking(booking)) {
-                System.out.println("deleteUsersShows: Cancelling booking failed");
-                throw new WalletOperationException("Cancellation failed for booking "+booking.toString()+
-                        " due to wallet error");
-            }
-            this.bookingRepository.deleteById(booking.getId());
+            refund_per_user.merge(booking.getUser_id(), booking.getSeats_booked() * booking.getShow_id().getPrice(),
+                    Integer::sum);
         }
-        // this delete may not be required, as each rows are removed iteratively
-        //this.bookingRepository.deleteAllByUser_idAndShow_id(user_id, show);
 
+        // Return the booking amounts to the wallets.
+        List<WalletOutbox> refunds = new ArrayList<>();
+        refund_per_user.forEach((user_id, amount) -> refunds.add(new WalletOutbox(
+                "cancel-"+UUID.randomUUID(), user_id, "credit", amount)));
+        this.walletOutboxService.enqueue(refunds);
     }
 
     /**
-     * Delete all the bookings
+     * Helper method removing bookings, with their shows fetched, and returning their seats, without refunds.
+     * Rows removed concurrently by another replica make the removal fail.
      */
-    public synchronized void deleteBookings (){
-        List<Booking> bookings = this.bookingRepository.findAll();
+    void removeBookings(List<Booking> bookings) {
+        List<Integer> booking_ids = bookings.stream().map(Booking::getId).toList();
+        if (this.bookingRepository.deleteAllByIdIn(booking_ids) != booking_ids.size()) {
+            throw new UnmetBookingRequirementException("Bookings were cancelled concurrently");
+        }
+
+        // Total seats per show; ordered to update rows in the same order across transactions
+        Map<Integer, Integer> seats_per_show = new TreeMap<>();
         for (Booking booking : bookings) {
-            if (!this.CancelBooking(booking)) {
-                System.out.println("deleteBookings: Cancelling booking failed");
-                throw new WalletOperationException("Cancellation failed for booking "+booking.toString()+
-                        " due to wallet error");
-            }
-            this.bookingRepository.deleteById(booking.getId());
+            seats_per_show.merge(booking.getShow_id().getId(), booking.getSeats_booked(), Integer::sum);
         }
-    }
 
+        // Return seats corresponding to these bookings to the available pool of shows
+        BiConsumer<Integer, Integer> release = this.seatInventory.isEnabled() ?
+                this.seatInventory::release : this.showRepository::releaseSeats;
+        seats_per_show.forEach(release);
+        this.catalogCache.invalidateSeatsAfterCommit(seats_per_show.keySet());
+    }
 
-    ////////////////////////////////////// Helper methods //////////////////////////////////////
     /**
-     * Helper method for Canceling a given booking
+     * Utility method reserving the ticket cost of a booking with a wallet hold. A request whose outcome is unknown
+     * due to a connection failure is sent once more with the same hold_id, which Wallet service reserves once.
      *
-     * @param booking Instance of booking to be canceled
-     * @return True on successful cancellation; false otherwise
+     * @return True if the amount was reserved, false if Wallet service refused the hold.
      */
-    boolean CancelBooking (Booking booking){
-        boolean result = true;
-        Integer seats_booked = booking.getSeats_booked();
+    boolean reserveWalletHold(Integer user_id, Integer amount, String hold_id) {
+        Map<String, Object> requestBody = new HashMap<>();
+        requestBody.put("amount", amount);
+        requestBody.put("ttl_ms", walletHoldTtlMs);
+        requestBody.put("hold_id", hold_id);
+        try {
+            try {
+                restTemplate.postForEntity(getWalletHoldsUri(), requestBody, String.class, user_id);
+            } catch (ResourceAccessException e) {
+                System.out.println("Wallet hold "+hold_id+" failed with "+e.getMessage()+", retrying");
+                restTemplate.postForEntity(getWalletHoldsUri(), requestBody, String.class, user_id);
+            }
+            return true;
+        } catch (HttpClientErrorException e) {
+            System.out.println("Wallet hold failed with " + e.getStatusCode());
+            return false;
+        }
+    }
 
-        Show showinfo = this.showRepository.findByShowId(booking.getShow_id().getId());
-        Integer refund_amount = seats_booked * showinfo.getPrice();
+    /**
+     * Helper method waiting for the outcome of a wallet hold until the deadline of the booking request; a hold not
+     * made by then is taken as refused.
+     * @return True if the amount was reserved
+     */
+    boolean awaitWalletHold(Future<Boolean> hold, String hold_id, long deadline) {
+        try {
+            return hold.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            return false;
+        } catch (TimeoutException e) {
+            System.out.println("Wallet hold "+hold_id+" did not complete within "+walletHoldTimeoutMs+" ms");
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 
-        // Return the booking amount to the wallet.
-        if (!this.WalletTransaction(booking.getUser_id(), false, refund_amount)) {
-            result = false;
-        } else {// Return seats corresponding to these bookings to the available pool of show
-            //System.out.println("Cancelling booking, returning seat count :"+seats_booked);
-            showinfo.setSeats_available(showinfo.getSeats_available() + seats_booked);
-            this.showRepository.save(showinfo);
+    /**
+     * Helper method releasing the wallet hold of a booking whose transaction did not commit, before the request
+     * returns, unless Wallet service refused the hold. A hold whose outcome is unknown by the deadline is released
+     * as well; one that could not be released, or was made after its release, expires.
+     */
+    void releaseWalletHold(Integer user_id, String hold_id, Future<Boolean> hold, long deadline) {
+        boolean reserved;
+        try {
+            reserved = hold.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            reserved = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reserved = true;
+        }
+        if (!reserved) {
+            return;
+        }
+        try {
+            restTemplate.delete(getWalletHoldUri(), user_id, hold_id);
+        } catch (HttpClientErrorException e) {
+            // Not made, hence nothing to release
+        } catch (RestClientException e) {
+            System.out.println("Release of wallet hold "+hold_id+" failed with "+e.getMessage()+
+                    ", left to expire");
         }
-        return result;
     }
+
     /**
-     * Utility method for performing booking refund operation
-     * It performs:
-     *   - Wallet Credit of amount
-     *   - Returning cancelled seats to system.
+     * Utility method for performing wallet operation of a booking.
+     * An operation whose outcome is unknown due to a connection failure is sent once more with the same
+     * idempotency key, which Wallet service applies at most once.
      *
      * @param user_id_ user id to which wallet transaction is to be performed.
+     * @param idempotency_key key identifying the operation
      * @return True on successful completion, false in case of any failure in wallet transactions.
      */
-    boolean WalletTransaction(Integer user_id_ , boolean isDebit, Integer amount) {
-        // Wallet transaction
+    boolean WalletTransaction(Integer user_id_ , boolean isDebit, Integer amount, String idempotency_key) {
         try {
-            RestTemplate restTemplate = new RestTemplate();
+            return this.WalletTransactionOnce(user_id_, isDebit, amount, idempotency_key);
+        } catch (ResourceAccessException e) {
+            System.out.println("Wallet transaction "+idempotency_key+" failed with "+e.getMessage()+", retrying");
+            return this.WalletTransactionOnce(user_id_, isDebit, amount, idempotency_key);
+        }
+    }
 
+    boolean WalletTransactionOnce(Integer user_id_ , boolean isDebit, Integer amount, String idempotency_key) {
+        // Wallet transaction
+        try {
             HttpHeaders headers = new HttpHeaders();
             headers.setContentType(MediaType.APPLICATION_JSON);
 
             Map<String, Object> requestBody = new HashMap<>();
             requestBody.put("action", isDebit ? "debit":"credit");
             requestBody.put("amount", amount);
+            requestBody.put("idempotency_key", idempotency_key);
 
             // Create an HttpEntity object with the request body and headers
             HttpEntity<Map<String, Object>> entity = new HttpEntity<>(requestBody, headers);
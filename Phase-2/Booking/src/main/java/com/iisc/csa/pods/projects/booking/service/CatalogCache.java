@@ -0,0 +1,253 @@
+/**
+ * Read-through cache of theatres and shows.
+ */
+package com.iisc.csa.pods.projects.booking.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.iisc.csa.pods.projects.booking.model.CatalogSnapshot;
+import com.iisc.csa.pods.projects.booking.model.Show;
+import com.iisc.csa.pods.projects.booking.model.Theatre;
+import com.iisc.csa.pods.projects.booking.repository.ShowRepository;
+import com.iisc.csa.pods.projects.booking.repository.TheatreRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.DigestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Bounded caches of the catalog (theatres and shows), loaded from the database on a miss.<br/><br/>
+ *
+ * Theatres and shows other than their seats are not changed by the service, hence they are cached until
+ * evicted beyond <i>catalog.cache.max-size</i> entries. Seats available are cached separately: the entry of a
+ * show is invalidated once a transaction changing its seats on this replica commits, and entries expire after
+ * <i>catalog.cache.seats-ttl-ms</i>, which bounds how long a change made by another replica goes unseen.
+ * Hit/miss/eviction counts are published as <i>cache.*</i> metrics with cache=catalog-*.<br/><br/>
+ *
+ * The response of GET /theatres is also kept encoded, as a snapshot which is swapped atomically whenever the
+ * cached list of theatres is reloaded. Requests are then served from the same byte arrays without serializing.<br/><br/>
+ *
+ * Shows of a theatre are loaded from the shard of the theatre. Shows looked up by id, and their seats, are loaded
+ * from all shards. Theatres, held by every shard, are loaded from the first shard; startup fails unless every shard
+ * holds the same theatre rows.
+ */
+@Component
+public class CatalogCache {
+    @Autowired
+    private TheatreRepository theatreRepository;
+    @Autowired
+    private ShowRepository showRepository;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private ObjectMapper objectMapper;
+    @Autowired
+    private ShardRouter shardRouter;
+
+    @Value("${catalog.cache.max-size:10000}")
+    private long maxSize;
+
+    @Value("${catalog.cache.seats-ttl-ms:1000}")
+    private long seatsTtlMs;
+
+    @Value("${catalog.snapshot.gzip:true}")
+    private boolean snapshotGzip;
+
+    // All theatres, under a single key
+    private LoadingCache<Boolean, List<Theatre>> theatres;
+    // Shows of each theatre, keyed by theatre id; theatres not found are not cached
+    private LoadingCache<Integer, List<Show>> theatreShows;
+    // Shows keyed by show id, with seats available as of loading
+    private LoadingCache<Integer, Show> shows;
+    // Seats available keyed by show id
+    private LoadingCache<Integer, Integer> seats;
+
+    // Encoded list of all theatres
+    private final AtomicReference<CatalogSnapshot> theatresSnapshot = new AtomicReference<>();
+
+    @PostConstruct
+    void init() {
+        this.theatres = Caffeine.newBuilder()
+                .maximumSize(1)
+                .recordStats()
+                .build(key -> this.theatreRepository.findAll());
+        this.theatreShows = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build(this::loadTheatreShows);
+        this.shows = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build(this::loadShow);
+        this.seats = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofMillis(seatsTtlMs))
+                .recordStats()
+                .build(new CacheLoader<Integer, Integer>() {
+                    @Override
+                    public Integer load(Integer show_id) {
+                        return loadAll(Set.of(show_id)).get(show_id);
+                    }
+
+                    @Override
+                    public Map<Integer, Integer> loadAll(Set<? extends Integer> show_ids) {
+                        Map<Integer, Integer> loaded = new HashMap<>();
+                        for (List<Object[]> rows : shardRouter.scatter(shard -> showRepository.findSeatsByIds(show_ids))) {
+                            for (Object[] row : rows) {
+                                loaded.put((Integer) row[0], (Integer) row[1]);
+                            }
+                        }
+                        return loaded;
+                    }
+                });
+        CaffeineCacheMetrics.monitor(meterRegistry, theatres, "catalog-theatres");
+        CaffeineCacheMetrics.monitor(meterRegistry, theatreShows, "catalog-theatre-shows");
+        CaffeineCacheMetrics.monitor(meterRegistry, shows, "catalog-shows");
+        CaffeineCacheMetrics.monitor(meterRegistry, seats, "catalog-seats");
+        if (shardRouter.isSharded()) {
+            checkTheatresReplicated();
+        }
+    }
+
+    /**
+     * @return list of all theatres
+     */
+    public List<Theatre> getTheatres() {
+        return this.theatres.get(Boolean.TRUE);
+    }
+
+    /**
+     * @return encoded list of all theatres, built from the list currently cached
+     */
+    public CatalogSnapshot getTheatresSnapshot() {
+        List<Theatre> current = getTheatres();
+        CatalogSnapshot snapshot = this.theatresSnapshot.get();
+        if (snapshot != null && snapshot.getSource() == current) {
+            return snapshot;
+        }
+        // Concurrent rebuilds produce the same encoding, hence the last one to be set wins
+        snapshot = encode(current);
+        this.theatresSnapshot.set(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * @param theatre_id theatre id to be looked up
+     * @return shows of the theatre, with current seats available; null if the theatre does not exist
+     */
+    public List<Show> getTheatreShows(Integer theatre_id) {
+        List<Show> theatre_shows = this.theatreShows.get(theatre_id);
+        if (theatre_shows == null) {
+            return null;
+        }
+        Map<Integer, Integer> seats_available = this.seats.getAll(theatre_shows.stream().map(Show::getId).toList());
+        return theatre_shows.stream().map(show -> withSeats(show, seats_available.get(show.getId()))).toList();
+    }
+
+    /**
+     * @param show_id show id to be looked up
+     * @return show with current seats available; null if the show does not exist
+     */
+    public Show getShow(Integer show_id) {
+        Show show = this.shows.get(show_id);
+        return show == null ? null : withSeats(show, this.seats.get(show_id));
+    }
+
+    /**
+     * Drop seats available of shows once the current transaction commits.
+     * @param show_ids shows whose seats are changed by the transaction
+     */
+    public void invalidateSeatsAfterCommit(Collection<Integer> show_ids) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                seats.invalidateAll(show_ids);
+            }
+        });
+    }
+
+    ////////////////////////////////////// Helper methods //////////////////////////////////////
+
+    private List<Show> loadTheatreShows(Integer theatre_id) {
+        if (!this.theatreRepository.existsById(theatre_id)) {
+            return null;
+        }
+        List<Show> theatre_shows = this.shardRouter.onShard(this.shardRouter.shardOfTheatre(theatre_id),
+                () -> this.showRepository.findByTheatre_id(theatre_id));
+        theatre_shows.forEach(show -> this.shows.put(show.getId(), show));
+        return theatre_shows;
+    }
+
+    private Show loadShow(Integer show_id) {
+        return this.shardRouter.scatter(shard -> this.showRepository.findByShowId(show_id)).stream()
+                .filter(Objects::nonNull).findFirst().orElse(null);
+    }
+
+    private CatalogSnapshot encode(List<?> source) {
+        try {
+            byte[] json = this.objectMapper.writeValueAsBytes(source);
+            byte[] gzip = null;
+            if (snapshotGzip) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream(json.length / 4 + 64);
+                try (GZIPOutputStream out = new GZIPOutputStream(buffer)) {
+                    out.write(json);
+                }
+                gzip = buffer.toByteArray();
+            }
+            return new CatalogSnapshot(source, json, gzip, DigestUtils.md5DigestAsHex(json));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Encoding of catalog failed", e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Copy of a cached show with the given seats available, so that cached entries are never modified.
+     */
+    private static Show withSeats(Show show, Integer seats_available) {
+        return new Show(show.getId(), show.getTheatre_id(), show.getTitle(), show.getPrice(),
+                seats_available == null ? show.getSeats_available() : seats_available);
+    }
+
+    /**
+     * Check that every shard holds the same theatre rows as the first shard, from which theatres are read. Shards
+     * are read from the calling thread, since repositories cannot be used from other threads during startup.
+     */
+    private void checkTheatresReplicated() {
+        List<String> first = null;
+        for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+            List<String> rows = shardRouter.onShard(shard, () -> theatreRepository.findAll().stream()
+                    .sorted(Comparator.comparing(Theatre::getId))
+                    .map(theatre -> theatre.getId()+"|"+theatre.getName()+"|"+theatre.getLocation())
+                    .toList());
+            if (first == null) {
+                first = rows;
+            } else if (!rows.equals(first)) {
+                throw new IllegalStateException("Theatres of shard "+shard+" differ from those of shard 0");
+            }
+        }
+    }
+}
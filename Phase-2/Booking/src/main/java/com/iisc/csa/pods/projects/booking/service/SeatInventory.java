@@ -0,0 +1,311 @@
+/**
+ * In-memory seat inventory of the shows owned by this replica, persisted write-behind.
+ */
+package com.iisc.csa.pods.projects.booking.service;
+
+import com.iisc.csa.pods.projects.booking.model.SeatAdjustment;
+import com.iisc.csa.pods.projects.booking.model.Show;
+import com.iisc.csa.pods.projects.booking.repository.SeatAdjustmentRepository;
+import com.iisc.csa.pods.projects.booking.repository.ShowRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Seat counters of shows, enabled with <i>booking.inventory.enabled</i>.<br/><br/>
+ *
+ * Shows are partitioned across Booking replicas by show_id modulo <i>booking.inventory.replica-count</i>, and
+ * the replica whose <i>booking.inventory.replica-index</i> matches owns the counters of the partition. Counters
+ * are held in an array indexed by show_id, loaded at startup, and seats are taken with compare-and-set, so
+ * a booking does not read or lock the show row. Bookings for shows of another partition are forwarded to
+ * the owner listed in <i>booking.inventory.peers</i>.<br/><br/>
+ *
+ * Every seat change is also written to the seat adjustment journal, in the transaction of the booking change,
+ * along with the index of the replica owning the show. The owner folds its adjustments into Show table in id
+ * order, at most <i>booking.inventory.flush-batch-size</i> rows per transaction every
+ * <i>booking.inventory.flush-interval-ms</i>, so Show table catches up even if a replica stops before flushing.
+ * Seats returned through another replica are added to the counters of the owner when their adjustments are
+ * folded.<br/><br/>
+ *
+ * Shows are read once at startup, hence shows added to Show table later are unknown to the inventory. The
+ * inventory requires a single Booking-Database shard.
+ */
+@Component
+public class SeatInventory {
+    @Autowired
+    private ShowRepository showRepository;
+    @Autowired
+    private SeatAdjustmentRepository adjustmentRepository;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private ShardRouter shardRouter;
+
+    @Value("${booking.inventory.enabled:false}")
+    private boolean enabled;
+
+    @Value("${booking.inventory.replica-count:1}")
+    private int replicaCount;
+
+    @Value("${booking.inventory.replica-index:0}")
+    private int replicaIndex;
+
+    /**
+     * host:port of each replica, in replica index order; only needed with more than one replica
+     */
+    @Value("${booking.inventory.peers:}")
+    private String[] peers;
+
+    @Value("${booking.inventory.flush-batch-size:1000}")
+    private int flushBatchSize;
+
+    // Shows read per query when loading the counters
+    private static final int LOAD_PAGE_SIZE = 1000;
+
+    // Seats available and price of owned shows, indexed by show_id; price is -1 for shows not owned
+    private volatile AtomicIntegerArray seats;
+    private volatile int[] prices;
+
+    // Transactions for folding the journal, independent of any transaction of the caller
+    private TransactionTemplate transactionTemplate;
+
+    // Only one flush runs at a time on a replica
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    // Reservation metrics
+    private Counter reserved;
+    private Counter rejected;
+    private Counter flushed;
+
+    @PostConstruct
+    void init() {
+        if (!enabled) {
+            return;
+        }
+        if (replicaCount < 1 || replicaIndex < 0 || replicaIndex >= replicaCount) {
+            throw new IllegalStateException("Invalid inventory replica "+replicaIndex+" of "+replicaCount);
+        }
+        if (shardRouter.isSharded()) {
+            throw new IllegalStateException("Seat inventory is not supported with sharded Booking-Database");
+        }
+        if (replicaCount > 1 && peers.length != replicaCount) {
+            throw new IllegalStateException("Inventory needs "+replicaCount+" peers, got "+Arrays.toString(peers));
+        }
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+        this.reserved = meterRegistry.counter("booking.inventory.reserved");
+        this.rejected = meterRegistry.counter("booking.inventory.rejected");
+        this.flushed = meterRegistry.counter("booking.inventory.flushed");
+        meterRegistry.gauge("booking.inventory.pending", adjustmentRepository, SeatAdjustmentRepository::count);
+
+        // Fold what is left in the journal by a previous owner, so that Show table holds every seat change
+        while (flushBatch() == flushBatchSize);
+        load();
+    }
+
+    ////////////////////////////////////// Inventory methods //////////////////////////////////////
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * @param show_id show id to be looked up
+     * @return true if the counter of the show is held by this replica
+     */
+    public boolean owns(Integer show_id) {
+        return ownerOf(show_id) == replicaIndex;
+    }
+
+    /**
+     * @param show_id show id, not owned by this replica
+     * @return URI of POST /bookings on the replica owning the show
+     */
+    public String getOwnerBookingUri(Integer show_id) {
+        return "http://"+peers[ownerOf(show_id)]+"/bookings";
+    }
+
+    /**
+     * @param show_id owned show id
+     * @return price of a ticket; null if the show is unknown
+     */
+    public Integer getPrice(Integer show_id) {
+        int[] current = this.prices;
+        return show_id == null || show_id < 0 || show_id >= current.length || current[show_id] < 0 ? null : current[show_id];
+    }
+
+    /**
+     * @param show_id owned show id
+     * @return seats available for the show; null if the show is unknown
+     */
+    public Integer getSeatsAvailable(Integer show_id) {
+        return getPrice(show_id) == null ? null : this.seats.get(show_id);
+    }
+
+    /**
+     * Take seats from an owned show, provided enough seats are available. Invoked within the transaction of
+     * the booking; seats are returned to the counter if it does not commit.
+     *
+     * @return false if the show does not have enough seats
+     */
+    public boolean reserve(Integer show_id, Integer count) {
+        if (getPrice(show_id) == null) {
+            return false;
+        }
+        AtomicIntegerArray counters = this.seats;
+        int available;
+        do {
+            available = counters.get(show_id);
+            if (available < count) {
+                rejected.increment();
+                return false;
+            }
+        } while (!counters.compareAndSet(show_id, available, available - count));
+        reserved.increment();
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status != STATUS_COMMITTED) {
+                    counters.addAndGet(show_id, count);
+                }
+            }
+        });
+        this.adjustmentRepository.save(new SeatAdjustment(show_id, -count, replicaIndex, ownerOf(show_id)));
+        return true;
+    }
+
+    /**
+     * Return seats to a show, within the transaction of the cancellation. The counter of an owned show is
+     * updated once the transaction commits; that of a show owned by another replica when its owner folds
+     * the adjustment.
+     */
+    public void release(Integer show_id, Integer count) {
+        this.adjustmentRepository.save(new SeatAdjustment(show_id, count, replicaIndex, ownerOf(show_id)));
+        AtomicIntegerArray counters = this.seats;
+        if (owns(show_id) && getPrice(show_id) != null) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    counters.addAndGet(show_id, count);
+                }
+            });
+        }
+    }
+
+    /**
+     * Background flush folding the journal of owned shows into Show table.
+     */
+    @Scheduled(fixedDelayString = "${booking.inventory.flush-interval-ms:100}")
+    public void flush() {
+        if (!enabled || !flushLock.tryLock()) {
+            return;
+        }
+        try {
+            while (flushBatch() == flushBatchSize);
+        } catch (RuntimeException e) {
+            System.out.println("flush: Exception "+e);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    ////////////////////////////////////// Helper methods //////////////////////////////////////
+
+    /**
+     * Index of the replica owning a show; a missing show_id is left to this replica to be rejected.
+     */
+    private int ownerOf(Integer show_id) {
+        return show_id == null ? replicaIndex : Math.floorMod(show_id, replicaCount);
+    }
+
+    /**
+     * Load the counters of owned shows from Show table, walking it by id a page at a time.
+     */
+    private void load() {
+        List<Show> shows = new ArrayList<>();
+        List<Show> page;
+        int after = Integer.MIN_VALUE;
+        do {
+            int current_after = after;
+            page = this.transactionTemplate.execute(status ->
+                    this.showRepository.findPageAfter(current_after, PageRequest.ofSize(LOAD_PAGE_SIZE)));
+            page.stream().filter(show -> owns(show.getId())).forEach(shows::add);
+            if (!page.isEmpty()) {
+                after = page.get(page.size() - 1).getId();
+            }
+        } while (page.size() == LOAD_PAGE_SIZE);
+        int size = shows.stream().mapToInt(Show::getId).max().orElse(-1) + 1;
+        AtomicIntegerArray counters = new AtomicIntegerArray(size);
+        int[] show_prices = new int[size];
+        Arrays.fill(show_prices, -1);
+        for (Show show : shows) {
+            counters.set(show.getId(), show.getSeats_available());
+            show_prices[show.getId()] = show.getPrice();
+        }
+        this.seats = counters;
+        this.prices = show_prices;
+        System.out.println("Seat inventory loaded "+shows.size()+" shows of partition "+replicaIndex+
+                " of "+replicaCount);
+    }
+
+    /**
+     * Fold one batch of the journal into Show table, with one update per show, in a transaction.
+     *
+     * @return number of adjustments folded
+     */
+    private int flushBatch() {
+        Map<Integer, Integer> returned_per_show = new TreeMap<>();
+        List<SeatAdjustment> batch = this.transactionTemplate.execute(status -> {
+            List<SeatAdjustment> adjustments = this.adjustmentRepository.findByOwner_replica(replicaIndex,
+                    PageRequest.ofSize(flushBatchSize));
+            Map<Integer, Integer> delta_per_show = new TreeMap<>();
+            List<Integer> ids = new ArrayList<>();
+            for (SeatAdjustment adjustment : adjustments) {
+                delta_per_show.merge(adjustment.getShow_id(), adjustment.getDelta(), Integer::sum);
+                if (adjustment.getReplica() != replicaIndex) {
+                    returned_per_show.merge(adjustment.getShow_id(), adjustment.getDelta(), Integer::sum);
+                }
+                ids.add(adjustment.getId());
+            }
+            delta_per_show.forEach(this.showRepository::adjustSeats);
+            if (!ids.isEmpty()) {
+                this.adjustmentRepository.deleteAllByIdIn(ids);
+            }
+            return adjustments;
+        });
+
+        // Seats returned through other replicas become available once Show table has them
+        AtomicIntegerArray counters = this.seats;
+        if (counters != null) {
+            returned_per_show.forEach((show_id, count) -> {
+                if (getPrice(show_id) != null) {
+                    counters.addAndGet(show_id, count);
+                }
+            });
+        }
+        flushed.increment(batch.size());
+        return batch.size();
+    }
+}
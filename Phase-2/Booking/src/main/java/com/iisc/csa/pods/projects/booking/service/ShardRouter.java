@@ -0,0 +1,122 @@
+/**
+ * Routing of repository operations to Booking-Database shards.
+ */
+package com.iisc.csa.pods.projects.booking.service;
+
+import com.iisc.csa.pods.projects.booking.config.ShardRoutingDataSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Shards of Booking-Database, listed in <i>booking.shards.urls</i>; a single shard if none are listed.<br/><br/>
+ *
+ * Shows and their bookings are partitioned by theatre_id modulo the number of shards, while theatres are held by
+ * every shard. Each shard allocates booking ids from its own range, starting at shard index * 100,000,000, so
+ * that ids are unique across shards and the bookings of shard k precede those of shard k+1 in id order. Lists
+ * merged across shards in shard order are thus ordered by id.<br/><br/>
+ *
+ * Operations run on a shard through {@link #onShard}, which selects the shard of the current thread for
+ * ShardRoutingDataSource; the shard must be selected before opening a transaction. Reads spanning shards are
+ * run on all shards in parallel through {@link #scatter}, on shardExecutor.
+ */
+@Component
+public class ShardRouter {
+    @Autowired
+    @Qualifier("shardExecutor")
+    private AsyncTaskExecutor executor;
+
+    @Value("${booking.shards.urls:}")
+    private String[] shardUrls;
+
+    /**
+     * @return number of shards
+     */
+    public int getShardCount() {
+        return Math.max(1, shardUrls.length);
+    }
+
+    public boolean isSharded() {
+        return getShardCount() > 1;
+    }
+
+    /**
+     * @param theatre_id theatre id
+     * @return shard holding the shows of the theatre and their bookings
+     */
+    public int shardOfTheatre(Integer theatre_id) {
+        return Math.floorMod(theatre_id, getShardCount());
+    }
+
+    /**
+     * @return shard selected for the current thread; 0 if none
+     */
+    public int currentShard() {
+        Integer shard = ShardRoutingDataSource.getCurrentShard();
+        return shard == null ? 0 : shard;
+    }
+
+    /**
+     * Run an operation on a shard, from the current thread.
+     *
+     * @param shard shard to be used by the operation
+     * @param operation operation, opening its own transactions
+     * @return result of operation
+     */
+    public <T> T onShard(int shard, Supplier<T> operation) {
+        if (!isSharded()) {
+            return operation.get();
+        }
+        Integer previous = ShardRoutingDataSource.getCurrentShard();
+        ShardRoutingDataSource.setCurrentShard(shard);
+        try {
+            return operation.get();
+        } finally {
+            ShardRoutingDataSource.setCurrentShard(previous);
+        }
+    }
+
+    /**
+     * Run an operation on every shard, in parallel, and gather the results. With a single shard, the operation
+     * is run from the current thread.
+     *
+     * @param operation operation for a shard index, opening its own transactions
+     * @return result of operation for each shard, in shard order
+     */
+    public <T> List<T> scatter(IntFunction<T> operation) {
+        if (!isSharded()) {
+            return List.of(operation.apply(0));
+        }
+        List<Future<T>> futures = new ArrayList<>();
+        for (int shard = 0; shard < getShardCount(); shard++) {
+            int target = shard;
+            futures.add(this.executor.submit(() -> onShard(target, () -> operation.apply(target))));
+        }
+
+        List<T> results = new ArrayList<>();
+        RuntimeException failure = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                failure = e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new RuntimeException(e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+}
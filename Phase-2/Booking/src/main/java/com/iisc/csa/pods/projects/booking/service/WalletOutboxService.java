@@ -0,0 +1,447 @@
+/**
+ * Transactional outbox for wallet operations issued by the service module.
+ */
+package com.iisc.csa.pods.projects.booking.service;
+
+import com.iisc.csa.pods.projects.booking.exception.WalletOperationException;
+import com.iisc.csa.pods.projects.booking.model.WalletDeadLetter;
+import com.iisc.csa.pods.projects.booking.model.WalletOutbox;
+import com.iisc.csa.pods.projects.booking.repository.WalletDeadLetterRepository;
+import com.iisc.csa.pods.projects.booking.repository.WalletOutboxRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.*;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Outbox of wallet operations, written in the same transaction as the booking change requiring them.<br/><br/>
+ *
+ * Operations are sent to PUT /wallets/batch in best effort mode along with their idempotency keys, so that
+ * an operation sent more than once is applied once. Sent operations are removed from the outbox; failed
+ * ones are retried with exponential backoff, and moved to the dead letter table after
+ * <i>booking.outbox.max-attempts</i> attempts.<br/><br/>
+ *
+ * Hold commits are sent one at a time to POST /wallets/{user_id}/holds/{hold_id}/commit ahead of the batch. A hold
+ * which Wallet service no longer holds, having released it on expiry (409) or lost it on a restart (404), is charged
+ * with a debit in the batch instead, keyed "debit-" followed by the hold_id; other failures of the commit are
+ * retried. Should the wallet not cover that debit, the booking is cancelled and its seats returned.<br/><br/>
+ *
+ * With <i>booking.outbox.dispatch-on-commit</i> the operations committed within {@link #dispatchAfter} are sent
+ * by the same thread once the action returns, so that wallets are up-to-date when the request returns. This is
+ * done after the transaction has released its connection and the action its locks. Otherwise, and for operations
+ * whose dispatch failed, the background dispatcher polls the outbox every <i>booking.outbox.poll-interval-ms</i>.<br/><br/>
+ *
+ * The background dispatcher claims the operations it fetches before sending them, by moving their next attempt
+ * <i>booking.outbox.backoff-ms</i> ahead, and stops polling a shard once a batch is short or already claimed.<br/><br/>
+ *
+ * Each Booking-Database shard holds the operations of the transactions run on it; the background dispatcher polls
+ * every shard, and outcomes are recorded on the shard of each operation. The number of pending operations is
+ * counted by the background dispatcher on each poll and reported by the <i>booking.outbox.pending</i> gauge.
+ */
+@Service
+public class WalletOutboxService {
+    @Autowired
+    private WalletOutboxRepository outboxRepository;
+    @Autowired
+    private WalletDeadLetterRepository deadLetterRepository;
+    @Autowired
+    private RestTemplate restTemplate;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private ShardRouter shardRouter;
+    // Cancels bookings whose hold could not be charged; lazy, as BookingService writes to the outbox
+    @Lazy
+    @Autowired
+    private BookingService bookingService;
+
+    @Value("${DOCKER_URL_WALLET:localhost:8082}")
+    private String uriStrngWallet;
+
+    @Value("${booking.outbox.dispatch-on-commit:true}")
+    private boolean dispatchOnCommit;
+
+    @Value("${booking.outbox.batch-size:100}")
+    private int batchSize;
+
+    @Value("${booking.outbox.max-attempts:10}")
+    private int maxAttempts;
+
+    @Value("${booking.outbox.backoff-ms:1000}")
+    private long backoffMs;
+
+    @Value("${booking.outbox.max-backoff-ms:60000}")
+    private long maxBackoffMs;
+
+    // Transactions for outbox bookkeeping, independent of any transaction of the caller
+    private TransactionTemplate transactionTemplate;
+
+    // Only one background dispatch runs at a time on a replica
+    private final ReentrantLock pollLock = new ReentrantLock();
+
+    // Operations committed, and compensations requested, by the current thread within dispatchAfter
+    private final ThreadLocal<List<WalletOutbox>> committed = new ThreadLocal<>();
+    private final ThreadLocal<List<WalletOutbox>> compensations = new ThreadLocal<>();
+
+    // Dispatch metrics
+    private Counter dispatched;
+    private Counter failed;
+    private Counter deadLettered;
+    private Counter compensated;
+    private final AtomicLong pending = new AtomicLong();
+
+    @PostConstruct
+    void init() {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+        this.dispatched = meterRegistry.counter("booking.outbox.dispatched");
+        this.failed = meterRegistry.counter("booking.outbox.failed");
+        this.deadLettered = meterRegistry.counter("booking.outbox.dead_lettered");
+        this.compensated = meterRegistry.counter("booking.outbox.compensated");
+        meterRegistry.gauge("booking.outbox.pending", this.pending);
+    }
+
+    private String getWalletBatchUri () {
+        return "http://"+uriStrngWallet+"/wallets/batch";
+    }
+
+    private String getWalletHoldCommitUri () {
+        return "http://"+uriStrngWallet+"/wallets/{user_id}/holds/{hold_id}/commit";
+    }
+
+    ////////////////////////////////////// Outbox methods //////////////////////////////////////
+
+    /**
+     * Run an action, and send the wallet operations committed by it once it returns.
+     *
+     * @param action action adding operations to the outbox within its transactions
+     * @return result of action
+     * @throws WalletOperationException if compensations requested by the action could not be written to the outbox
+     */
+    public <T> T dispatchAfter(Supplier<T> action) {
+        this.committed.set(new ArrayList<>());
+        this.compensations.set(new ArrayList<>());
+        try {
+            return action.get();
+        } finally {
+            List<WalletOutbox> entries = this.committed.get();
+            List<WalletOutbox> compensating = this.compensations.get();
+            this.committed.remove();
+            this.compensations.remove();
+            RuntimeException compensation_failure = null;
+            if (!compensating.isEmpty()) {
+                try {
+                    compensating.forEach(entry -> entry.setShard(this.shardRouter.currentShard()));
+                    this.transactionTemplate.executeWithoutResult(status -> this.outboxRepository.saveAll(compensating));
+                    entries.addAll(compensating);
+                } catch (RuntimeException e) {
+                    compensation_failure = e;
+                }
+            }
+            if (dispatchOnCommit && !entries.isEmpty()) {
+                try {
+                    dispatch(entries);
+                } catch (RuntimeException e) {
+                    // Entries stay in the outbox and are sent by the background dispatcher
+                    System.out.println("Wallet outbox dispatch of "+entries.size()+" operations failed with "+e);
+                }
+            }
+            if (compensation_failure != null) {
+                // Nothing else records these operations; fail the request rather than lose them silently
+                List<String> keys = compensating.stream().map(entry -> entry.getIdempotency_key() + " (" +
+                        entry.getAction() + " " + entry.getAmount() + " to " + entry.getUser_id() + ")").toList();
+                System.out.println("Wallet outbox compensation failed with "+compensation_failure+": "+keys);
+                WalletOperationException failure = new WalletOperationException("Compensation " + keys +
+                        " could not be written to the wallet outbox");
+                failure.initCause(compensation_failure);
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Add wallet operations to the outbox, within the transaction of the caller.
+     *
+     * @param entries operations to be sent to Wallet service once the transaction commits
+     */
+    public void enqueue(List<WalletOutbox> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<WalletOutbox> pending = this.committed.get();
+        if (dispatchOnCommit && pending != null) {
+            // Keep the background dispatcher off these entries while this thread sends them
+            long claimed_until = System.currentTimeMillis() + backoffMs;
+            entries.forEach(entry -> entry.setNext_attempt_at(claimed_until));
+        }
+        entries.forEach(entry -> entry.setShard(this.shardRouter.currentShard()));
+        this.outboxRepository.saveAll(entries);
+        if (pending != null && TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    pending.addAll(entries);
+                }
+            });
+        }
+    }
+
+    /**
+     * Add a wallet operation compensating one whose transaction did not commit. It is written to the outbox once
+     * the action of {@link #dispatchAfter} returns, in a transaction of its own.
+     *
+     * @param entry operation to be sent to Wallet service
+     */
+    public void compensate(WalletOutbox entry) {
+        List<WalletOutbox> pending = this.compensations.get();
+        if (pending == null) {
+            throw new IllegalStateException("Compensation of "+entry.getIdempotency_key()+" outside of dispatchAfter");
+        }
+        pending.add(entry);
+    }
+
+    /**
+     * Background dispatcher sending operations which are due, a batch at a time.
+     */
+    @Scheduled(fixedDelayString = "${booking.outbox.poll-interval-ms:1000}")
+    public void dispatchDue() {
+        if (!pollLock.tryLock()) {
+            return;
+        }
+        try {
+            long remaining = 0;
+            for (int shard = 0; shard < this.shardRouter.getShardCount(); shard++) {
+                int current = shard;
+                remaining += this.shardRouter.onShard(current, () -> {
+                    List<WalletOutbox> entries;
+                    do {
+                        entries = this.claimDue();
+                        entries.forEach(entry -> entry.setShard(current));
+                        if (!entries.isEmpty()) {
+                            dispatch(entries);
+                        }
+                    } while (entries.size() == batchSize);
+                    return this.outboxRepository.count();
+                });
+            }
+            this.pending.set(remaining);
+        } catch (RuntimeException e) {
+            System.out.println("dispatchDue: Exception "+e);
+        } finally {
+            pollLock.unlock();
+        }
+    }
+
+    ////////////////////////////////////// Helper methods //////////////////////////////////////
+
+    /**
+     * Claim a batch of due operations, moving their next attempt past the time taken to send them, so that
+     * operations whose outcome cannot be recorded are retried after <i>booking.outbox.backoff-ms</i> rather than
+     * fetched again by the same poll.
+     *
+     * @return claimed operations; empty if none are due, or if the operations fetched were claimed concurrently
+     */
+    private List<WalletOutbox> claimDue() {
+        return this.transactionTemplate.execute(status -> {
+            long now = System.currentTimeMillis();
+            List<WalletOutbox> entries = this.outboxRepository.findDue(now, PageRequest.ofSize(batchSize));
+            if (entries.isEmpty() ||
+                    this.outboxRepository.claim(entries.stream().map(WalletOutbox::getId).toList(), now,
+                            now + backoffMs) == 0) {
+                return List.<WalletOutbox>of();
+            }
+            return entries;
+        });
+    }
+
+    /**
+     * Send operations to Wallet service with one batch request and record the outcome in the outbox.
+     */
+    void dispatch(List<WalletOutbox> entries) {
+        // Outcome per entry, null if the operation was applied
+        List<String> errors = new ArrayList<>(Collections.nCopies(entries.size(), null));
+
+        // Operations of the batch, the entries they belong to, and the entries whose hold is charged with a debit
+        List<Map<String, Object>> operations = new ArrayList<>();
+        List<Integer> batched = new ArrayList<>();
+        Set<Integer> hold_debits = new HashSet<>();
+        for (int i = 0; i < entries.size(); i++) {
+            WalletOutbox entry = entries.get(i);
+            String action = entry.getAction();
+            String idempotency_key = entry.getIdempotency_key();
+            if (WalletOutbox.ACTION_COMMIT_HOLD.equals(action)) {
+                try {
+                    if (commitHold(entry)) {
+                        continue;
+                    }
+                } catch (RestClientException e) {
+                    System.out.println("Commit of wallet hold "+idempotency_key+" failed with "+e.getMessage());
+                    errors.set(i, e.getMessage());
+                    continue;
+                }
+                action = "debit";
+                idempotency_key = "debit-"+idempotency_key;
+                hold_debits.add(i);
+            }
+            Map<String, Object> operation = new HashMap<>();
+            operation.put("user_id", entry.getUser_id());
+            operation.put("action", action);
+            operation.put("amount", entry.getAmount());
+            operation.put("idempotency_key", idempotency_key);
+            operations.add(operation);
+            batched.add(i);
+        }
+
+        if (!operations.isEmpty()) {
+            try {
+                HttpHeaders headers = new HttpHeaders();
+                headers.setContentType(MediaType.APPLICATION_JSON);
+
+                Map<String, Object> requestBody = new HashMap<>();
+                requestBody.put("mode", "best_effort");
+                requestBody.put("operations", operations);
+
+                HttpEntity<Map<String, Object>> entity = new HttpEntity<>(requestBody, headers);
+                ResponseEntity<List<Map<String, Object>>> response = restTemplate.exchange(getWalletBatchUri(),
+                        HttpMethod.PUT, entity, new ParameterizedTypeReference<List<Map<String, Object>>>() {});
+                List<Map<String, Object>> results = response.getBody() == null ? List.of() : response.getBody();
+                for (int i = 0; i < batched.size(); i++) {
+                    Map<String, Object> result = i < results.size() ? results.get(i) : Map.of();
+                    Object status = result.get("status");
+                    errors.set(batched.get(i), "applied".equals(status) || "duplicate".equals(status) ? null :
+                            String.valueOf(result.getOrDefault("reason", "No result for operation")));
+                    if ("failed".equals(status) && hold_debits.contains(batched.get(i))) {
+                        int index = batched.get(i);
+                        errors.set(index, cancelUnpaidBooking(entries.get(index), errors.get(index)));
+                    }
+                }
+            } catch (RestClientException e) {
+                System.out.println("Wallet outbox dispatch failed with " + e.getMessage());
+                batched.forEach(i -> errors.set(i, e.getMessage()));
+            }
+        }
+
+        // Outcomes are recorded on the shard holding each entry
+        Map<Integer, List<Integer>> indices_per_shard = new TreeMap<>();
+        for (int i = 0; i < entries.size(); i++) {
+            indices_per_shard.computeIfAbsent(entries.get(i).getShard(), shard -> new ArrayList<>()).add(i);
+        }
+        indices_per_shard.forEach((shard, indices) -> {
+            try {
+                this.shardRouter.onShard(shard, () -> this.transactionTemplate.execute(status -> {
+                    record(indices.stream().map(entries::get).toList(), indices.stream().map(errors::get).toList());
+                    return null;
+                }));
+            } catch (RuntimeException e) {
+                // Entries stay in the outbox and are sent again by the background dispatcher
+                System.out.println("Wallet outbox update failed with " + e);
+            }
+        });
+    }
+
+    /**
+     * Commit the wallet hold of an entry.
+     *
+     * @return true if committed, false if Wallet service released the hold or does not know it
+     * @throws RestClientException if the commit failed otherwise, or the outcome is unknown
+     */
+    private boolean commitHold(WalletOutbox entry) {
+        try {
+            restTemplate.postForEntity(getWalletHoldCommitUri(), null, String.class, entry.getUser_id(),
+                    entry.getIdempotency_key());
+            return true;
+        } catch (HttpClientErrorException e) {
+            if (!e.getStatusCode().isSameCodeAs(HttpStatus.NOT_FOUND) &&
+                    !e.getStatusCode().isSameCodeAs(HttpStatus.CONFLICT)) {
+                throw e;
+            }
+            System.out.println("Commit of wallet hold "+entry.getIdempotency_key()+" failed with "+
+                    e.getStatusCode()+", debiting instead");
+            return false;
+        }
+    }
+
+    /**
+     * Cancel the booking of an entry whose hold could neither be committed nor replaced with a debit.
+     *
+     * @param error reason the debit failed
+     * @return null if the booking was cancelled; otherwise the error recorded for the entry, which is retried
+     */
+    private String cancelUnpaidBooking(WalletOutbox entry, String error) {
+        if (entry.getBooking_id() == null) {
+            return error;
+        }
+        try {
+            if (!this.bookingService.cancelUnpaidBooking(entry)) {
+                return "Booking "+entry.getBooking_id()+" no longer there, "+error;
+            }
+            compensated.increment();
+            return null;
+        } catch (RuntimeException e) {
+            System.out.println("Cancellation of unpaid booking "+entry.getBooking_id()+" failed with "+e);
+            return String.valueOf(e.getMessage());
+        }
+    }
+
+    private void record(List<WalletOutbox> entries, List<String> errors) {
+        List<Integer> done = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < entries.size(); i++) {
+            WalletOutbox entry = entries.get(i);
+            String error = errors.get(i);
+            if (error == null) {
+                done.add(entry.getId());
+                dispatched.increment();
+                continue;
+            }
+            failed.increment();
+            int attempts = entry.getAttempts() + 1;
+            entry.setAttempts(attempts);
+            entry.setLast_error(error.length() > 255 ? error.substring(0, 255) : error);
+            if (attempts >= maxAttempts) {
+                // Only the dispatcher removing the entry moves it to the dead letter table
+                if (this.outboxRepository.deleteAllByIdIn(List.of(entry.getId())) == 1) {
+                    this.deadLetterRepository.save(new WalletDeadLetter(entry));
+                    deadLettered.increment();
+                    System.out.println("Wallet operation "+entry.getIdempotency_key()+" moved to dead letter: "+error);
+                }
+                continue;
+            }
+            long backoff = Math.min(backoffMs << Math.min(attempts - 1, 20), maxBackoffMs);
+            this.outboxRepository.recordFailure(entry.getId(), attempts, now + backoff, entry.getLast_error());
+        }
+        if (!done.isEmpty()) {
+            this.outboxRepository.deleteAllByIdIn(done);
+        }
+    }
+}
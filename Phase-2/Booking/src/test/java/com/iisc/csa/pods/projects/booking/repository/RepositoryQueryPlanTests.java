@@ -0,0 +1,176 @@
+package com.iisc.csa.pods.projects.booking.repository;
+
+import com.iisc.csa.pods.projects.booking.model.Booking;
+import com.iisc.csa.pods.projects.booking.model.SeatAdjustment;
+import com.iisc.csa.pods.projects.booking.model.Show;
+import com.iisc.csa.pods.projects.booking.model.Theatre;
+import com.iisc.csa.pods.projects.booking.model.WalletOutbox;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.support.Repositories;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs every query method of the repositories against an in-memory H2 database, and checks with EXPLAIN that none
+ * of the statements issued reads a whole table, either as a table scan or as a walk of a whole index, which H2
+ * reports as the index name without a condition.<br/><br/>
+ *
+ * Query methods are found by reflection on the repository interfaces, so that a query added later is checked too.
+ * Native queries are left out: they call functions registered by Booking-Database, absent from the test database.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.session_factory.statement_inspector=" +
+		"com.iisc.csa.pods.projects.booking.repository.RepositoryQueryPlanTests$StatementRecorder")
+class RepositoryQueryPlanTests {
+
+	/**
+	 * Records the SQL of every statement prepared by Hibernate
+	 */
+	public static class StatementRecorder implements StatementInspector {
+		static final List<String> statements = new CopyOnWriteArrayList<>();
+
+		@Override
+		public String inspect(String sql) {
+			statements.add(sql);
+			return sql;
+		}
+	}
+
+	// Table scan, or index used without a condition, as in /* PUBLIC.PRIMARY_KEY_F */
+	private static final Pattern FULL_SCAN = Pattern.compile("tableScan|/\\*\\s*\\w+\\.\\w+\\s*\\*/");
+
+	@Autowired
+	private TestEntityManager entityManager;
+	@Autowired
+	private DataSource dataSource;
+	@Autowired
+	private ApplicationContext applicationContext;
+
+	private Show show;
+
+	@BeforeEach
+	void populate() {
+		for (int theatre = 1; theatre <= 20; theatre++) {
+			entityManager.persist(new Theatre(theatre, "Theatre "+theatre, "Location "+theatre));
+			for (int i = 0; i < 10; i++) {
+				int id = theatre * 10 + i;
+				show = entityManager.persist(new Show(id, theatre, "Show "+id, 50, 100));
+				for (int user = 1; user <= 5; user++) {
+					entityManager.persist(new Booking(show, user * 100 + i, 1));
+				}
+				entityManager.persist(new SeatAdjustment(id, -1, 0, id % 2));
+				entityManager.persist(new WalletOutbox("debit-"+id, id, "debit", 50));
+			}
+		}
+		entityManager.flush();
+		entityManager.clear();
+		StatementRecorder.statements.clear();
+	}
+
+	@Test
+	void lookupsUseIndexes() throws Exception {
+		Repositories repositories = new Repositories(applicationContext);
+		List<String> checked = new ArrayList<>();
+		for (Class<?> domain : repositories) {
+			Class<?> repository_interface = repositories.getRepositoryInformationFor(domain).orElseThrow()
+					.getRepositoryInterface();
+			Object repository = repositories.getRepositoryFor(domain).orElseThrow();
+			List<Method> methods = Stream.of(repository_interface.getDeclaredMethods())
+					.filter(method -> !method.isBridge() && method.isAnnotationPresent(Query.class))
+					.filter(method -> !method.getAnnotation(Query.class).nativeQuery())
+					.sorted(Comparator.comparing(Method::getName))
+					.toList();
+			for (Method method : methods) {
+				String name = repository_interface.getSimpleName()+"."+method.getName();
+				int issued = StatementRecorder.statements.size();
+				Object result = method.invoke(repository, arguments(method));
+				if (result instanceof Stream<?> rows) {
+					try (rows) {
+						rows.forEach(row -> {});
+					}
+				}
+				List<String> statements = StatementRecorder.statements.subList(issued,
+						StatementRecorder.statements.size());
+				assertFalse(statements.isEmpty(), "No statement issued by "+name);
+				for (String sql : new ArrayList<>(statements)) {
+					String plan = explain(sql);
+					assertFalse(FULL_SCAN.matcher(plan).find(), "Full scan by "+name+" for "+sql+"\n"+plan);
+				}
+				checked.add(name);
+			}
+		}
+		assertTrue(checked.contains("WalletOutboxRepository.findDue"), "Repositories not found: "+checked);
+	}
+
+	/**
+	 * @return arguments for a query method, by parameter type
+	 */
+	private Object[] arguments(Method method) {
+		Class<?>[] types = method.getParameterTypes();
+		Object[] arguments = new Object[types.length];
+		for (int i = 0; i < types.length; i++) {
+			Class<?> type = types[i];
+			if (type == Integer.class || type == int.class) {
+				arguments[i] = 1;
+			} else if (type == Long.class || type == long.class) {
+				arguments[i] = 1L;
+			} else if (type == String.class) {
+				arguments[i] = "1";
+			} else if (type == Show.class) {
+				arguments[i] = show;
+			} else if (Collection.class.isAssignableFrom(type)) {
+				arguments[i] = List.of(1, 2);
+			} else if (type == Pageable.class) {
+				arguments[i] = PageRequest.ofSize(10);
+			} else {
+				throw new IllegalArgumentException("No argument of type "+type+" for "+method);
+			}
+		}
+		return arguments;
+	}
+
+	/**
+	 * @return query plan of a statement, with 1 bound to each parameter, on the connection of the test transaction
+	 */
+	private String explain(String sql) throws Exception {
+		Connection connection = DataSourceUtils.getConnection(dataSource);
+		try (PreparedStatement statement = connection.prepareStatement("EXPLAIN "+sql)) {
+			int parameters = (int) sql.chars().filter(c -> c == '?').count();
+			for (int i = 1; i <= parameters; i++) {
+				statement.setObject(i, 1);
+			}
+			StringBuilder plan = new StringBuilder();
+			try (ResultSet rows = statement.executeQuery()) {
+				while (rows.next()) {
+					plan.append(rows.getString(1)).append('\n');
+				}
+			}
+			return plan.toString();
+		} finally {
+			DataSourceUtils.releaseConnection(connection, dataSource);
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package com.iisc.csa.pods.projects.booking.service;
+
+import com.iisc.csa.pods.projects.booking.model.WalletDeadLetter;
+import com.iisc.csa.pods.projects.booking.model.WalletOutbox;
+import com.iisc.csa.pods.projects.booking.repository.WalletDeadLetterRepository;
+import com.iisc.csa.pods.projects.booking.repository.WalletOutboxRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.stubbing.OngoingStubbing;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the outbox state machine of WalletOutboxService against mocked repositories and Wallet service: applied
+ * operations are removed, failed ones are retried with exponential backoff and dead-lettered after the last attempt,
+ * and the background dispatcher claims due operations before sending them. Hold commits fall back to a debit only
+ * for holds released or unknown to Wallet service, and a booking whose debit fails is cancelled.
+ */
+class WalletOutboxServiceTests {
+
+	private static final long BACKOFF_MS = 1000;
+	private static final int MAX_ATTEMPTS = 3;
+	private static final int BATCH_SIZE = 2;
+
+	private WalletOutboxRepository outboxRepository;
+	private WalletDeadLetterRepository deadLetterRepository;
+	private RestTemplate restTemplate;
+	private BookingService bookingService;
+	private WalletOutboxService outboxService;
+
+	@BeforeEach
+	void setUp() {
+		outboxRepository = mock(WalletOutboxRepository.class);
+		deadLetterRepository = mock(WalletDeadLetterRepository.class);
+		restTemplate = mock(RestTemplate.class);
+		bookingService = mock(BookingService.class);
+		PlatformTransactionManager transactionManager = mock(PlatformTransactionManager.class);
+		when(transactionManager.getTransaction(any())).thenAnswer(invocation -> new SimpleTransactionStatus());
+		ShardRouter shardRouter = mock(ShardRouter.class);
+		when(shardRouter.getShardCount()).thenReturn(1);
+		when(shardRouter.onShard(anyInt(), any())).thenAnswer(invocation ->
+				invocation.<Supplier<?>>getArgument(1).get());
+
+		outboxService = new WalletOutboxService();
+		ReflectionTestUtils.setField(outboxService, "outboxRepository", outboxRepository);
+		ReflectionTestUtils.setField(outboxService, "deadLetterRepository", deadLetterRepository);
+		ReflectionTestUtils.setField(outboxService, "restTemplate", restTemplate);
+		ReflectionTestUtils.setField(outboxService, "transactionManager", transactionManager);
+		ReflectionTestUtils.setField(outboxService, "meterRegistry", new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(outboxService, "shardRouter", shardRouter);
+		ReflectionTestUtils.setField(outboxService, "bookingService", bookingService);
+		ReflectionTestUtils.setField(outboxService, "uriStrngWallet", "wallet");
+		ReflectionTestUtils.setField(outboxService, "batchSize", BATCH_SIZE);
+		ReflectionTestUtils.setField(outboxService, "maxAttempts", MAX_ATTEMPTS);
+		ReflectionTestUtils.setField(outboxService, "backoffMs", BACKOFF_MS);
+		ReflectionTestUtils.setField(outboxService, "maxBackoffMs", 60000L);
+		outboxService.init();
+	}
+
+	@Test
+	void appliedOperationsAreRemoved() {
+		walletReplies("applied", "duplicate");
+		outboxService.dispatch(List.of(entry(1, "credit", 0), entry(2, "credit", 0)));
+
+		verify(outboxRepository).deleteAllByIdIn(List.of(1, 2));
+		verify(outboxRepository, never()).recordFailure(anyInt(), anyInt(), anyLong(), anyString());
+	}
+
+	@Test
+	void failedOperationsAreRetriedWithExponentialBackoff() {
+		walletReplies("failed");
+		for (int attempts = 0; attempts < MAX_ATTEMPTS - 1; attempts++) {
+			long before = System.currentTimeMillis();
+			outboxService.dispatch(List.of(entry(1, "credit", attempts)));
+
+			ArgumentCaptor<Long> next_attempt_at = ArgumentCaptor.forClass(Long.class);
+			verify(outboxRepository).recordFailure(eq(1), eq(attempts + 1), next_attempt_at.capture(), anyString());
+			long backoff = BACKOFF_MS << attempts;
+			assertTrue(next_attempt_at.getValue() >= before + backoff);
+			assertTrue(next_attempt_at.getValue() <= System.currentTimeMillis() + backoff);
+		}
+		verify(deadLetterRepository, never()).save(any());
+	}
+
+	@Test
+	void unreachableWalletIsRetried() {
+		when(restTemplate.exchange(anyString(), eq(HttpMethod.PUT), any(HttpEntity.class),
+				any(ParameterizedTypeReference.class))).thenThrow(new ResourceAccessException("Connection refused"));
+		outboxService.dispatch(List.of(entry(1, "debit", 0)));
+
+		verify(outboxRepository).recordFailure(eq(1), eq(1), anyLong(), eq("Connection refused"));
+		verify(outboxRepository, never()).deleteAllByIdIn(anyCollection());
+	}
+
+	@Test
+	void lastFailedAttemptIsDeadLettered() {
+		walletReplies("failed");
+		when(outboxRepository.deleteAllByIdIn(List.of(1))).thenReturn(1);
+		outboxService.dispatch(List.of(entry(1, "credit", MAX_ATTEMPTS - 1)));
+
+		ArgumentCaptor<WalletDeadLetter> dead_letter = ArgumentCaptor.forClass(WalletDeadLetter.class);
+		verify(deadLetterRepository).save(dead_letter.capture());
+		assertEquals("key-1", dead_letter.getValue().getIdempotency_key());
+		verify(outboxRepository, never()).recordFailure(anyInt(), anyInt(), anyLong(), anyString());
+	}
+
+	@Test
+	void dispatcherClaimsDueOperationsBeforeSending() {
+		walletReplies("applied", "applied");
+		List<WalletOutbox> due = new ArrayList<>(List.of(entry(1, "credit", 0), entry(2, "credit", 0)));
+		when(outboxRepository.findDue(anyLong(), any(Pageable.class))).thenReturn(due, List.of());
+		when(outboxRepository.claim(anyCollection(), anyLong(), anyLong())).thenReturn(2);
+		long before = System.currentTimeMillis();
+		outboxService.dispatchDue();
+
+		ArgumentCaptor<Long> claimed_until = ArgumentCaptor.forClass(Long.class);
+		verify(outboxRepository).claim(eq(List.of(1, 2)), anyLong(), claimed_until.capture());
+		assertTrue(claimed_until.getValue() >= before + BACKOFF_MS);
+		verify(outboxRepository).deleteAllByIdIn(List.of(1, 2));
+	}
+
+	@Test
+	void dispatcherStopsWhenNoOperationIsClaimed() {
+		// Operations whose outcome cannot be recorded, or claimed by another replica, are fetched again
+		List<WalletOutbox> due = List.of(entry(1, "credit", 0), entry(2, "credit", 0));
+		when(outboxRepository.findDue(anyLong(), any(Pageable.class))).thenReturn(due);
+		when(outboxRepository.claim(anyCollection(), anyLong(), anyLong())).thenReturn(0);
+		outboxService.dispatchDue();
+
+		verify(outboxRepository, times(1)).findDue(anyLong(), any(Pageable.class));
+		verify(restTemplate, never()).exchange(anyString(), any(HttpMethod.class), any(HttpEntity.class),
+				any(ParameterizedTypeReference.class));
+	}
+
+	@Test
+	void committedHoldIsRemoved() {
+		outboxService.dispatch(List.of(holdEntry(1, 0)));
+
+		verify(restTemplate).postForEntity(anyString(), any(), eq(String.class), eq(101), eq("key-1"));
+		verify(restTemplate, never()).exchange(anyString(), any(HttpMethod.class), any(HttpEntity.class),
+				any(ParameterizedTypeReference.class));
+		verify(outboxRepository).deleteAllByIdIn(List.of(1));
+	}
+
+	@Test
+	void releasedOrUnknownHoldIsDebitedInstead() {
+		holdCommitFails(HttpStatus.CONFLICT, HttpStatus.NOT_FOUND);
+		walletReplies("applied", "applied");
+		outboxService.dispatch(List.of(holdEntry(1, 0), holdEntry(2, 0)));
+
+		List<Map<String, Object>> operations = sentOperations();
+		assertEquals(2, operations.size());
+		assertEquals("debit", operations.get(0).get("action"));
+		assertEquals("debit-key-1", operations.get(0).get("idempotency_key"));
+		assertEquals("debit-key-2", operations.get(1).get("idempotency_key"));
+		verify(outboxRepository).deleteAllByIdIn(List.of(1, 2));
+		verify(bookingService, never()).cancelUnpaidBooking(any());
+	}
+
+	@Test
+	void otherHoldCommitFailuresAreRetried() {
+		holdCommitFails(HttpStatus.BAD_REQUEST);
+		outboxService.dispatch(List.of(holdEntry(1, 0)));
+
+		verify(restTemplate, never()).exchange(anyString(), any(HttpMethod.class), any(HttpEntity.class),
+				any(ParameterizedTypeReference.class));
+		verify(outboxRepository).recordFailure(eq(1), eq(1), anyLong(), anyString());
+		verify(outboxRepository, never()).deleteAllByIdIn(anyCollection());
+	}
+
+	@Test
+	void bookingIsCancelledWhenDebitOfHoldFails() {
+		holdCommitFails(HttpStatus.CONFLICT);
+		walletReplies("failed");
+		WalletOutbox entry = holdEntry(1, MAX_ATTEMPTS - 1);
+		when(bookingService.cancelUnpaidBooking(entry)).thenReturn(true);
+		outboxService.dispatch(List.of(entry));
+
+		verify(bookingService).cancelUnpaidBooking(entry);
+		verify(outboxRepository).deleteAllByIdIn(List.of(1));
+		verify(outboxRepository, never()).recordFailure(anyInt(), anyInt(), anyLong(), anyString());
+		verify(deadLetterRepository, never()).save(any());
+	}
+
+	@Test
+	void debitOfHoldIsRetriedWhenBookingCannotBeCancelled() {
+		holdCommitFails(HttpStatus.NOT_FOUND);
+		walletReplies("failed");
+		WalletOutbox entry = holdEntry(1, 0);
+		when(bookingService.cancelUnpaidBooking(entry)).thenThrow(new RuntimeException("Lock timeout"));
+		outboxService.dispatch(List.of(entry));
+
+		verify(outboxRepository).recordFailure(eq(1), eq(1), anyLong(), eq("Lock timeout"));
+		verify(outboxRepository, never()).deleteAllByIdIn(anyCollection());
+	}
+
+	@Test
+	void failedDebitIsNotCompensatedWithoutHold() {
+		walletReplies("failed");
+		outboxService.dispatch(List.of(entry(1, "debit", 0)));
+
+		verify(bookingService, never()).cancelUnpaidBooking(any());
+		verify(outboxRepository).recordFailure(eq(1), eq(1), anyLong(), anyString());
+	}
+
+	////////////////////////////////////// Helper methods //////////////////////////////////////
+
+	static WalletOutbox entry(int id, String action, int attempts) {
+		WalletOutbox entry = new WalletOutbox("key-"+id, 100 + id, action, 10);
+		entry.setId(id);
+		entry.setAttempts(attempts);
+		return entry;
+	}
+
+	static WalletOutbox holdEntry(int id, int attempts) {
+		WalletOutbox entry = entry(id, WalletOutbox.ACTION_COMMIT_HOLD, attempts);
+		entry.setBooking_id(1000 + id);
+		return entry;
+	}
+
+	private void holdCommitFails(HttpStatus... statuses) {
+		OngoingStubbing<ResponseEntity<String>> stubbing = when(restTemplate.postForEntity(anyString(), any(),
+				eq(String.class), any(Object[].class)));
+		for (HttpStatus status : statuses) {
+			stubbing = stubbing.thenThrow(HttpClientErrorException.create(status, status.getReasonPhrase(),
+					HttpHeaders.EMPTY, null, null));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Map<String, Object>> sentOperations() {
+		ArgumentCaptor<HttpEntity<Map<String, Object>>> request = ArgumentCaptor.forClass(HttpEntity.class);
+		verify(restTemplate).exchange(anyString(), eq(HttpMethod.PUT), request.capture(),
+				any(ParameterizedTypeReference.class));
+		return (List<Map<String, Object>>) request.getValue().getBody().get("operations");
+	}
+
+	@SuppressWarnings("unchecked")
+	private void walletReplies(String... statuses) {
+		List<Map<String, Object>> results = new ArrayList<>();
+		for (String status : statuses) {
+			results.add(Map.of("status", status, "reason", "Insufficient balance"));
+		}
+		when(restTemplate.exchange(anyString(), eq(HttpMethod.PUT), any(HttpEntity.class),
+				any(ParameterizedTypeReference.class))).thenReturn(ResponseEntity.ok(results));
+	}
+}
@@ -0,0 +1,35 @@
+/**
+ * Configuration of the HTTP client used for REST calls to other microservices.
+ */
+package com.iisc.csa.pods.projects.user.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.client.RestTemplate;
+
+import java.time.Duration;
+
+/**
+ * Single RestTemplate shared by the service module.<br/><br/>
+ *
+ * User service only calls Booking and Wallet services when a user is deleted, hence no connection pool is kept;
+ * connect and read timeouts bound the time a deletion can be held up by a slow remote instance.
+ */
+@Configuration
+public class RestClientConfig {
+    @Value("${rest.client.connect-timeout-ms:2000}")
+    private long connectTimeoutMs;
+
+    @Value("${rest.client.read-timeout-ms:5000}")
+    private long readTimeoutMs;
+
+    @Bean
+    public RestTemplate restTemplate(RestTemplateBuilder builder) {
+        return builder
+                .setConnectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .setReadTimeout(Duration.ofMillis(readTimeoutMs))
+                .build();
+    }
+}
@@ -20,11 +20,12 @@ public class UserTable {
     /**
      * Primary key - ID field for User entity.<br/><br/>
      *
-     * Values will be autogenerated for each user registration.
+     * Values will be autogenerated for each user registration. Ids are reserved from the sequence in blocks of 50
+     * (pooled optimizer), hence the sequence is read once per 50 registrations.
      */
     @Id
         @GeneratedValue(strategy = GenerationType.SEQUENCE, generator="useridgen")
-        @SequenceGenerator(name="useridgen", initialValue = 1, allocationSize = 1)
+        @SequenceGenerator(name="useridgen", initialValue = 1, allocationSize = 50)
     Integer id;
 
     /**
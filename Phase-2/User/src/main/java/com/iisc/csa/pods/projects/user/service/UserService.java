@@ -13,11 +13,13 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Service
 @Transactional(isolation = Isolation.SERIALIZABLE)
@@ -26,6 +28,18 @@ public class UserService {
     @Autowired
     private UserRepository userRepo;
 
+    // Shared pooled client for calls to Booking and Wallet services
+    @Autowired
+    private RestTemplate restTemplate;
+
+    /**
+     * Lock serializing updates of user accounts.<br/>
+     *
+     * A ReentrantLock is used instead of synchronized methods, as a virtual thread blocked in a remote call while
+     * holding a monitor pins its carrier thread.
+     */
+    private final ReentrantLock serviceLock = new ReentrantLock();
+
     ////////////////////////////////////// URI Management //////////////////////////////////////
     /**
      * Since each of the microservices that are part of this project have separate in-memory database entities,
@@ -59,6 +73,10 @@ public class UserService {
         return getBookingUriBase() + "{user_id}";
     }
 
+    String getBookingUserCacheUri(){
+        return "http://"+uriStrngBooking+"/cache/users";
+    }
+
 
     ////////////////////////////////////// Service Methods //////////////////////////////////////
 
@@ -67,9 +85,14 @@ public class UserService {
      * @param postReq user information
      * @return User information of created userid
      */
-    public synchronized UserTable createUser(UserTable postReq) {
-        UserTable user = userRepo.save(postReq);
-        return user;
+    public UserTable createUser(UserTable postReq) {
+        serviceLock.lock();
+        try {
+            UserTable user = userRepo.save(postReq);
+            return user;
+        } finally {
+            serviceLock.unlock();
+        }
     }
 
     /**
@@ -88,25 +111,37 @@ public class UserService {
      * Delete a user account for a given id
      * @param user_id
      */
-    public synchronized void deleteUser_id(Integer user_id) {
-        if( !userRepo.existsById(user_id)) {
-            throw new UserOperationException("user_id not found");
+    public void deleteUser_id(Integer user_id) {
+        serviceLock.lock();
+        try {
+            if( !userRepo.existsById(user_id)) {
+                throw new UserOperationException("user_id not found");
+            }
+            DeleteUserBookings(user_id);
+            DeleteUserWallets(user_id);
+            userRepo.deletebyId(user_id);
+            InvalidateUserCache(getBookingUserCacheUri() + "/" + user_id);
+        } finally {
+            serviceLock.unlock();
         }
-        DeleteUserBookings(user_id);
-        DeleteUserWallets(user_id);
-        userRepo.deletebyId(user_id);
     }
 
     /**
      * Delete all user accounts.
      */
-    public synchronized void deleteAll() {
-        List<UserTable> users = this.userRepo.findAll();
-        for (UserTable user : users) {
-            DeleteUserBookings(user.getId());
-            DeleteUserWallets(user.getId());
+    public void deleteAll() {
+        serviceLock.lock();
+        try {
+            List<UserTable> users = this.userRepo.findAll();
+            for (UserTable user : users) {
+                DeleteUserBookings(user.getId());
+                DeleteUserWallets(user.getId());
+            }
+            userRepo.deleteAll();
+            InvalidateUserCache(getBookingUserCacheUri());
+        } finally {
+            serviceLock.unlock();
         }
-        userRepo.deleteAll();
     }
 
 
@@ -122,7 +157,6 @@ public class UserService {
     void DeleteUserBookings(Integer user_id){
         try {
             Map<String, String> params = new HashMap<String, String>();
-            RestTemplate restTemplate = new RestTemplate();
             params.put("user_id", user_id.toString());
             System.out.println("DeleteUserBookings: Issuing delete: "+ getUserBookingDeleteUri());
             restTemplate.delete (getUserBookingDeleteUri(), params);
@@ -146,7 +180,6 @@ public class UserService {
     void DeleteUserWallets(Integer user_id){
         try {
             Map<String, String> params = new HashMap<String, String>();
-            RestTemplate restTemplate = new RestTemplate();
             params.put("user_id", user_id.toString());
             System.out.println("DeleteUserWallets: Issuing delete: "+ getUserWalletDeleteUri());
             restTemplate.delete (getUserWalletDeleteUri(), params);
@@ -157,4 +190,21 @@ public class UserService {
         }
     }
 
+    /**
+     *  Helper method to notify Booking service that its cache of validated users is to be invalidated.
+     *  Wallet service drops the user from its cache on wallet deletion.<br/><br/>
+     *
+     *  The notification is best-effort; a Booking instance that misses it keeps the user valid only until the
+     *  cache entry expires.<br/>
+     *
+     * @param cache_uri URI of the cache entry (or whole cache) to be invalidated
+     */
+    void InvalidateUserCache(String cache_uri){
+        try {
+            restTemplate.delete(cache_uri);
+        } catch (RestClientException e) {
+            System.out.println("InvalidateUserCache failed "+e.getMessage());
+        }
+    }
+
 }
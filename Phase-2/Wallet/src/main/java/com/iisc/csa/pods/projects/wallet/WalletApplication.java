@@ -2,14 +2,35 @@ package com.iisc.csa.pods.projects.wallet;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.transaction.TransactionManagerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
 
 @SpringBootApplication
 @EnableTransactionManagement
+@EnableScheduling
 public class WalletApplication {
 
 	public static void main(String[] args) {
 		SpringApplication.run(WalletApplication.class, args);
 	}
 
+	/**
+	 * Bean to restrict transaction synchronization to actual transactions.
+	 *
+	 * Service methods holding wallet locks run with propagation NOT_SUPPORTED and open their own
+	 * transactions. With synchronization in such scopes, the entity manager and its database connection
+	 * would stay bound to the thread until the method returns, including while waiting for locks and
+	 * for remote calls.
+	 *
+	 * @return TransactionManagerCustomizer instance
+	 */
+	@Bean
+	public TransactionManagerCustomizer<AbstractPlatformTransactionManager> transactionSynchronizationCustomizer() {
+		return transactionManager -> transactionManager.setTransactionSynchronization(
+				AbstractPlatformTransactionManager.SYNCHRONIZATION_ON_ACTUAL_TRANSACTION);
+	}
+
 }
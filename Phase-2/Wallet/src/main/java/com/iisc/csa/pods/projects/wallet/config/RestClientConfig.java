@@ -0,0 +1,36 @@
+/**
+ * Configuration of the HTTP client used for REST calls to other microservices.
+ */
+package com.iisc.csa.pods.projects.wallet.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.client.RestTemplate;
+
+import java.time.Duration;
+
+/**
+ * Single RestTemplate shared by the service module.<br/><br/>
+ *
+ * Wallet service only calls User service, to validate users missing from UserValidationCache. Keep-alive connections
+ * of the JDK client are enough for this rate of calls; connect and read timeouts bound the time a wallet operation
+ * can be held up by a slow User service.
+ */
+@Configuration
+public class RestClientConfig {
+    @Value("${rest.client.connect-timeout-ms:2000}")
+    private long connectTimeoutMs;
+
+    @Value("${rest.client.read-timeout-ms:5000}")
+    private long readTimeoutMs;
+
+    @Bean
+    public RestTemplate restTemplate(RestTemplateBuilder builder) {
+        return builder
+                .setConnectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .setReadTimeout(Duration.ofMillis(readTimeoutMs))
+                .build();
+    }
+}
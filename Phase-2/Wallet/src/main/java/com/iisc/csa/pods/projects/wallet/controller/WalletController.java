@@ -4,15 +4,26 @@
  */
 package com.iisc.csa.pods.projects.wallet.controller;
 
+import com.iisc.csa.pods.projects.wallet.exception.HoldNotFoundException;
+import com.iisc.csa.pods.projects.wallet.exception.HoldStateException;
 import com.iisc.csa.pods.projects.wallet.exception.UserValidationException;
 import com.iisc.csa.pods.projects.wallet.exception.WalletOperationException;
 import com.iisc.csa.pods.projects.wallet.model.Wallet;
+import com.iisc.csa.pods.projects.wallet.model.WalletBatchPayload;
+import com.iisc.csa.pods.projects.wallet.model.WalletBatchResult;
+import com.iisc.csa.pods.projects.wallet.model.WalletHold;
+import com.iisc.csa.pods.projects.wallet.model.WalletHoldPayload;
 import com.iisc.csa.pods.projects.wallet.model.WalletPutPayload;
+import com.iisc.csa.pods.projects.wallet.model.WalletTransaction;
 import com.iisc.csa.pods.projects.wallet.service.WalletService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.util.List;
 
 
 @RestController
@@ -50,11 +61,58 @@ public class WalletController {
         }
     }
 
+    /**
+     * <b>GET /wallets/{user_id}/transactions</b>
+     * <p>
+     *    Returns the credit/debit operations and the hold changes applied on the wallet of the user, by ascending
+     *    seq, as JSON payload
+     *    [{"seq": Long, "user_id": Integer, "action": String, "amount": Integer, "balance_after": Integer,
+     *    "created_at": Long}] with HTTP status code 200 (OK).<br/><br/>
+     *
+     *    With <i>?after=&lt;seq&gt;&amp;limit=&lt;n&gt;</i> at most limit entries with seq greater than after are
+     *    returned; <i>from</i> and <i>to</i>, in epoch milliseconds, restrict the entries to [from, to). A
+     *    non-empty page comes with a Link header with rel="next" giving the URI of the following page; an empty
+     *    page marks the end of the history.<br/><br/>
+     *
+     *    If the user doesn’t have a wallet, return HTTP status code 404 (Not Found).<br/>
+     * </p>
+     *
+     * @param user_id user_id for associated wallet.
+     * @return Page of ledger entries and HTTP status code 200 (OK) on success.
+     *         HTTP status code 404 (Not Found), if wallet is not present for user.
+     */
+    @GetMapping("/{user_id}/transactions")
+    public ResponseEntity<List<WalletTransaction>> getTransactions(@PathVariable Integer user_id,
+                                                                   @RequestParam(required = false) Long after,
+                                                                   @RequestParam(required = false) Integer limit,
+                                                                   @RequestParam(required = false) Long from,
+                                                                   @RequestParam(required = false) Long to) {
+        try {
+            List<WalletTransaction> page = walletService.getTransactions(user_id, after, from, to, limit);
+            if (page.isEmpty()) {
+                return new ResponseEntity<>(page, HttpStatus.OK);
+            }
+            String next = ServletUriComponentsBuilder.fromCurrentRequest()
+                    .replaceQueryParam("after", page.get(page.size() - 1).getSeq())
+                    .build().toUriString();
+            return ResponseEntity.ok().header(HttpHeaders.LINK, "<"+next+">; rel=\"next\"").body(page);
+        } catch (UserValidationException e) {
+            System.out.println("getTransactions: UserValidationException "+ e);
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        } catch (Exception e) {
+            System.out.println("getTransactions: Exception "+ e);
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+    }
+
     /**
      * <b><u>Endpoint requirement:</u>  2. PUT /wallets/{user_id}</b>
      * <p>
      *    Request JSON payload of the form {“action”: “debit”/“credit”, "amount": Integer}<br/><br/>
      *
+     *    An optional "idempotency_key": String may be supplied; if an operation with the same key was already
+     *    applied, the balance is returned unchanged with HTTP status code 200 (OK).<br/><br/>
+     *
      *    If the mentioned user does not currently have a wallet, then create a wallet for them,
      *    initialize its balance to zero, and proceed with the remaining steps below.<br/><br/>
      *
@@ -85,6 +143,139 @@ public class WalletController {
         }
     }
 
+    /**
+     * <b>PUT /wallets/batch</b>
+     * <p>
+     *    Request JSON payload of the form {"mode": "atomic"/"best_effort", "operations": [{"user_id": Integer,
+     *    "action": "debit"/"credit", "amount": Integer, "idempotency_key": String}]}, idempotency_key being
+     *    optional<br/><br/>
+     *
+     *    Applies the operations in order within a single transaction, creating wallets for users without one as
+     *    in PUT /wallets/{user_id}.<br/><br/>
+     *
+     *    In atomic mode (default) any failing operation discards the whole batch and HTTP status code 400
+     *    (Bad Request) is returned. In best_effort mode failing operations are skipped and HTTP status code
+     *    200 (OK) is returned.<br/><br/>
+     *
+     *    Response JSON payload: [{"user_id": Integer, "action": String, "amount": Integer, "status":
+     *    "applied"/"failed"/"rolled_back"/"duplicate", "balance": Integer, "reason": String}], one entry per
+     *    operation. Operations whose idempotency_key was already applied are not reapplied and are reported as
+     *    duplicate.<br/>
+     * </p>
+     *
+     * @param payload Payload of WalletBatchPayload type with mode and list of operations
+     * @return HTTP status code 200 (OK) with per operation results; 400 (Bad Request) if an atomic batch failed.
+     */
+    @PutMapping("/batch")
+    public ResponseEntity<List<WalletBatchResult>> putBatch(@RequestBody WalletBatchPayload payload) {
+        try {
+            List<WalletBatchResult> results = walletService.transactBatch(payload);
+            boolean rolledBack = payload.isAtomicMode() && results.stream().anyMatch(r -> !r.isSucceeded());
+            return new ResponseEntity<>(results, rolledBack ? HttpStatus.BAD_REQUEST : HttpStatus.OK);
+        } catch (Exception e) {
+            System.out.println("putBatch: Exception "+ e);
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * <b>POST /wallets/{user_id}/holds</b>
+     * <p>
+     *    Request JSON payload of the form {"amount": Integer, "ttl_ms": Long, "hold_id": String}, ttl_ms and
+     *    hold_id being optional<br/><br/>
+     *
+     *    Reserves the amount on the wallet of the user by taking it off the balance, until the hold is committed
+     *    with POST /wallets/{user_id}/holds/{hold_id}/commit or released with DELETE
+     *    /wallets/{user_id}/holds/{hold_id}. A hold neither committed nor released within ttl_ms is released.<br/><br/>
+     *
+     *    Response JSON payload is {"hold_id": String, "user_id": Integer, "amount": Integer, "status": "held",
+     *    "expires_at": Long, "updated_at": Long} with HTTP status code 201 (Created). If a hold with the same
+     *    hold_id was already made on the wallet, it is returned as is.<br/><br/>
+     *
+     *    If the wallet does not exist or its balance does not cover the amount, return HTTP status code 400
+     *    (Bad Request); if hold_id is used on another wallet, return HTTP status code 409 (Conflict).<br/>
+     * </p>
+     *
+     * @param payload Payload of WalletHoldPayload type with amount, TTL and hold_id
+     * @param user_id user_id for associated wallet.
+     * @return JSON Payload with the hold and HTTP status code 201 (Created) on success.
+     */
+    @PostMapping("/{user_id}/holds")
+    public ResponseEntity<WalletHold> postHold(@RequestBody WalletHoldPayload payload, @PathVariable Integer user_id) {
+        try {
+            return new ResponseEntity<>(walletService.reserve(user_id, payload), HttpStatus.CREATED);
+        } catch (UserValidationException | WalletOperationException e) {
+            System.out.println("postHold: UserValidationException | WalletOperationException "+ e);
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        } catch (HoldStateException e) {
+            System.out.println("postHold: HoldStateException "+ e);
+            return new ResponseEntity<>(HttpStatus.CONFLICT);
+        } catch (Exception e) {
+            System.out.println("postHold: Exception "+ e);
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * <b>POST /wallets/{user_id}/holds/{hold_id}/commit</b>
+     * <p>
+     *    Commits the hold, keeping its amount spent, and returns it as JSON payload with status "committed" and
+     *    HTTP status code 200 (OK). Committing a committed hold returns it again.<br/><br/>
+     *
+     *    If the wallet has no such hold, return HTTP status code 404 (Not Found); if the hold was released or
+     *    expired, return HTTP status code 409 (Conflict).<br/>
+     * </p>
+     *
+     * @param user_id user_id for associated wallet.
+     * @param hold_id hold to be committed.
+     * @return JSON Payload with the hold and HTTP status code 200 (OK) on success.
+     */
+    @PostMapping("/{user_id}/holds/{hold_id}/commit")
+    public ResponseEntity<WalletHold> commitHold(@PathVariable Integer user_id, @PathVariable String hold_id) {
+        try {
+            return new ResponseEntity<>(walletService.commitHold(user_id, hold_id), HttpStatus.OK);
+        } catch (HoldNotFoundException e) {
+            System.out.println("commitHold: HoldNotFoundException "+ e);
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        } catch (HoldStateException e) {
+            System.out.println("commitHold: HoldStateException "+ e);
+            return new ResponseEntity<>(HttpStatus.CONFLICT);
+        } catch (Exception e) {
+            System.out.println("commitHold: Exception "+ e);
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * <b>DELETE /wallets/{user_id}/holds/{hold_id}</b>
+     * <p>
+     *    Releases the hold, returning its amount to the balance, and returns it as JSON payload with status
+     *    "released" and HTTP status code 200 (OK). Releasing a released hold returns it again.<br/><br/>
+     *
+     *    If the wallet has no such hold, return HTTP status code 404 (Not Found); if the hold was committed or
+     *    expired, return HTTP status code 409 (Conflict).<br/>
+     * </p>
+     *
+     * @param user_id user_id for associated wallet.
+     * @param hold_id hold to be released.
+     * @return JSON Payload with the hold and HTTP status code 200 (OK) on success.
+     */
+    @DeleteMapping("/{user_id}/holds/{hold_id}")
+    public ResponseEntity<WalletHold> releaseHold(@PathVariable Integer user_id, @PathVariable String hold_id) {
+        try {
+            return new ResponseEntity<>(walletService.releaseHold(user_id, hold_id), HttpStatus.OK);
+        } catch (HoldNotFoundException e) {
+            System.out.println("releaseHold: HoldNotFoundException "+ e);
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        } catch (HoldStateException e) {
+            System.out.println("releaseHold: HoldStateException "+ e);
+            return new ResponseEntity<>(HttpStatus.CONFLICT);
+        } catch (Exception e) {
+            System.out.println("releaseHold: Exception "+ e);
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+    }
+
     /**
      * <b><u>Endpoint requirement:</u>  3. DELETE /wallets/{user_id}</b>
      * <p>
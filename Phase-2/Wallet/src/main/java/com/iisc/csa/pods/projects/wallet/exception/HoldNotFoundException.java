@@ -0,0 +1,7 @@
+package com.iisc.csa.pods.projects.wallet.exception;
+
+public class HoldNotFoundException extends RuntimeException {
+    public HoldNotFoundException(String hold_id) {
+        super("No hold "+hold_id+" on the wallet");
+    }
+}
@@ -0,0 +1,7 @@
+package com.iisc.csa.pods.projects.wallet.exception;
+
+public class HoldStateException extends RuntimeException {
+    public HoldStateException(String hold_id, String status) {
+        super("Hold "+hold_id+" is "+status);
+    }
+}
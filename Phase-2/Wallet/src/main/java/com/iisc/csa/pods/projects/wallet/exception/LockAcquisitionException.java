@@ -0,0 +1,7 @@
+package com.iisc.csa.pods.projects.wallet.exception;
+
+public class LockAcquisitionException extends RuntimeException {
+    public LockAcquisitionException(String resource, long timeout_ms) {
+        super("Could not acquire lock on "+resource+" within "+timeout_ms+"ms");
+    }
+}
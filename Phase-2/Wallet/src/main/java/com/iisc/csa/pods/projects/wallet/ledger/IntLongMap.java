@@ -0,0 +1,140 @@
+/**
+ * Primitive map of wallet balances held by the ledger.
+ */
+package com.iisc.csa.pods.projects.wallet.ledger;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from int keys to long values, with linear probing, avoiding a boxed entry per
+ * wallet.<br/><br/>
+ *
+ * Not thread safe; WalletLedger accesses it with its lock held.
+ */
+final class IntLongMap {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private int[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int size;
+
+    IntLongMap(int expected_size) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expected_size / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean containsKey(int key) {
+        return used[slotOf(key)];
+    }
+
+    /**
+     * @return value of key; default_value if absent
+     */
+    long get(int key, long default_value) {
+        int slot = slotOf(key);
+        return used[slot] ? values[slot] : default_value;
+    }
+
+    void put(int key, long value) {
+        int slot = slotOf(key);
+        values[slot] = value;
+        if (!used[slot]) {
+            used[slot] = true;
+            keys[slot] = key;
+            if (++size > keys.length * LOAD_FACTOR) {
+                resize(keys.length << 1);
+            }
+        }
+    }
+
+    /**
+     * @return true if key was present
+     */
+    boolean remove(int key) {
+        int slot = slotOf(key);
+        if (!used[slot]) {
+            return false;
+        }
+        used[slot] = false;
+        size--;
+
+        // Shift back the entries following the slot which probed past it
+        int mask = keys.length - 1;
+        int free = slot;
+        for (int next = (slot + 1) & mask; used[next]; next = (next + 1) & mask) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                keys[free] = keys[next];
+                values[free] = values[next];
+                used[free] = true;
+                used[next] = false;
+                free = next;
+            }
+        }
+        return true;
+    }
+
+    void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    /**
+     * Copy the entries into arrays of size() elements.
+     */
+    void copyTo(int[] keys_out, long[] values_out) {
+        int count = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (used[slot]) {
+                keys_out[count] = keys[slot];
+                values_out[count] = values[slot];
+                count++;
+            }
+        }
+    }
+
+    ////////////////////////////////////// Helper methods //////////////////////////////////////
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return slot holding key, or the free slot where it would be inserted
+     */
+    private int slotOf(int key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (used[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new int[capacity];
+        this.values = new long[capacity];
+        this.used = new boolean[capacity];
+    }
+
+    private void resize(int capacity) {
+        int[] old_keys = keys;
+        long[] old_values = values;
+        boolean[] old_used = used;
+        allocate(capacity);
+        for (int slot = 0; slot < old_keys.length; slot++) {
+            if (old_used[slot]) {
+                int target = slotOf(old_keys[slot]);
+                used[target] = true;
+                keys[target] = old_keys[slot];
+                values[target] = old_values[slot];
+            }
+        }
+    }
+}
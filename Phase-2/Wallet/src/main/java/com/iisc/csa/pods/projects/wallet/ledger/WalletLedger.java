@@ -0,0 +1,827 @@
+/**
+ * Append-only ledger of wallet balances, held in memory and journaled to memory-mapped files.
+ */
+package com.iisc.csa.pods.projects.wallet.ledger;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Ledger engine keeping wallet balances in an IntLongMap, enabled by <i>wallet.ledger.enabled</i>; when enabled,
+ * WalletRepository reads and updates balances, and idempotency keys, through the ledger instead of the wallet and
+ * wallet_operation_key tables.<br/><br/>
+ *
+ * Every change is appended as a fixed-width record of RECORD_SIZE bytes to the journal, a series of
+ * memory-mapped segment files of <i>wallet.ledger.segment-bytes</i> under <i>wallet.ledger.dir</i>. Records are
+ * numbered from 1, a segment being named after the number of its first record, so that record n of a segment
+ * lies at offset (n - first) * RECORD_SIZE. Each record holds the resulting balance of the wallet along with the
+ * amount, so the journal also serves as the history of operations on wallets; segments are never deleted.<br/><br/>
+ *
+ * The changes of a database transaction are appended together by {@link #append} once it has committed, the last
+ * record carrying the LAST flag; recovery only applies the records of a transaction once its last record is read.
+ * A record may carry the digest of the idempotency key of its operation, and the digests of keys applied are kept
+ * until the idempotency retention period ends, so that an operation retried after a restart is not applied
+ * twice.<br/><br/>
+ *
+ * Holds are journaled as HOLD records, alongside the debit taking their amount off the balance, and HOLD_END
+ * records once committed, released or expired. The holds themselves are kept by the in-memory database, hence do
+ * not survive a restart; the amounts of holds not ended are returned to their wallets on recovery, so that a hold
+ * lost in a crash does not keep its amount off the balance.<br/><br/>
+ *
+ * Group commit: a sync thread forces the records appended since its previous pass to disk, all at once, and
+ * callers wait in {@link #awaitDurable()} until their records are forced, after releasing their wallet
+ * locks.<br/><br/>
+ *
+ * A snapshot of all balances is written every <i>wallet.ledger.snapshot-interval-ms</i>, and on shutdown. On
+ * startup the latest snapshot is loaded and only the records following it are replayed, up to the last complete
+ * transaction before the first record which is not intact; the records following it are zeroed, and segments
+ * starting after it deleted, so that they are not taken for records appended later.
+ */
+@Component
+public class WalletLedger {
+    /**
+     * Record types, and flag of the last record of a transaction
+     */
+    static final int CREDIT = 1;
+    static final int DEBIT = 2;
+    static final int DELETE = 3;
+    static final int CLEAR = 4;
+    static final int KEY = 5;
+    static final int CLEAR_KEYS = 6;
+    static final int HOLD = 7;
+    static final int HOLD_END = 8;
+    static final int LAST = 0x100;
+    private static final int TYPE_MASK = 0xFF;
+
+    /**
+     * Journal record layout: record number, timestamp, resulting balance, user_id, amount, type, digest of the
+     * idempotency key, or of the hold_id for HOLD and HOLD_END (zero if none), and CRC32 of the preceding bytes
+     */
+    static final int RECORD_SIZE = 56;
+    private static final int SEQ = 0;
+    private static final int TIMESTAMP = 8;
+    private static final int BALANCE = 16;
+    private static final int USER_ID = 24;
+    private static final int AMOUNT = 28;
+    private static final int TYPE = 32;
+    private static final int KEY_MSB = 36;
+    private static final int KEY_LSB = 44;
+    private static final int CRC = 52;
+
+    private static final int SNAPSHOT_MAGIC = 0x574C5348;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+
+    @Value("${wallet.ledger.enabled:false}")
+    private boolean enabled;
+
+    @Value("${wallet.ledger.dir:wallet-ledger}")
+    private String dir;
+
+    @Value("${wallet.ledger.segment-bytes:67108864}")
+    private int segmentBytes;
+
+    @Value("${wallet.ledger.snapshots-kept:2}")
+    private int snapshotsKept;
+
+    // Guards all of the state below
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition synced = lock.newCondition();
+
+    private final IntLongMap balances = new IntLongMap(1024);
+    // Digests of idempotency keys applied, and the time they were applied, in the order they were applied
+    private final Map<UUID, Long> keys = new LinkedHashMap<>();
+
+    // Hold not ended
+    private static final class Hold {
+        final int user_id;
+        final int amount;
+
+        Hold(int user_id, int amount) {
+            this.user_id = user_id;
+            this.amount = amount;
+        }
+    }
+
+    // Holds not ended, by digest of their hold_id
+    private final Map<UUID, Hold> holds = new HashMap<>();
+    private Path directory;
+
+    // Current journal segment and the offsets up to which it was written and forced
+    private MappedByteBuffer segment;
+    private int position;
+    private int syncedPosition;
+
+    // Numbers of the last record appended, forced, and included in a snapshot
+    private long lastSeq;
+    private long durableSeq;
+    private long snapshotSeq;
+
+    // Record being appended, and its checksum
+    private final byte[] record = new byte[RECORD_SIZE];
+    private final ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+    private final CRC32 crc = new CRC32();
+
+    private Thread syncThread;
+    private boolean running;
+    private IOException syncFailure;
+
+    @PostConstruct
+    void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        long start = System.nanoTime();
+        this.directory = Path.of(dir);
+        Files.createDirectories(directory);
+        recover();
+        System.out.println("Wallet ledger: "+balances.size()+" wallets recovered up to record "+lastSeq+" in "+
+                (System.nanoTime() - start) / 1_000_000+" ms");
+        returnHolds();
+
+        this.running = true;
+        this.syncThread = new Thread(this::syncLoop, "wallet-ledger-sync");
+        this.syncThread.setDaemon(true);
+        this.syncThread.start();
+    }
+
+    @PreDestroy
+    void close() throws InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        snapshot();
+        lock.lock();
+        try {
+            running = false;
+            appended.signal();
+        } finally {
+            lock.unlock();
+        }
+        syncThread.join();
+        segment.force();
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    ////////////////////////////////////// Ledger operations //////////////////////////////////////
+
+    /**
+     * @return balance of the wallet of a user; null if the user has no wallet
+     */
+    public Long balance(int user_id) {
+        lock.lock();
+        try {
+            return balances.containsKey(user_id) ? balances.get(user_id, 0) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if an operation with the digest of an idempotency key was applied
+     */
+    public boolean hasKey(UUID key) {
+        lock.lock();
+        try {
+            return keys.containsKey(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return digest of an idempotency key or hold_id, as journaled
+     */
+    public static UUID keyOf(String idempotency_key) {
+        return UUID.nameUUIDFromBytes(idempotency_key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Append the changes of a committed transaction, and apply them to the balances.
+     */
+    public void append(List<Change> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < changes.size(); i++) {
+                Change change = changes.get(i);
+                append(change.type | (i == changes.size() - 1 ? LAST : 0), change.user_id, change.amount,
+                        change.balance, change.key, now);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop the digests of idempotency keys applied before a time; not journaled, as keys replayed from the
+     * journal are dropped again by the next purge.
+     *
+     * @return number of digests dropped
+     */
+    public int purgeKeysBefore(long time) {
+        lock.lock();
+        try {
+            int purged = 0;
+            Iterator<Long> times = keys.values().iterator();
+            while (times.hasNext() && times.next() < time) {
+                times.remove();
+                purged++;
+            }
+            return purged;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until all records appended so far, including those of the calling thread, are forced to disk.
+     */
+    public void awaitDurable() {
+        if (!enabled) {
+            return;
+        }
+        lock.lock();
+        try {
+            awaitDurable(lastSeq);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Periodically write a snapshot of all balances, so that recovery only replays the records which follow it.
+     */
+    @Scheduled(fixedDelayString = "${wallet.ledger.snapshot-interval-ms:60000}")
+    public void snapshot() {
+        if (!enabled) {
+            return;
+        }
+        int[] user_ids;
+        long[] values;
+        Map<UUID, Long> key_times;
+        Map<UUID, Hold> open_holds;
+        long seq;
+        lock.lock();
+        try {
+            if (lastSeq == snapshotSeq) {
+                return;
+            }
+            seq = lastSeq;
+            user_ids = new int[balances.size()];
+            values = new long[balances.size()];
+            balances.copyTo(user_ids, values);
+            key_times = new LinkedHashMap<>(keys);
+            open_holds = new HashMap<>(holds);
+            // The journal must hold every record the snapshot includes, for records to follow on from it
+            awaitDurable(seq);
+        } finally {
+            lock.unlock();
+        }
+
+        long start = System.nanoTime();
+        try {
+            writeSnapshot(seq, user_ids, values, key_times, open_holds);
+        } catch (IOException e) {
+            System.out.println("Wallet ledger: snapshot at record "+seq+" failed: "+e);
+            return;
+        }
+        lock.lock();
+        try {
+            snapshotSeq = Math.max(snapshotSeq, seq);
+        } finally {
+            lock.unlock();
+        }
+        System.out.println("Wallet ledger: snapshot of "+user_ids.length+" wallets at record "+seq+" in "+
+                (System.nanoTime() - start) / 1_000_000+" ms");
+    }
+
+    ////////////////////////////////////// Helper methods //////////////////////////////////////
+
+    /**
+     * Append a record to the journal and apply it; lock must be held.
+     */
+    private void append(int type, int user_id, int amount, long balance, UUID key, long timestamp) {
+        if (position + RECORD_SIZE > segment.capacity()) {
+            roll();
+        }
+        long seq = lastSeq + 1;
+        recordBuffer.putLong(SEQ, seq);
+        recordBuffer.putLong(TIMESTAMP, timestamp);
+        recordBuffer.putLong(BALANCE, balance);
+        recordBuffer.putInt(USER_ID, user_id);
+        recordBuffer.putInt(AMOUNT, amount);
+        recordBuffer.putInt(TYPE, type);
+        recordBuffer.putLong(KEY_MSB, key == null ? 0 : key.getMostSignificantBits());
+        recordBuffer.putLong(KEY_LSB, key == null ? 0 : key.getLeastSignificantBits());
+        crc.reset();
+        crc.update(record, 0, CRC);
+        recordBuffer.putInt(CRC, (int) crc.getValue());
+        segment.put(position, record);
+
+        position += RECORD_SIZE;
+        lastSeq = seq;
+        apply(type, user_id, amount, balance, key, timestamp);
+        appended.signal();
+    }
+
+    private void apply(int type, int user_id, int amount, long balance, UUID key, long timestamp) {
+        switch (type & TYPE_MASK) {
+            case CREDIT, DEBIT -> balances.put(user_id, balance);
+            case DELETE -> balances.remove(user_id);
+            case CLEAR -> balances.clear();
+            case CLEAR_KEYS -> keys.clear();
+            case KEY -> { }
+            case HOLD -> {
+                holds.put(key, new Hold(user_id, amount));
+                return;
+            }
+            case HOLD_END -> {
+                holds.remove(key);
+                return;
+            }
+            default -> throw new IllegalStateException("Unknown ledger record type "+type);
+        }
+        if ((type & TYPE_MASK) == DELETE) {
+            holds.values().removeIf(hold -> hold.user_id == user_id);
+        } else if ((type & TYPE_MASK) == CLEAR) {
+            holds.clear();
+        }
+        if (key != null) {
+            keys.put(key, timestamp);
+        }
+    }
+
+    /**
+     * Apply the record held in a buffer, as read from the journal.
+     */
+    private void apply(ByteBuffer buffer) {
+        long key_msb = buffer.getLong(KEY_MSB);
+        long key_lsb = buffer.getLong(KEY_LSB);
+        apply(buffer.getInt(TYPE), buffer.getInt(USER_ID), buffer.getInt(AMOUNT), buffer.getLong(BALANCE),
+                key_msb == 0 && key_lsb == 0 ? null : new UUID(key_msb, key_lsb), buffer.getLong(TIMESTAMP));
+    }
+
+    /**
+     * Force the full segment and continue in a new one; lock must be held.
+     */
+    private void roll() {
+        segment.force();
+        durableSeq = lastSeq;
+        synced.signalAll();
+        try {
+            segment = mapSegment(lastSeq + 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        position = 0;
+        syncedPosition = 0;
+    }
+
+    /**
+     * Wait until the records up to seq are forced to disk; lock must be held.
+     */
+    private void awaitDurable(long seq) {
+        while (durableSeq < seq) {
+            if (syncFailure != null) {
+                throw new IllegalStateException("Wallet ledger journal could not be synced", syncFailure);
+            }
+            synced.awaitUninterruptibly();
+        }
+    }
+
+    /**
+     * Loop of the sync thread, forcing the records appended since its previous pass in one go.
+     */
+    private void syncLoop() {
+        while (true) {
+            MappedByteBuffer buffer;
+            int from;
+            int to;
+            long seq;
+            lock.lock();
+            try {
+                while (running && durableSeq == lastSeq) {
+                    appended.awaitUninterruptibly();
+                }
+                if (durableSeq == lastSeq) {
+                    return;
+                }
+                buffer = segment;
+                from = syncedPosition;
+                to = position;
+                seq = lastSeq;
+                syncedPosition = position;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                buffer.force(from, to - from);
+            } catch (UncheckedIOException e) {
+                lock.lock();
+                try {
+                    syncFailure = e.getCause();
+                    synced.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                System.out.println("Wallet ledger: journal sync failed: "+e);
+                return;
+            }
+
+            lock.lock();
+            try {
+                durableSeq = Math.max(durableSeq, seq);
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private MappedByteBuffer mapSegment(long first_seq) throws IOException {
+        Path file = fileOf(SEGMENT_PREFIX, first_seq, SEGMENT_SUFFIX);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // An existing segment keeps its size, should wallet.ledger.segment-bytes have changed since
+            long size = channel.size() > 0 ? channel.size() : segmentBytes;
+            // Mapping stays valid once the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Load the latest snapshot, then replay the journal from the record following it.
+     */
+    private void recover() throws IOException {
+        lastSeq = loadLatestSnapshot();
+        snapshotSeq = lastSeq;
+
+        // Records of a transaction, applied once its last record is read
+        List<byte[]> transaction = new ArrayList<>();
+        long seq = lastSeq;
+        List<Long> segments = listSeqs(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        for (int i = 0; i < segments.size(); i++) {
+            long first = segments.get(i);
+            boolean last = i == segments.size() - 1;
+            if (!last && segments.get(i + 1) <= seq + 1) {
+                // Every record of the segment precedes the next record to be replayed
+                continue;
+            }
+            if (first > seq + 1) {
+                throw new IllegalStateException("Wallet ledger journal is missing records "+(seq + 1)+" to "+
+                        (first - 1));
+            }
+
+            MappedByteBuffer buffer = mapSegment(first);
+            int offset = Math.toIntExact((seq + 1 - first) * RECORD_SIZE);
+            while (offset + RECORD_SIZE <= buffer.capacity() && readRecord(buffer, offset, seq + 1)) {
+                transaction.add(record.clone());
+                seq++;
+                offset += RECORD_SIZE;
+                if ((recordBuffer.getInt(TYPE) & LAST) != 0) {
+                    transaction.forEach(bytes -> apply(ByteBuffer.wrap(bytes)));
+                    transaction.clear();
+                    lastSeq = seq;
+                }
+            }
+            if (!last && offset + RECORD_SIZE <= buffer.capacity()) {
+                System.out.println("Wallet ledger: journal ends at record "+seq+", ignoring segments after "+
+                        first);
+                break;
+            }
+        }
+        if (!transaction.isEmpty()) {
+            System.out.println("Wallet ledger: discarding "+transaction.size()+" records of a transaction not "+
+                    "fully written");
+        }
+        openSegment();
+        syncedPosition = position;
+        durableSeq = lastSeq;
+    }
+
+    /**
+     * Return the amounts of holds not ended before the restart to their wallets, ending the holds.
+     */
+    private void returnHolds() {
+        if (holds.isEmpty()) {
+            return;
+        }
+        List<Change> changes = new ArrayList<>();
+        Map<Integer, Long> returned = new HashMap<>();
+        holds.forEach((hold_id, hold) -> {
+            long balance = returned.getOrDefault(hold.user_id, balances.get(hold.user_id, 0)) + hold.amount;
+            returned.put(hold.user_id, balance);
+            changes.add(Change.credit(hold.user_id, hold.amount, balance));
+            changes.add(Change.endHold(hold.user_id, hold_id));
+        });
+        System.out.println("Wallet ledger: returning the amounts of "+holds.size()+" holds not ended before the "+
+                "restart");
+        append(changes);
+    }
+
+    /**
+     * Continue the journal after lastSeq, in the segment holding that position unless it is full, and zero the
+     * records following it. Segments starting past that position only hold records which were not recovered, and
+     * are deleted, as a segment rolled to later would otherwise reuse them.
+     */
+    private void openSegment() throws IOException {
+        segment = null;
+        long current = 0;
+        for (long first : listSeqs(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (first <= lastSeq + 1) {
+                current = first;
+            } else {
+                System.out.println("Wallet ledger: deleting segment "+first+" past the recovered journal");
+                Files.delete(fileOf(SEGMENT_PREFIX, first, SEGMENT_SUFFIX));
+            }
+        }
+        if (current > 0) {
+            MappedByteBuffer buffer = mapSegment(current);
+            int offset = Math.toIntExact((lastSeq + 1 - current) * RECORD_SIZE);
+            if (offset + RECORD_SIZE <= buffer.capacity()) {
+                segment = buffer;
+                position = offset;
+            }
+        }
+        if (segment == null) {
+            segment = mapSegment(lastSeq + 1);
+            position = 0;
+        }
+
+        boolean zeroed = false;
+        byte[] zeros = new byte[RECORD_SIZE];
+        for (int offset = position; offset + RECORD_SIZE <= segment.capacity(); offset += RECORD_SIZE) {
+            if (!isZero(segment, offset)) {
+                segment.put(offset, zeros);
+                zeroed = true;
+            }
+        }
+        if (zeroed) {
+            segment.force();
+        }
+    }
+
+    private static boolean isZero(MappedByteBuffer buffer, int offset) {
+        for (int i = 0; i < RECORD_SIZE; i += Long.BYTES) {
+            if (buffer.getLong(offset + i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read a record into recordBuffer.
+     *
+     * @return false if the record at offset is not an intact record numbered seq
+     */
+    private boolean readRecord(MappedByteBuffer buffer, int offset, long seq) {
+        buffer.get(offset, record);
+        crc.reset();
+        crc.update(record, 0, CRC);
+        int type = recordBuffer.getInt(TYPE) & TYPE_MASK;
+        return recordBuffer.getInt(CRC) == (int) crc.getValue() && recordBuffer.getLong(SEQ) == seq &&
+                type >= CREDIT && type <= HOLD_END;
+    }
+
+    /**
+     * Snapshot layout: magic, record number, wallet count, (user_id, balance) per wallet, key count, (digest, time)
+     * per idempotency key, hold count, (digest, user_id, amount) per hold not ended, and CRC32 of the preceding
+     * bytes. Written to a temporary file which is synced and then renamed.
+     */
+    private void writeSnapshot(long seq, int[] user_ids, long[] values, Map<UUID, Long> key_times,
+                               Map<UUID, Hold> open_holds) throws IOException {
+        Path file = fileOf(SNAPSHOT_PREFIX, seq, SNAPSHOT_SUFFIX);
+        Path temporary = directory.resolve(file.getFileName()+".tmp");
+        try (FileOutputStream file_out = new FileOutputStream(temporary.toFile())) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file_out, 1 << 16),
+                    new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(seq);
+            out.writeInt(user_ids.length);
+            for (int i = 0; i < user_ids.length; i++) {
+                out.writeInt(user_ids[i]);
+                out.writeLong(values[i]);
+            }
+            out.writeInt(key_times.size());
+            for (Map.Entry<UUID, Long> key : key_times.entrySet()) {
+                out.writeLong(key.getKey().getMostSignificantBits());
+                out.writeLong(key.getKey().getLeastSignificantBits());
+                out.writeLong(key.getValue());
+            }
+            out.writeInt(open_holds.size());
+            for (Map.Entry<UUID, Hold> hold : open_holds.entrySet()) {
+                out.writeLong(hold.getKey().getMostSignificantBits());
+                out.writeLong(hold.getKey().getLeastSignificantBits());
+                out.writeInt(hold.getValue().user_id);
+                out.writeInt(hold.getValue().amount);
+            }
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            file_out.getFD().sync();
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+
+        List<Long> snapshots = listSeqs(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        for (int i = 0; i < snapshots.size() - snapshotsKept; i++) {
+            Files.deleteIfExists(fileOf(SNAPSHOT_PREFIX, snapshots.get(i), SNAPSHOT_SUFFIX));
+        }
+    }
+
+    /**
+     * Load the latest intact snapshot into the balances.
+     *
+     * @return number of the last record included in the snapshot; 0 if there is none
+     */
+    private long loadLatestSnapshot() throws IOException {
+        List<Long> snapshots = listSeqs(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            Path file = fileOf(SNAPSHOT_PREFIX, snapshots.get(i), SNAPSHOT_SUFFIX);
+            try (CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(
+                    Files.newInputStream(file), 1 << 16), new CRC32())) {
+                DataInputStream in = new DataInputStream(checked);
+                long seq = readSnapshotHeader(in);
+                int count = in.readInt();
+                for (int n = 0; n < count; n++) {
+                    balances.put(in.readInt(), in.readLong());
+                }
+                int key_count = in.readInt();
+                for (int n = 0; n < key_count; n++) {
+                    keys.put(new UUID(in.readLong(), in.readLong()), in.readLong());
+                }
+                int hold_count = in.readInt();
+                for (int n = 0; n < hold_count; n++) {
+                    holds.put(new UUID(in.readLong(), in.readLong()), new Hold(in.readInt(), in.readInt()));
+                }
+                int expected = (int) checked.getChecksum().getValue();
+                if (in.readInt() == expected) {
+                    return seq;
+                }
+            } catch (IOException | IllegalStateException e) {
+                System.out.println("Wallet ledger: skipping snapshot "+file.getFileName()+": "+e);
+            }
+            balances.clear();
+            keys.clear();
+            holds.clear();
+        }
+        return 0;
+    }
+
+    private static long readSnapshotHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IllegalStateException("Not a wallet ledger snapshot");
+        }
+        return in.readLong();
+    }
+
+    private Path fileOf(String prefix, long seq, String suffix) {
+        return directory.resolve(String.format("%s%020d%s", prefix, seq, suffix));
+    }
+
+    /**
+     * @return record numbers in the names of the files with a prefix and suffix, in ascending order
+     */
+    private List<Long> listSeqs(String prefix, String suffix) throws IOException {
+        List<Long> seqs = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && name.endsWith(suffix))
+                    .forEach(name -> seqs.add(Long.parseLong(
+                            name.substring(prefix.length(), name.length() - suffix.length()))));
+        }
+        Collections.sort(seqs);
+        return seqs;
+    }
+
+    /**
+     * Change to the ledger, collected by WalletRepository within a transaction and appended once it commits.
+     */
+    public static final class Change {
+        private final int type;
+        private final int user_id;
+        private final int amount;
+        private final long balance;
+        private UUID key;
+
+        private Change(int type_, int user_id_, int amount_, long balance_, UUID key_) {
+            this.type = type_;
+            this.user_id = user_id_;
+            this.amount = amount_;
+            this.balance = balance_;
+            this.key = key_;
+        }
+
+        public static Change credit(int user_id, int amount, long balance) {
+            return new Change(CREDIT, user_id, amount, balance, null);
+        }
+
+        public static Change debit(int user_id, int amount, long balance) {
+            return new Change(DEBIT, user_id, amount, balance, null);
+        }
+
+        /**
+         * Setting of a balance, journaled as a credit or debit of the difference from the previous balance.
+         */
+        public static Change set(int user_id, long previous, long balance) {
+            long difference = balance - previous;
+            return new Change(difference >= 0 ? CREDIT : DEBIT, user_id, Math.toIntExact(Math.abs(difference)),
+                    balance, null);
+        }
+
+        public static Change delete(int user_id) {
+            return new Change(DELETE, user_id, 0, 0, null);
+        }
+
+        public static Change clear() {
+            return new Change(CLEAR, 0, 0, 0, null);
+        }
+
+        /**
+         * Idempotency key of an operation not journaled along with a change of balance.
+         */
+        public static Change key(int user_id, UUID key) {
+            return new Change(KEY, user_id, 0, 0, key);
+        }
+
+        public static Change clearKeys() {
+            return new Change(CLEAR_KEYS, 0, 0, 0, null);
+        }
+
+        /**
+         * Hold made on a wallet, whose amount is taken off the balance by a debit in the same transaction.
+         */
+        public static Change hold(int user_id, int amount, UUID hold_id) {
+            return new Change(HOLD, user_id, amount, 0, hold_id);
+        }
+
+        /**
+         * Hold committed, released or expired; the amount of a hold not committed is returned by a credit in the
+         * same transaction.
+         */
+        public static Change endHold(int user_id, UUID hold_id) {
+            return new Change(HOLD_END, user_id, 0, 0, hold_id);
+        }
+
+        public int getUser_id() {
+            return this.user_id;
+        }
+
+        /**
+         * Journal the idempotency key of an operation along with this change of balance.
+         *
+         * @return false if this is not a change of balance or already carries a key
+         */
+        public boolean attachKey(UUID key_) {
+            if ((type != CREDIT && type != DEBIT) || this.key != null) {
+                return false;
+            }
+            this.key = key_;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/**
+ * Model for a single operation of the batch wallet transaction payload
+ */
+package com.iisc.csa.pods.projects.wallet.model;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class WalletBatchItem {
+
+    private Integer user_id;
+    private String action;  // credit or debit string
+    private Integer amount;
+    private String idempotency_key;  // optional; operations already applied with the same key are not reapplied
+
+    // Utility methods to check whether associated operation is credit or debit
+    public boolean isCreditAction(){
+        return "credit".equals(this.getAction());
+    }
+
+    public boolean isDebitAction(){
+        return "debit".equals(this.getAction());
+    }
+}
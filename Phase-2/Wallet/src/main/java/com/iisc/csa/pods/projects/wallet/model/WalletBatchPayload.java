@@ -0,0 +1,22 @@
+/**
+ * Model for payload for PUT /wallets/batch (batch wallet transaction)
+ */
+package com.iisc.csa.pods.projects.wallet.model;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class WalletBatchPayload {
+
+    private String mode;  // atomic or best_effort string
+    private List<WalletBatchItem> operations;
+
+    // Utility method to check whether a failing operation aborts the whole batch
+    public boolean isAtomicMode(){
+        return !"best_effort".equals(this.getMode());
+    }
+}
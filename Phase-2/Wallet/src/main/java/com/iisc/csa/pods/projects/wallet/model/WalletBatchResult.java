@@ -0,0 +1,46 @@
+/**
+ * Model for per operation result of batch wallet transaction
+ */
+package com.iisc.csa.pods.projects.wallet.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class WalletBatchResult {
+    // Status values of an operation
+    public static final String STATUS_APPLIED = "applied";
+    public static final String STATUS_FAILED = "failed";
+    public static final String STATUS_ROLLED_BACK = "rolled_back";
+    public static final String STATUS_DUPLICATE = "duplicate";
+
+    private Integer user_id;
+    private String action;
+    private Integer amount;
+    private String idempotency_key;
+    private String status;
+    private Integer balance;  // balance after the operation, null if the operation failed
+    private String reason;    // reason of failure, null if the operation succeeded
+
+    public WalletBatchResult(){}
+
+    public WalletBatchResult(WalletBatchItem item){
+        this.user_id = item.getUser_id();
+        this.action = item.getAction();
+        this.amount = item.getAmount();
+        this.idempotency_key = item.getIdempotency_key();
+    }
+
+    @JsonIgnore
+    public boolean isApplied(){
+        return STATUS_APPLIED.equals(this.getStatus());
+    }
+
+    // Duplicates were applied by an earlier request, hence count as success
+    @JsonIgnore
+    public boolean isSucceeded(){
+        return isApplied() || STATUS_DUPLICATE.equals(this.getStatus());
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Model for WalletHold JPA entity
+ */
+package com.iisc.csa.pods.projects.wallet.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Amount reserved on a wallet, to be committed or released by the caller before it expires.<br/><br/>
+ *
+ * The amount is taken off the balance when the hold is made, so that debits and other holds cannot spend it.
+ * Committing the hold keeps the amount spent; releasing it, or its expiry, returns the amount to the balance.
+ * Finished holds are kept for the idempotency retention period, so that a retried commit or release is answered
+ * with the same outcome.
+ */
+@Entity
+@Getter
+@Setter
+@Table(name = "wallet_hold")
+public class WalletHold {
+    // Status values of a hold
+    public static final String STATUS_HELD = "held";
+    public static final String STATUS_COMMITTED = "committed";
+    public static final String STATUS_RELEASED = "released";
+    public static final String STATUS_EXPIRED = "expired";
+
+    /**
+     * Primary key - supplied by the caller, so that a retried hold is made once, or generated
+     */
+    @Id
+    @Column(name = "hold_id")
+    String hold_id;
+
+    /**
+     * Wallet on which the amount is held
+     */
+    @Column(name = "user_id")
+    Integer user_id;
+
+    @Column(name = "amount")
+    Integer amount;
+
+    @Column(name = "status")
+    String status;
+
+    /**
+     * Time in epoch milliseconds after which a hold still held is released
+     */
+    @Column(name = "expires_at")
+    Long expires_at;
+
+    /**
+     * Time of the last change of status in epoch milliseconds, for expiry of finished holds
+     */
+    @Column(name = "updated_at")
+    Long updated_at;
+
+    // Constructors
+    public WalletHold(){}
+
+    public WalletHold(String hold_id_, Integer user_id_, Integer amount_, String status_, Long expires_at_,
+                      Long updated_at_){
+        this.hold_id = hold_id_;
+        this.user_id = user_id_;
+        this.amount = amount_;
+        this.status = status_;
+        this.expires_at = expires_at_;
+        this.updated_at = updated_at_;
+    }
+
+    @JsonIgnore
+    public boolean isHeld(){
+        return STATUS_HELD.equals(this.getStatus());
+    }
+}
@@ -0,0 +1,16 @@
+/**
+ * Model for payload for POST /wallets/{user_id}/holds
+ */
+package com.iisc.csa.pods.projects.wallet.model;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class WalletHoldPayload {
+
+    private Integer amount;
+    private Long ttl_ms;     // optional; time after which the hold is released unless committed
+    private String hold_id;  // optional; a hold already made with the same id is returned instead of a new one
+}
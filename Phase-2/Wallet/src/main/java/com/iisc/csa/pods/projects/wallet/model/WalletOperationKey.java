@@ -0,0 +1,51 @@
+/**
+ * Model for WalletOperationKey JPA entity
+ */
+package com.iisc.csa.pods.projects.wallet.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Idempotency key of a wallet operation that has been applied.<br/><br/>
+ *
+ * Callers retrying an operation with the same key get the operation reported as a duplicate instead of
+ * having it applied twice. Keys are written in the same transaction as the balance they changed.
+ */
+@Entity
+@Getter
+@Setter
+@Table(name = "wallet_operation_key")
+public class WalletOperationKey {
+    /**
+     * Primary key - idempotency key supplied by the caller
+     */
+    @Id
+    @Column(name = "idempotency_key")
+    String idempotency_key;
+
+    /**
+     * Wallet on which the operation was applied
+     */
+    @Column(name = "user_id")
+    Integer user_id;
+
+    /**
+     * Time of the operation in epoch milliseconds, for expiry of old keys
+     */
+    @Column(name = "created_at")
+    Long created_at;
+
+    // Constructors
+    public WalletOperationKey(){}
+
+    public WalletOperationKey(String idempotency_key_, Integer user_id_, Long created_at_){
+        this.idempotency_key = idempotency_key_;
+        this.user_id = user_id_;
+        this.created_at = created_at_;
+    }
+}
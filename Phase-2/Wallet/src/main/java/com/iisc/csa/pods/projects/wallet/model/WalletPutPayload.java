@@ -12,6 +12,7 @@ public class WalletPutPayload {
 
     private String action;  // credit or debit string
     private Integer amount;
+    private String idempotency_key;  // optional; operations already applied with the same key are not reapplied
 
     // Utility methods to check whether associated payload is credit or debit
     public boolean isCreditAction(){
@@ -0,0 +1,78 @@
+/**
+ * Model for WalletTransaction JPA entity
+ */
+package com.iisc.csa.pods.projects.wallet.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.GeneratedValue;
+import jakarta.persistence.GenerationType;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.SequenceGenerator;
+import jakarta.persistence.Table;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Ledger entry of a credit/debit operation, or of a hold, applied on a wallet.<br/><br/>
+ *
+ * Entries are written in the same transaction as the balance they changed. The (user_id, seq) index serves the
+ * transaction history of a wallet, read by ascending seq; the (user_id, created_at) index locates the start of a
+ * time range.
+ */
+@Entity
+@Getter
+@Setter
+@Table(name = "wallet_transaction",
+        indexes = {@Index(name = "wallet_transaction_user_seq", columnList = "user_id, seq", unique = true),
+                   @Index(name = "wallet_transaction_user_time", columnList = "user_id, created_at")})
+public class WalletTransaction {
+    /**
+     * Primary key - number of the entry, increasing in the order entries are written. Taken from
+     * wallet_transaction_seq within the INSERT statement, hence an allocation size of 1.
+     */
+    @Id
+    @Column(name = "seq")
+    @SequenceGenerator(name = "wallet_transaction_seq", sequenceName = "wallet_transaction_seq", allocationSize = 1)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "wallet_transaction_seq")
+    Long seq;
+
+    /**
+     * Wallet on which the operation was applied
+     */
+    @Column(name = "user_id")
+    Integer user_id;
+
+    /**
+     * credit or debit; hold, commit, release or expire for holds
+     */
+    @Column(name = "action")
+    String action;
+
+    @Column(name = "amount")
+    Integer amount;
+
+    /**
+     * Balance of the wallet once the operation was applied
+     */
+    @Column(name = "balance_after")
+    Integer balance_after;
+
+    /**
+     * Time of the operation in epoch milliseconds
+     */
+    @Column(name = "created_at")
+    Long created_at;
+
+    // Constructors
+    public WalletTransaction(){}
+
+    public WalletTransaction(Integer user_id_, String action_, Integer amount_, Integer balance_after_, Long created_at_){
+        this.user_id = user_id_;
+        this.action = action_;
+        this.amount = amount_;
+        this.balance_after = balance_after_;
+        this.created_at = created_at_;
+    }
+}
@@ -4,16 +4,32 @@
  */
 package com.iisc.csa.pods.projects.wallet.repository;
 
+import com.iisc.csa.pods.projects.wallet.ledger.WalletLedger;
 import com.iisc.csa.pods.projects.wallet.model.Wallet;
+import com.iisc.csa.pods.projects.wallet.model.WalletHold;
+import com.iisc.csa.pods.projects.wallet.model.WalletOperationKey;
+import com.iisc.csa.pods.projects.wallet.model.WalletTransaction;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.Query;
 import jakarta.transaction.Transactional;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.persistence.PersistenceContext;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
 
 @Repository
 public class WalletRepository {
@@ -21,20 +37,60 @@ public class WalletRepository {
     @Autowired
     private EntityManager entityManager;
 
+    // JDBC access for batched statements; participates in the same transaction as entityManager
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    // Number of statements sent to database per JDBC batch
+    private static final int BATCH_SIZE = 100;
+
+    // Balances and idempotency keys are kept by the ledger instead of the wallet and wallet_operation_key tables
+    // when it is enabled
+    @Autowired
+    private WalletLedger ledger;
+
     @Transactional
     public <S extends Wallet> S save (S entity) {
+        if (ledger.isEnabled()) {
+            inLedgerTransaction(transaction -> transaction.set(entity.getUser_id(), entity.getBalance()));
+            return entity;
+        }
         entityManager.persist(entity);
         entityManager.flush();
         return entity;
     }
 
     public Wallet findByUser_id(Integer id){
+        if (ledger.isEnabled()) {
+            Long balance = ledgerBalance(id);
+            return balance == null ? null : new Wallet(id, Math.toIntExact(balance));
+        }
         return entityManager.find(Wallet.class, id);
     }
 
+    public List<Wallet> findAllByUser_id(Collection<Integer> ids) {
+        if (ledger.isEnabled()) {
+            List<Wallet> wallets = new ArrayList<>();
+            for (Integer id : ids) {
+                Wallet wallet = findByUser_id(id);
+                if (wallet != null) {
+                    wallets.add(wallet);
+                }
+            }
+            return wallets;
+        }
+        return entityManager.createQuery("SELECT w FROM Wallet w WHERE w.user_id IN :ids", Wallet.class)
+                .setParameter("ids", ids)
+                .getResultList();
+    }
+
     @Transactional
     @Modifying(clearAutomatically=true, flushAutomatically=true)
     public void deleteByUser_id(Integer id) {
+        if (ledger.isEnabled()) {
+            inLedgerTransaction(transaction -> transaction.delete(id));
+            return;
+        }
         Wallet wallet = findByUser_id(id);
         if (wallet != null){
             entityManager.remove(wallet);
@@ -44,6 +100,10 @@ public class WalletRepository {
     @Transactional
     @Modifying(clearAutomatically=true, flushAutomatically=true)
     public void deleteAll() {
+        if (ledger.isEnabled()) {
+            inLedgerTransaction(LedgerTransaction::clear);
+            return;
+        }
         Query query = entityManager.createQuery("DELETE FROM Wallet");
         query.executeUpdate();
     }
@@ -51,5 +111,393 @@ public class WalletRepository {
     public boolean existsByUser_id(Integer id) {
         return findByUser_id(id) != null;
     }
-}
 
+    ////////////////////////////////////// Balance updates //////////////////////////////////////
+    // Single statement balance updates, each applied and returning the resulting balance in one round trip. The
+    // balance is read from the FINAL TABLE of the update, which holds a row only if the update affected one.
+
+    /**
+     * Add an amount to the balance of an existing wallet.
+     *
+     * @return resulting balance; null if the user has no wallet
+     */
+    @Transactional
+    public Integer credit(Integer id, Integer amount) {
+        if (ledger.isEnabled()) {
+            Long balance = inLedgerTransaction(transaction -> transaction.credit(id, amount, false));
+            return balance == null ? null : Math.toIntExact(balance);
+        }
+        return updatedBalance("SELECT balance FROM FINAL TABLE (UPDATE wallet SET balance = balance + ? " +
+                "WHERE user_id = ?)", amount, id);
+    }
+
+    /**
+     * Add an amount to the balance of a wallet, creating the wallet with that balance if there is none.
+     *
+     * @return resulting balance
+     */
+    @Transactional
+    public Integer creditOrCreate(Integer id, Integer amount) {
+        if (ledger.isEnabled()) {
+            return Math.toIntExact(inLedgerTransaction(transaction -> transaction.credit(id, amount, true)));
+        }
+        return updatedBalance("SELECT balance FROM FINAL TABLE (MERGE INTO wallet w " +
+                "USING (VALUES (CAST(? AS INT), CAST(? AS INT))) s(user_id, amount) ON w.user_id = s.user_id " +
+                "WHEN MATCHED THEN UPDATE SET balance = w.balance + s.amount " +
+                "WHEN NOT MATCHED THEN INSERT (user_id, balance) VALUES (s.user_id, s.amount))", id, amount);
+    }
+
+    /**
+     * Subtract an amount from the balance of a wallet, provided the balance covers it.
+     *
+     * @return resulting balance; null if the user has no wallet or the balance is insufficient
+     */
+    @Transactional
+    public Integer debit(Integer id, Integer amount) {
+        if (ledger.isEnabled()) {
+            Long balance = inLedgerTransaction(transaction -> transaction.debit(id, amount));
+            return balance == null ? null : Math.toIntExact(balance);
+        }
+        return updatedBalance("SELECT balance FROM FINAL TABLE (UPDATE wallet SET balance = balance - ? " +
+                "WHERE user_id = ? AND balance >= ?)", amount, id, amount);
+    }
+
+    /**
+     * Wait until the balance updates made so far are durable; returns at once unless the ledger is enabled.
+     */
+    public void awaitDurable() {
+        ledger.awaitDurable();
+    }
+
+    private Integer updatedBalance(String sql, Object... args) {
+        List<Integer> balances = jdbcTemplate.query(sql, (rs, row) -> rs.getInt(1), args);
+        return balances.isEmpty() ? null : balances.get(0);
+    }
+
+    ////////////////////////////////////// Transaction history //////////////////////////////////////
+    /**
+     * Record ledger entries using JDBC batches of INSERT statements, numbering them from wallet_transaction_seq.
+     *
+     * @param transactions entries to be recorded
+     */
+    @Transactional
+    public void saveTransactions(Collection<WalletTransaction> transactions) {
+        jdbcTemplate.batchUpdate("INSERT INTO wallet_transaction (seq, user_id, action, amount, balance_after, " +
+                        "created_at) VALUES (NEXT VALUE FOR wallet_transaction_seq, ?, ?, ?, ?, ?)",
+                transactions, BATCH_SIZE, (ps, transaction) -> {
+                    ps.setInt(1, transaction.getUser_id());
+                    ps.setString(2, transaction.getAction());
+                    ps.setInt(3, transaction.getAmount());
+                    ps.setInt(4, transaction.getBalance_after());
+                    ps.setLong(5, transaction.getCreated_at());
+                });
+    }
+
+    /**
+     * Page of ledger entries of a wallet following an entry, by ascending seq, read over the (user_id, seq) index.
+     * Ordering by user_id as well lets H2 read the page in index order and stop at the limit, instead of sorting
+     * the whole history of the wallet.<br/><br/>
+     *
+     * Entries of a wallet are written with its stripe held, so their seq and created_at increase together. A page
+     * starting at a time is hence read from the first entry at that time, sought over the (user_id, created_at)
+     * index, rather than scanning the history from its start.
+     *
+     * @param after seq after which the page starts
+     * @param from earliest time of entries, inclusive, in epoch milliseconds
+     * @param to latest time of entries, exclusive, in epoch milliseconds
+     * @param limit maximum number of entries
+     */
+    public List<WalletTransaction> findTransactionsPage(Integer id, Long after, Long from, Long to, int limit) {
+        if (from > 0) {
+            List<Long> first = entityManager.createQuery("SELECT t.seq FROM WalletTransaction t " +
+                            "WHERE t.user_id = :user_id AND t.created_at >= :from ORDER BY t.user_id, t.created_at",
+                            Long.class)
+                    .setParameter("user_id", id)
+                    .setParameter("from", from)
+                    .setMaxResults(1)
+                    .getResultList();
+            if (first.isEmpty()) {
+                return new ArrayList<>();
+            }
+            after = Math.max(after, first.get(0) - 1);
+        }
+        return entityManager.createQuery("SELECT t FROM WalletTransaction t WHERE t.user_id = :user_id " +
+                        "AND t.seq > :after AND t.created_at >= :from AND t.created_at < :to " +
+                        "ORDER BY t.user_id, t.seq", WalletTransaction.class)
+                .setParameter("user_id", id)
+                .setParameter("after", after)
+                .setParameter("from", from)
+                .setParameter("to", to)
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
+    @Transactional
+    public void deleteTransactionsByUser_id(Integer id) {
+        jdbcTemplate.update("DELETE FROM wallet_transaction WHERE user_id = ?", id);
+    }
+
+    @Transactional
+    public void deleteAllTransactions() {
+        jdbcTemplate.update("DELETE FROM wallet_transaction");
+    }
+
+    ////////////////////////////////////// Holds //////////////////////////////////////
+    public WalletHold findHold(String hold_id) {
+        return entityManager.find(WalletHold.class, hold_id);
+    }
+
+    public List<WalletHold> findHeldHolds() {
+        return entityManager.createQuery("SELECT h FROM WalletHold h WHERE h.status = :status", WalletHold.class)
+                .setParameter("status", WalletHold.STATUS_HELD)
+                .getResultList();
+    }
+
+    /**
+     * Record a hold; with the ledger enabled, the hold is journaled as well, so that its amount is returned should
+     * the hold be lost on a restart.
+     */
+    @Transactional
+    public void saveHold(WalletHold hold) {
+        if (ledger.isEnabled()) {
+            inLedgerTransaction(transaction -> transaction.change(WalletLedger.Change.hold(hold.getUser_id(),
+                    hold.getAmount(), WalletLedger.keyOf(hold.getHold_id()))));
+        }
+        jdbcTemplate.update("INSERT INTO wallet_hold (hold_id, user_id, amount, status, expires_at, updated_at) " +
+                        "VALUES (?, ?, ?, ?, ?, ?)", hold.getHold_id(), hold.getUser_id(), hold.getAmount(),
+                hold.getStatus(), hold.getExpires_at(), hold.getUpdated_at());
+    }
+
+    /**
+     * Move a hold still held to a final status.
+     *
+     * @return true if the hold was held
+     */
+    @Transactional
+    public boolean finishHold(String hold_id, String status, Long updated_at) {
+        WalletHold hold = ledger.isEnabled() ? findHold(hold_id) : null;
+        boolean finished = jdbcTemplate.update("UPDATE wallet_hold SET status = ?, updated_at = ? WHERE hold_id = ? " +
+                "AND status = ?", status, updated_at, hold_id, WalletHold.STATUS_HELD) > 0;
+        if (finished && hold != null) {
+            inLedgerTransaction(transaction -> transaction.change(WalletLedger.Change.endHold(hold.getUser_id(),
+                    WalletLedger.keyOf(hold_id))));
+        }
+        return finished;
+    }
+
+    @Transactional
+    public int deleteFinishedHoldsBefore(Long updated_at) {
+        return jdbcTemplate.update("DELETE FROM wallet_hold WHERE status <> ? AND updated_at < ?",
+                WalletHold.STATUS_HELD, updated_at);
+    }
+
+    @Transactional
+    public void deleteHoldsByUser_id(Integer id) {
+        jdbcTemplate.update("DELETE FROM wallet_hold WHERE user_id = ?", id);
+    }
+
+    @Transactional
+    public void deleteAllHolds() {
+        jdbcTemplate.update("DELETE FROM wallet_hold");
+    }
+
+    ////////////////////////////////////// Idempotency keys //////////////////////////////////////
+    public List<String> findOperationKeys(Collection<String> keys) {
+        if (ledger.isEnabled()) {
+            LedgerTransaction transaction = boundLedgerTransaction();
+            List<String> found = new ArrayList<>();
+            for (String key : keys) {
+                UUID digest = WalletLedger.keyOf(key);
+                if (transaction != null ? transaction.hasKey(digest) : ledger.hasKey(digest)) {
+                    found.add(key);
+                }
+            }
+            return found;
+        }
+        return entityManager.createQuery("SELECT k.idempotency_key FROM WalletOperationKey k " +
+                        "WHERE k.idempotency_key IN :keys", String.class)
+                .setParameter("keys", keys)
+                .getResultList();
+    }
+
+    /**
+     * Record idempotency keys of applied operations using JDBC batches of INSERT statements.
+     *
+     * @param keys keys to be recorded
+     */
+    @Transactional
+    public void saveOperationKeys(Collection<WalletOperationKey> keys) {
+        if (ledger.isEnabled()) {
+            inLedgerTransaction(transaction -> {
+                for (WalletOperationKey key : keys) {
+                    transaction.key(key.getUser_id(), WalletLedger.keyOf(key.getIdempotency_key()));
+                }
+                return null;
+            });
+            return;
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO wallet_operation_key (idempotency_key, user_id, created_at) VALUES (?, ?, ?)",
+                keys, BATCH_SIZE, (ps, key) -> {
+                    ps.setString(1, key.getIdempotency_key());
+                    ps.setInt(2, key.getUser_id());
+                    ps.setLong(3, key.getCreated_at());
+                });
+    }
+
+    @Transactional
+    public int deleteOperationKeysBefore(Long created_at) {
+        if (ledger.isEnabled()) {
+            return ledger.purgeKeysBefore(created_at);
+        }
+        return jdbcTemplate.update("DELETE FROM wallet_operation_key WHERE created_at < ?", created_at);
+    }
+
+    @Transactional
+    public void deleteAllOperationKeys() {
+        if (ledger.isEnabled()) {
+            inLedgerTransaction(LedgerTransaction::clearKeys);
+            return;
+        }
+        jdbcTemplate.update("DELETE FROM wallet_operation_key");
+    }
+
+    ////////////////////////////////////// Ledger transactions //////////////////////////////////////
+    // With the ledger enabled, the changes of a database transaction are collected in a LedgerTransaction bound to
+    // it, and appended to the ledger only once the transaction has committed, so that a rollback leaves the ledger
+    // untouched; reads within the transaction see its own changes. Idempotency keys are journaled along with the
+    // change of balance of their operation, so that an operation is applied once across restarts. Wallets are only
+    // changed with the stripe of their user held until the commit, hence no other transaction changes the balances
+    // read by a transaction before its changes are appended.
+
+    private final class LedgerTransaction implements TransactionSynchronization {
+        // Balances changed by the transaction; null for a deleted wallet
+        private final Map<Integer, Long> balances = new HashMap<>();
+        // Last change of balance of each user, to which the key of its operation is attached
+        private final Map<Integer, WalletLedger.Change> lastChanges = new HashMap<>();
+        private final Set<UUID> keys = new HashSet<>();
+        private final List<WalletLedger.Change> changes = new ArrayList<>();
+        private boolean cleared;
+        private boolean keysCleared;
+
+        Long balance(Integer id) {
+            if (balances.containsKey(id)) {
+                return balances.get(id);
+            }
+            return cleared ? null : ledger.balance(id);
+        }
+
+        boolean hasKey(UUID key) {
+            return keys.contains(key) || (!keysCleared && ledger.hasKey(key));
+        }
+
+        Long credit(Integer id, Integer amount, boolean create) {
+            Long balance = balance(id);
+            if (balance == null && !create) {
+                return null;
+            }
+            long result = (balance == null ? 0 : balance) + amount;
+            change(id, WalletLedger.Change.credit(id, amount, result), result);
+            return result;
+        }
+
+        Long debit(Integer id, Integer amount) {
+            Long balance = balance(id);
+            if (balance == null || balance < amount) {
+                return null;
+            }
+            long result = balance - amount;
+            change(id, WalletLedger.Change.debit(id, amount, result), result);
+            return result;
+        }
+
+        Void set(Integer id, long balance) {
+            Long previous = balance(id);
+            change(id, WalletLedger.Change.set(id, previous == null ? 0 : previous, balance), balance);
+            return null;
+        }
+
+        Void delete(Integer id) {
+            if (balance(id) != null) {
+                changes.add(WalletLedger.Change.delete(id));
+                balances.put(id, null);
+                lastChanges.remove(id);
+            }
+            return null;
+        }
+
+        Void clear() {
+            changes.add(WalletLedger.Change.clear());
+            balances.clear();
+            lastChanges.clear();
+            cleared = true;
+            return null;
+        }
+
+        /**
+         * Change not affecting balances
+         */
+        Void change(WalletLedger.Change change) {
+            changes.add(change);
+            return null;
+        }
+
+        void key(Integer id, UUID key) {
+            keys.add(key);
+            WalletLedger.Change last = lastChanges.remove(id);
+            if (last == null || !last.attachKey(key)) {
+                changes.add(WalletLedger.Change.key(id, key));
+            }
+        }
+
+        Void clearKeys() {
+            changes.add(WalletLedger.Change.clearKeys());
+            keys.clear();
+            keysCleared = true;
+            return null;
+        }
+
+        private void change(Integer id, WalletLedger.Change change, long balance) {
+            changes.add(change);
+            balances.put(id, balance);
+            lastChanges.put(id, change);
+        }
+
+        @Override
+        public void afterCommit() {
+            ledger.append(changes);
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResource(WalletRepository.this);
+        }
+    }
+
+    private LedgerTransaction boundLedgerTransaction() {
+        return (LedgerTransaction) TransactionSynchronizationManager.getResource(this);
+    }
+
+    private Long ledgerBalance(Integer id) {
+        LedgerTransaction transaction = boundLedgerTransaction();
+        return transaction != null ? transaction.balance(id) : ledger.balance(id);
+    }
+
+    /**
+     * Make changes in the ledger transaction of the current transaction, or append them at once outside of one.
+     */
+    private <T> T inLedgerTransaction(Function<LedgerTransaction, T> action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            LedgerTransaction transaction = new LedgerTransaction();
+            T result = action.apply(transaction);
+            ledger.append(transaction.changes);
+            return result;
+        }
+        LedgerTransaction transaction = boundLedgerTransaction();
+        if (transaction == null) {
+            transaction = new LedgerTransaction();
+            TransactionSynchronizationManager.bindResource(this, transaction);
+            TransactionSynchronizationManager.registerSynchronization(transaction);
+        }
+        return action.apply(transaction);
+    }
+}
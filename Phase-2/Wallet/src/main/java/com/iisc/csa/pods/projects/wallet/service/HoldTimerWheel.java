@@ -0,0 +1,164 @@
+/**
+ * Expiry scheduling of wallet holds used by the service module.
+ */
+package com.iisc.csa.pods.projects.wallet.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Hashed timer wheel firing the expiry of holds.<br/><br/>
+ *
+ * Time is divided into ticks of <i>wallet.holds.reaper.tick-ms</i>, and the wheel into
+ * <i>wallet.holds.reaper.wheel-size</i> buckets, a tick being served by bucket tick % wheel-size. A hold is added
+ * to the bucket of the first tick at or after its expiry, along with that tick, so that scheduling is constant time
+ * whatever the number of holds; holds expiring more than one turn of the wheel ahead stay in their bucket until
+ * their tick comes. A single thread advances the wheel one tick at a time and hands expired holds to the expiry
+ * action, catching up without sleeping when it falls behind.<br/><br/>
+ *
+ * Holds committed or released before their expiry are not removed from the wheel; the expiry action ignores holds
+ * no longer held. A failing expiry action is retried on the following tick.
+ */
+@Component
+public class HoldTimerWheel {
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${wallet.holds.reaper.tick-ms:100}")
+    private long tickMs;
+
+    @Value("${wallet.holds.reaper.wheel-size:512}")
+    private int wheelSize;
+
+    // Hold scheduled to expire at a tick
+    private static final class Timeout {
+        final Integer user_id;
+        final String hold_id;
+        final long tick;
+
+        Timeout(Integer user_id, String hold_id, long tick) {
+            this.user_id = user_id;
+            this.hold_id = hold_id;
+            this.tick = tick;
+        }
+    }
+
+    private List<List<Timeout>> buckets;
+    private int mask;
+    private long startMs;
+
+    // Guarded by this
+    private long currentTick;
+    private int size;
+
+    private volatile boolean running;
+    private Thread reaperThread;
+    private BiConsumer<Integer, String> expiryAction;
+
+    @PostConstruct
+    void init() {
+        int capacity = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        this.buckets = new ArrayList<>(capacity);
+        for (int bucket = 0; bucket < capacity; bucket++) {
+            this.buckets.add(new ArrayList<>());
+        }
+        this.mask = capacity - 1;
+        this.startMs = System.currentTimeMillis();
+        meterRegistry.gauge("wallet.holds.scheduled", this, HoldTimerWheel::size);
+    }
+
+    /**
+     * Start advancing the wheel.
+     *
+     * @param expiry_action action invoked with user_id and hold_id of each expired hold
+     */
+    public synchronized void start(BiConsumer<Integer, String> expiry_action) {
+        if (this.running) {
+            return;
+        }
+        this.expiryAction = expiry_action;
+        this.running = true;
+        this.reaperThread = new Thread(this::reaperLoop, "wallet-hold-reaper");
+        this.reaperThread.setDaemon(true);
+        this.reaperThread.start();
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            this.running = false;
+            thread = this.reaperThread;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    /**
+     * Schedule the expiry of a hold.
+     *
+     * @param expires_at time in epoch milliseconds at or after which the hold expires
+     */
+    public synchronized void schedule(Integer user_id, String hold_id, long expires_at) {
+        long tick = Math.max(this.currentTick + 1,
+                Math.floorDiv(expires_at - this.startMs + this.tickMs - 1, this.tickMs));
+        this.buckets.get((int) (tick & this.mask)).add(new Timeout(user_id, hold_id, tick));
+        this.size++;
+    }
+
+    /**
+     * @return number of holds scheduled and not yet expired
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    ////////////////////////////////////// Helper methods //////////////////////////////////////
+
+    private void reaperLoop() {
+        while (this.running) {
+            long wait = this.startMs + (this.currentTick + 1) * this.tickMs - System.currentTimeMillis();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            for (Timeout timeout : this.advance()) {
+                try {
+                    this.expiryAction.accept(timeout.user_id, timeout.hold_id);
+                } catch (RuntimeException e) {
+                    System.out.println("Expiry of hold "+timeout.hold_id+" failed with "+e+", retrying");
+                    this.schedule(timeout.user_id, timeout.hold_id, System.currentTimeMillis());
+                }
+            }
+        }
+    }
+
+    /**
+     * Move to the next tick and take the holds expiring at it out of its bucket.
+     */
+    private synchronized List<Timeout> advance() {
+        this.currentTick++;
+        int bucket = (int) (this.currentTick & this.mask);
+        List<Timeout> expired = new ArrayList<>();
+        List<Timeout> remaining = new ArrayList<>();
+        for (Timeout timeout : this.buckets.get(bucket)) {
+            (timeout.tick <= this.currentTick ? expired : remaining).add(timeout);
+        }
+        this.buckets.set(bucket, remaining);
+        this.size -= expired.size();
+        return expired;
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Near-cache of user ids validated against the User service.
+ */
+package com.iisc.csa.pods.projects.wallet.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * Bounded cache of user ids for which GET /users/{user_id} on the User service has succeeded.<br/><br/>
+ *
+ * Only successful validations are cached, so an unknown user is always checked against the User service.
+ * User service pushes no invalidation to Wallet service; a user is dropped from the cache when its wallet, or all
+ * wallets, are deleted on this instance. Entries otherwise expire after <i>user.cache.ttl-ms</i>, kept shorter than
+ * on Booking service, which bounds how long a deleted user stays valid on other instances. The least recently used
+ * entries are evicted beyond <i>user.cache.max-size</i>. Hit/miss/eviction counts are published as <i>cache.*</i>
+ * metrics with cache=validated-users.
+ */
+@Component
+public class UserValidationCache {
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${user.cache.max-size:10000}")
+    private long maxSize;
+
+    @Value("${user.cache.ttl-ms:10000}")
+    private long ttlMs;
+
+    private Cache<Integer, Boolean> validatedUsers;
+
+    @PostConstruct
+    void init() {
+        this.validatedUsers = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofMillis(ttlMs))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, validatedUsers, "validated-users");
+    }
+
+    /**
+     * @param user_id user id to be looked up
+     * @return true if user was validated within the TTL
+     */
+    public boolean isValidated(Integer user_id) {
+        return this.validatedUsers.getIfPresent(user_id) != null;
+    }
+
+    public void markValidated(Integer user_id) {
+        this.validatedUsers.put(user_id, Boolean.TRUE);
+    }
+
+    public void invalidate(Integer user_id) {
+        this.validatedUsers.invalidate(user_id);
+    }
+
+    public void invalidateAll() {
+        this.validatedUsers.invalidateAll();
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Striped locking layer used by the service module to serialize operations on a wallet.
+ */
+package com.iisc.csa.pods.projects.wallet.service;
+
+import com.iisc.csa.pods.projects.wallet.exception.LockAcquisitionException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Lock manager holding lock stripes keyed by user_id, replacing the service wide lock.<br/><br/>
+ *
+ * Operations on a wallet take the stripe of its user, so operations of a user are applied one at a time, in
+ * the order they get the stripe, while operations on wallets of other stripes proceed in parallel. Batches take
+ * the stripes of all their users.<br/><br/>
+ *
+ * Deadlock avoidance: stripes are always taken in ascending index order. Each acquisition waits at most
+ * <i>wallet.lock.timeout-ms</i>, after which already held stripes are released and LockAcquisitionException
+ * is thrown.
+ */
+@Component
+public class WalletLockManager {
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${wallet.lock.stripes:64}")
+    private int stripeCount;
+
+    @Value("${wallet.lock.timeout-ms:5000}")
+    private long timeoutMs;
+
+    // Lock stripes for user keys
+    private ReentrantLock[] userStripes;
+
+    // Contention metrics
+    private Counter acquisitions;
+    private Counter contended;
+    private Counter timeouts;
+    private Timer waitTimer;
+
+    @PostConstruct
+    void init() {
+        this.userStripes = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            this.userStripes[i] = new ReentrantLock();
+        }
+        this.acquisitions = meterRegistry.counter("wallet.lock.acquisitions");
+        this.contended = meterRegistry.counter("wallet.lock.contended");
+        this.timeouts = meterRegistry.counter("wallet.lock.timeouts");
+        this.waitTimer = meterRegistry.timer("wallet.lock.wait");
+        meterRegistry.gauge("wallet.lock.queued", this, WalletLockManager::queuedThreads);
+    }
+
+    ////////////////////////////////////// Locking methods //////////////////////////////////////
+
+    /**
+     * Run an action while holding the stripe of a user.
+     *
+     * @param user_id user whose wallet is operated on
+     * @param action action to be performed
+     * @return result of action
+     */
+    public <T> T withUserLock(Integer user_id, Supplier<T> action) {
+        return withLocks(List.of(userStripes[stripeOf(user_id)]), "user "+user_id, action);
+    }
+
+    /**
+     * Run an action while holding the stripes of several users.
+     *
+     * @param user_ids users whose wallets are operated on
+     * @param action action to be performed
+     * @return result of action
+     */
+    public <T> T withUserLocks(Collection<Integer> user_ids, Supplier<T> action) {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (Integer user_id : user_ids) {
+            stripes.add(stripeOf(user_id));
+        }
+        List<ReentrantLock> locks = new ArrayList<>();
+        for (Integer stripe : stripes) {
+            locks.add(userStripes[stripe]);
+        }
+        return withLocks(locks, user_ids.size()+" users", action);
+    }
+
+    /**
+     * Run an action while holding every stripe, used for deleting all wallets.
+     *
+     * @param action action to be performed
+     * @return result of action
+     */
+    public <T> T withAllLocks(Supplier<T> action) {
+        return withLocks(List.of(userStripes), "all users", action);
+    }
+
+    ////////////////////////////////////// Helper methods //////////////////////////////////////
+
+    private int stripeOf(Integer key) {
+        return Math.floorMod(key == null ? 0 : key.hashCode(), stripeCount);
+    }
+
+    private <T> T withLocks(List<ReentrantLock> locks, String resource, Supplier<T> action) {
+        List<ReentrantLock> held = new ArrayList<>(locks.size());
+        try {
+            for (ReentrantLock lock : locks) {
+                acquire(lock, resource);
+                held.add(lock);
+            }
+            return action.get();
+        } finally {
+            for (int i = held.size() - 1; i >= 0; i--) {
+                held.get(i).unlock();
+            }
+        }
+    }
+
+    private void acquire(ReentrantLock lock, String resource) {
+        acquisitions.increment();
+        if (lock.tryLock()) {
+            return;
+        }
+        contended.increment();
+        long start = System.nanoTime();
+        boolean locked;
+        try {
+            locked = lock.tryLock(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            locked = false;
+        }
+        waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (!locked) {
+            timeouts.increment();
+            throw new LockAcquisitionException(resource, timeoutMs);
+        }
+    }
+
+    private double queuedThreads() {
+        int queued = 0;
+        for (int i = 0; i < stripeCount; i++) {
+            queued += userStripes[i].getQueueLength();
+        }
+        return queued;
+    }
+}
@@ -4,25 +4,123 @@
  */
 package com.iisc.csa.pods.projects.wallet.service;
 
+import com.iisc.csa.pods.projects.wallet.exception.HoldNotFoundException;
+import com.iisc.csa.pods.projects.wallet.exception.HoldStateException;
 import com.iisc.csa.pods.projects.wallet.exception.UserValidationException;
 import com.iisc.csa.pods.projects.wallet.exception.WalletOperationException;
 import com.iisc.csa.pods.projects.wallet.model.Wallet;
+import com.iisc.csa.pods.projects.wallet.model.WalletBatchItem;
+import com.iisc.csa.pods.projects.wallet.model.WalletBatchPayload;
+import com.iisc.csa.pods.projects.wallet.model.WalletBatchResult;
+import com.iisc.csa.pods.projects.wallet.model.WalletHold;
+import com.iisc.csa.pods.projects.wallet.model.WalletHoldPayload;
+import com.iisc.csa.pods.projects.wallet.model.WalletOperationKey;
 import com.iisc.csa.pods.projects.wallet.model.WalletPutPayload;
+import com.iisc.csa.pods.projects.wallet.model.WalletTransaction;
 import com.iisc.csa.pods.projects.wallet.repository.WalletRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
 @Service
 @Transactional(isolation = Isolation.SERIALIZABLE)
 public class WalletService {
     @Autowired
     WalletRepository walletRepo;
 
+    // Shared pooled client for calls to User service
+    @Autowired
+    RestTemplate restTemplate;
+    @Autowired
+    UserValidationCache userValidationCache;
+
+    /**
+     * Striped locks per user replacing the service wide lock.<br/>
+     *
+     * Locks must be held until the database transaction commits, hence the locked methods are run outside of the
+     * class level transaction and open their own transaction through transactionTemplate once the locks are held.
+     * transactionTemplate keeps the SERIALIZABLE isolation of the class; as a wallet is only updated with the
+     * stripe of its user held, transactions on a wallet no longer overlap and do not fail on conflicts.
+     */
+    @Autowired
+    private WalletLockManager lockManager;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    private TransactionTemplate transactionTemplate;
+
+    // Idempotency keys older than this are dropped, after which a retried operation is applied again
+    @Value("${wallet.idempotency.retention-ms:86400000}")
+    private long idempotencyRetentionMs;
+
+    /**
+     * Pages of transaction history hold <i>wallet.transactions.page.default-limit</i> entries unless a limit is
+     * requested, and at most <i>wallet.transactions.page.max-limit</i> entries.
+     */
+    @Value("${wallet.transactions.page.default-limit:100}")
+    private int defaultPageLimit;
+
+    @Value("${wallet.transactions.page.max-limit:1000}")
+    private int maxPageLimit;
+
+    /**
+     * Holds last <i>wallet.holds.default-ttl-ms</i> unless a TTL is requested, and at most
+     * <i>wallet.holds.max-ttl-ms</i>; holds still held by then are released by holdTimerWheel.
+     */
+    @Value("${wallet.holds.default-ttl-ms:30000}")
+    private long defaultHoldTtlMs;
+
+    @Value("${wallet.holds.max-ttl-ms:600000}")
+    private long maxHoldTtlMs;
+
+    @Autowired
+    private HoldTimerWheel holdTimerWheel;
+
+    @PostConstruct
+    void init() {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_SERIALIZABLE);
+        this.holdTimerWheel.start(this::expireHold);
+    }
+
+    /**
+     * Release the holds still held on shutdown, with their release recorded in the transaction history. Holds are
+     * kept in the in-memory database, hence would otherwise be lost; after a crash, the ledger returns the amounts
+     * of holds not ended on recovery.
+     */
+    @PreDestroy
+    void close() {
+        List<WalletHold> holds = this.transactionTemplate.execute(status -> this.walletRepo.findHeldHolds());
+        for (WalletHold hold : holds) {
+            try {
+                this.lockManager.withUserLock(hold.getUser_id(), () -> this.transactionTemplate.execute(status ->
+                        this.finishHold(hold.getUser_id(), hold.getHold_id(), WalletHold.STATUS_RELEASED)));
+            } catch (RuntimeException e) {
+                System.out.println("Release of hold "+hold.getHold_id()+" on shutdown failed with "+e);
+            }
+        }
+        this.walletRepo.awaitDurable();
+    }
+
     ////////////////////////////////////// URI Management //////////////////////////////////////
     /**
      * Since each of the microservices that are part of this project have separate in-memory database entities,
@@ -49,61 +147,442 @@ public class WalletService {
         return walletRepo.findByUser_id(user_id);
     }
 
-    public synchronized Wallet transact(WalletPutPayload payload, Integer user_id){
+    /**
+     * Method to obtain a page of the transaction history of a wallet
+     * @param after seq after which the page starts; null for the first page
+     * @param from earliest time of entries in epoch milliseconds, inclusive; null for no bound
+     * @param to latest time of entries in epoch milliseconds, exclusive; null for no bound
+     * @param limit maximum number of entries; null for the default
+     * @return ledger entries by ascending seq
+     */
+    public List<WalletTransaction> getTransactions(Integer user_id, Long after, Long from, Long to, Integer limit) {
+        if (!walletRepo.existsByUser_id(user_id)) {
+            throw new UserValidationException(user_id);
+        }
+        return walletRepo.findTransactionsPage(user_id, after == null ? 0 : after, from == null ? 0 : from,
+                to == null ? Long.MAX_VALUE : to,
+                limit == null ? defaultPageLimit : Math.max(1, Math.min(limit, maxPageLimit)));
+    }
+
+    /**
+     * Apply a credit/debit operation to the wallet of a user, with the stripe of the user held.<br/><br/>
+     *
+     * A user without a wallet is checked with User service before the stripe is taken, so that other operations
+     * of the stripe do not wait on the remote call. The wallet is looked up through transactionTemplate as well, as
+     * reads at a lower isolation may leave a stale H2 snapshot on the pooled connection for later transactions.
+     * With the ledger enabled, the response waits for the operation to be durable once the stripe is released.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public Wallet transact(WalletPutPayload payload, Integer user_id){
+        Boolean exists = this.transactionTemplate.execute(status -> walletRepo.existsByUser_id(user_id));
+        if (!exists) {
+            validateUser(user_id);
+        }
+        Wallet wallet = this.lockManager.withUserLock(user_id, () -> this.transactionTemplate.execute(status ->
+                this.applyOperation(payload, user_id)));
+        this.walletRepo.awaitDurable();
+        return wallet;
+    }
+
+    /**
+     * Apply a list of credit/debit operations within a single transaction.<br/><br/>
+     *
+     * Operations are applied in order with the same conditional balance updates as single operations, so that
+     * balances changed concurrently outside of the stripes of this instance are not overwritten; ledger entries and
+     * idempotency keys are written with JDBC batches. In atomic mode a failing operation rolls back the transaction,
+     * discarding all operations of the batch; in best effort mode only the failing operation is skipped. Operations
+     * carrying an idempotency key that was already applied, in an earlier request or earlier in the batch, are
+     * reported as duplicates and not applied again.
+     *
+     * @param payload batch of operations along with mode
+     * @return per operation results, in the order of operations
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public List<WalletBatchResult> transactBatch(WalletBatchPayload payload) {
+        List<WalletBatchItem> operations = payload.getOperations() == null ? List.of() : payload.getOperations();
+        List<Integer> user_ids = operations.stream().map(WalletBatchItem::getUser_id).distinct().toList();
+        Set<Integer> invalid_users = this.validateUsersWithoutWallet(user_ids);
+        List<WalletBatchResult> results = this.lockManager.withUserLocks(user_ids, () ->
+                this.transactionTemplate.execute(status ->
+                        this.applyBatch(operations, user_ids, invalid_users, payload.isAtomicMode(), status)));
+        this.walletRepo.awaitDurable();
+        return results;
+    }
+
+    /**
+     * Reserve an amount of the wallet of a user, to be committed or released before the hold expires.<br/><br/>
+     *
+     * The amount is taken off the balance, provided the balance covers it, and the hold is scheduled for expiry
+     * once its transaction committed. A hold_id already used on the wallet returns that hold as is, so that a
+     * retried request reserves the amount once.
+     *
+     * @param payload amount, along with optional TTL and hold_id
+     * @return the hold
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public WalletHold reserve(Integer user_id, WalletHoldPayload payload) {
+        if (payload.getAmount() == null || payload.getAmount() <= 0) {
+            throw new WalletOperationException("hold", "Invalid amount "+payload.getAmount());
+        }
+        long ttl_ms = payload.getTtl_ms() == null ? defaultHoldTtlMs :
+                Math.max(1, Math.min(payload.getTtl_ms(), maxHoldTtlMs));
+        String hold_id = payload.getHold_id() == null ? UUID.randomUUID().toString() : payload.getHold_id();
+        WalletHold hold = this.lockManager.withUserLock(user_id, () -> this.transactionTemplate.execute(status ->
+                this.applyReserve(user_id, hold_id, payload.getAmount(), ttl_ms)));
+        this.walletRepo.awaitDurable();
+        if (hold.isHeld()) {
+            this.holdTimerWheel.schedule(user_id, hold_id, hold.getExpires_at());
+        }
+        return hold;
+    }
+
+    /**
+     * Commit a hold, keeping its amount spent. Committing a committed hold returns it as is.
+     *
+     * @throws HoldNotFoundException if the wallet has no such hold
+     * @throws HoldStateException if the hold was released or expired
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public WalletHold commitHold(Integer user_id, String hold_id) {
+        return this.lockManager.withUserLock(user_id, () -> this.transactionTemplate.execute(status ->
+                this.finishHold(user_id, hold_id, WalletHold.STATUS_COMMITTED)));
+    }
+
+    /**
+     * Release a hold, returning its amount to the balance. Releasing a released hold returns it as is.
+     *
+     * @throws HoldNotFoundException if the wallet has no such hold
+     * @throws HoldStateException if the hold was committed or expired
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public WalletHold releaseHold(Integer user_id, String hold_id) {
+        WalletHold hold = this.lockManager.withUserLock(user_id, () -> this.transactionTemplate.execute(status ->
+                this.finishHold(user_id, hold_id, WalletHold.STATUS_RELEASED)));
+        this.walletRepo.awaitDurable();
+        return hold;
+    }
+
+    /**
+     * Release a hold which reached its expiry, invoked by holdTimerWheel. Holds no longer held are left as is.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void expireHold(Integer user_id, String hold_id) {
+        this.lockManager.withUserLock(user_id, () -> this.transactionTemplate.execute(status -> {
+            WalletHold hold = this.walletRepo.findHold(hold_id);
+            if (hold == null || !hold.isHeld()) {
+                return null;
+            }
+            if (hold.getExpires_at() > System.currentTimeMillis()) {
+                this.holdTimerWheel.schedule(user_id, hold_id, hold.getExpires_at());
+                return null;
+            }
+            return this.finishHold(user_id, hold_id, WalletHold.STATUS_EXPIRED);
+        }));
+        this.walletRepo.awaitDurable();
+    }
+
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void deleteUser_id (Integer user_id) {
+        this.lockManager.withUserLock(user_id, () -> this.transactionTemplate.execute(status -> {
+            // Wallet deletion is issued by User service on user deletion, hence the user is no longer valid
+            this.userValidationCache.invalidate(user_id);
+            if (!this.walletRepo.existsByUser_id(user_id)){
+                throw new UserValidationException(user_id);
+            }
+            this.walletRepo.deleteByUser_id(user_id);
+            this.walletRepo.deleteTransactionsByUser_id(user_id);
+            this.walletRepo.deleteHoldsByUser_id(user_id);
+            return null;
+        }));
+        this.walletRepo.awaitDurable();
+    }
+
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void deleteAll () {
+        this.lockManager.withAllLocks(() -> this.transactionTemplate.execute(status -> {
+            this.walletRepo.deleteAll();
+            this.walletRepo.deleteAllTransactions();
+            this.walletRepo.deleteAllHolds();
+            this.walletRepo.deleteAllOperationKeys();
+            this.userValidationCache.invalidateAll();
+            return null;
+        }));
+        this.walletRepo.awaitDurable();
+    }
+
+    /**
+     * Periodically drop idempotency keys older than the retention period. No lock is needed, as operations only
+     * look up keys within the retention period.
+     */
+    @Scheduled(fixedDelayString = "${wallet.idempotency.purge-interval-ms:600000}")
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void purgeOperationKeys() {
+        this.transactionTemplate.execute(status ->
+                this.walletRepo.deleteOperationKeysBefore(System.currentTimeMillis() - idempotencyRetentionMs));
+    }
+
+    /**
+     * Periodically drop holds committed, released or expired before the idempotency retention period, after which
+     * a retried commit or release of the hold is reported as not found.
+     */
+    @Scheduled(fixedDelayString = "${wallet.idempotency.purge-interval-ms:600000}")
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void purgeFinishedHolds() {
+        this.transactionTemplate.execute(status ->
+                this.walletRepo.deleteFinishedHoldsBefore(System.currentTimeMillis() - idempotencyRetentionMs));
+    }
+
+    ////////////////////////////////////// Helper methods //////////////////////////////////////
+    /**
+     * Helper method applying a credit/debit operation, invoked with the stripe of the user held and within a
+     * transaction.
+     */
+    Wallet applyOperation(WalletPutPayload payload, Integer user_id) {
         //System.out.print("Wallet: transact( "+user_id+","+payload.getAmount()+","+payload.getAction()+")");
         /*
-         * Check if wallet exists or no; this may not be necessary but in case some other module or a direct API
-         * call comes, a sanity check is desirable.
+         * A retried operation which has already been applied is not applied again; the current balance is returned
          */
-        if (!walletRepo.existsByUser_id(user_id)) {
-            /*
-             * Check if the user_id is a valid one prior to creating wallet entry by RestAPI call to User service
-             */
-            try {
-                RestTemplate restTemplate = new RestTemplate();
-                String query_url = getUserCheckUri();
-                restTemplate.getForObject(query_url, String.class, user_id);
-            } catch (HttpClientErrorException e) {
-                if (e.getStatusCode().is4xxClientError()) {
-                    throw new UserValidationException(user_id);
+        String key = payload.getIdempotency_key();
+        if (key != null && !walletRepo.findOperationKeys(List.of(key)).isEmpty()) {
+            return getUser_id(user_id);
+        }
+
+        /*
+         * The balance is updated with a single statement, whose affected row tells whether the operation applied
+         */
+        Integer balance;
+        if (payload.isDebitAction()) {
+            /* Debit action, applied only if the balance covers the amount */
+            balance = this.walletRepo.debit(user_id, payload.getAmount());
+            if (balance == null) {
+                /* Insufficient Wallet balance case; a wallet to be created would start with a zero balance */
+                if (!walletRepo.existsByUser_id(user_id)) {
+                    validateUser(user_id);
                 }
-            }
-            /* Create wallet account and load the amount and continue with rest of the operation */
-            //System.out.println("transact: New wallet account creation ");
-            Wallet newWallet = new Wallet(user_id,0);
-            this.walletRepo.save(newWallet);
-        }
-
-        /* Fetch the wallet account details and process the transaction */
-        Wallet existingWallet = this.walletRepo.findByUser_id(user_id);
-        if (payload.isCreditAction()) {
-            /* A credit action, hence updating balance amount */
-            existingWallet.setBalance(existingWallet.getBalance() + payload.getAmount());
-        } else if (payload.isDebitAction()){
-            /* Debit action */
-            if (existingWallet.getBalance() < payload.getAmount()) {
-                /* Insufficient Wallet balance case */
                 throw new WalletOperationException("credit", "Insufficient Balance in Wallet for user_id"+user_id);
             }
-            /* Balance amount is sufficient, hence processing transaction */
-            existingWallet.setBalance(existingWallet.getBalance() - payload.getAmount());
+        } else {
+            /* A credit action, hence updating balance amount; any other action leaves the balance as is */
+            int amount = payload.isCreditAction() ? payload.getAmount() : 0;
+            balance = this.walletRepo.credit(user_id, amount);
+            if (balance == null) {
+                /*
+                 * No wallet yet: check if the user_id is a valid one prior to creating wallet entry; validated before
+                 * taking the lock, unless the wallet was deleted since
+                 */
+                validateUser(user_id);
+                balance = this.walletRepo.creditOrCreate(user_id, amount);
+            }
         }
 
-        /* Update record and return JSON payload with HTTP/OK status */
-        //System.out.println("transact: Updating existing wallet ");
-        this.walletRepo.save(existingWallet);
+        /* Record ledger entry and idempotency key, and return JSON payload with HTTP/OK status */
+        if (payload.isCreditAction() || payload.isDebitAction()) {
+            this.walletRepo.saveTransactions(List.of(new WalletTransaction(user_id, payload.getAction(),
+                    payload.getAmount(), balance, System.currentTimeMillis())));
+        }
+        if (key != null) {
+            this.walletRepo.saveOperationKeys(List.of(new WalletOperationKey(key, user_id, System.currentTimeMillis())));
+        }
         //System.out.println("Wallet: transact( "+user_id+","+payload.getAmount()+","+payload.getAction()+") complete");
-        return existingWallet;
+        return new Wallet(user_id, balance);
     }
 
-    public synchronized void deleteUser_id (Integer user_id) {
-        if (!this.walletRepo.existsByUser_id(user_id)){
-            throw new UserValidationException(user_id);
+    /**
+     * Helper method making a hold, invoked with the stripe of the user held and within a transaction.
+     */
+    WalletHold applyReserve(Integer user_id, String hold_id, Integer amount, long ttl_ms) {
+        WalletHold existing = this.walletRepo.findHold(hold_id);
+        if (existing != null) {
+            if (!existing.getUser_id().equals(user_id)) {
+                throw new HoldStateException(hold_id, "on another wallet");
+            }
+            return existing;
+        }
+
+        /* The amount is taken off the balance as a debit would, hence a wallet without enough balance fails */
+        Integer balance = this.walletRepo.debit(user_id, amount);
+        if (balance == null) {
+            throw new WalletOperationException("hold", "Insufficient Balance in Wallet for user_id"+user_id);
+        }
+        long now = System.currentTimeMillis();
+        WalletHold hold = new WalletHold(hold_id, user_id, amount, WalletHold.STATUS_HELD, now + ttl_ms, now);
+        this.walletRepo.saveHold(hold);
+        this.walletRepo.saveTransactions(List.of(new WalletTransaction(user_id, "hold", amount, balance, now)));
+        return hold;
+    }
+
+    /**
+     * Helper method moving a hold to a final status, invoked with the stripe of the user held and within a
+     * transaction. Amounts of holds not committed are returned to the balance.
+     */
+    WalletHold finishHold(Integer user_id, String hold_id, String final_status) {
+        WalletHold hold = this.walletRepo.findHold(hold_id);
+        if (hold == null || !hold.getUser_id().equals(user_id)) {
+            throw new HoldNotFoundException(hold_id);
+        }
+        if (!hold.isHeld()) {
+            if (hold.getStatus().equals(final_status)) {
+                return hold;
+            }
+            throw new HoldStateException(hold_id, hold.getStatus());
+        }
+
+        long now = System.currentTimeMillis();
+        Integer balance;
+        String action;
+        if (WalletHold.STATUS_COMMITTED.equals(final_status)) {
+            balance = this.walletRepo.findByUser_id(user_id).getBalance();
+            action = "commit";
+        } else {
+            balance = this.walletRepo.credit(user_id, hold.getAmount());
+            action = WalletHold.STATUS_EXPIRED.equals(final_status) ? "expire" : "release";
+        }
+        this.walletRepo.finishHold(hold_id, final_status, now);
+        this.walletRepo.saveTransactions(List.of(new WalletTransaction(user_id, action, hold.getAmount(), balance,
+                now)));
+        return new WalletHold(hold_id, user_id, hold.getAmount(), final_status, hold.getExpires_at(), now);
+    }
+
+    /**
+     * Helper method applying a batch of operations, invoked with the stripes of its users held and within a
+     * transaction.
+     *
+     * @param invalid_users users without a wallet which User service does not know
+     * @param status transaction of the batch, rolled back if an operation fails in atomic mode
+     */
+    List<WalletBatchResult> applyBatch(List<WalletBatchItem> operations, List<Integer> user_ids,
+                                       Set<Integer> invalid_users, boolean atomic_mode, TransactionStatus status) {
+        List<WalletBatchResult> results = new ArrayList<>();
+
+        /* Fetch balances of all the wallets involved with one query, reported for duplicate operations */
+        Map<Integer, Integer> balances = new HashMap<>();
+        if (!user_ids.isEmpty()) {
+            for (Wallet wallet : this.walletRepo.findAllByUser_id(user_ids)) {
+                balances.put(wallet.getUser_id(), wallet.getBalance());
+            }
+        }
+
+        /* Fetch idempotency keys of the batch which were already applied */
+        Set<String> applied_keys = new HashSet<>();
+        List<String> keys = operations.stream().map(WalletBatchItem::getIdempotency_key)
+                .filter(key -> key != null).distinct().toList();
+        if (!keys.isEmpty()) {
+            applied_keys.addAll(this.walletRepo.findOperationKeys(keys));
+        }
+
+        /*
+         * Apply operations in order, each with the single statement balance update of its action, so that the
+         * balance is changed relative to the stored one and a debit applies only if the stored balance covers it
+         */
+        List<WalletOperationKey> new_keys = new ArrayList<>();
+        List<WalletTransaction> transactions = new ArrayList<>();
+        boolean failed = false;
+        for (WalletBatchItem item : operations) {
+            WalletBatchResult result = new WalletBatchResult(item);
+            results.add(result);
+            if (item.getIdempotency_key() != null && applied_keys.contains(item.getIdempotency_key())) {
+                result.setStatus(WalletBatchResult.STATUS_DUPLICATE);
+                result.setBalance(balances.get(item.getUser_id()));
+                continue;
+            }
+            try {
+                if (item.getUser_id() == null || item.getAmount() == null
+                        || !(item.isCreditAction() || item.isDebitAction())) {
+                    throw new WalletOperationException("batch", "Malformed operation");
+                }
+                Integer balance = item.isCreditAction() ? this.walletRepo.credit(item.getUser_id(), item.getAmount())
+                        : this.walletRepo.debit(item.getUser_id(), item.getAmount());
+                if (balance == null) {
+                    /* No wallet, or not enough balance; validated before taking the locks */
+                    boolean has_wallet = this.walletRepo.existsByUser_id(item.getUser_id());
+                    if (!has_wallet && invalid_users.contains(item.getUser_id())) {
+                        throw new UserValidationException(item.getUser_id());
+                    }
+                    if (item.isDebitAction()) {
+                        throw new WalletOperationException("debit", "Insufficient Balance in Wallet for user_id"+
+                                item.getUser_id());
+                    }
+                    validateUser(item.getUser_id());
+                    balance = this.walletRepo.creditOrCreate(item.getUser_id(), item.getAmount());
+                }
+                balances.put(item.getUser_id(), balance);
+                result.setStatus(WalletBatchResult.STATUS_APPLIED);
+                result.setBalance(balance);
+                transactions.add(new WalletTransaction(item.getUser_id(), item.getAction(), item.getAmount(),
+                        balance, System.currentTimeMillis()));
+                if (item.getIdempotency_key() != null) {
+                    applied_keys.add(item.getIdempotency_key());
+                    new_keys.add(new WalletOperationKey(item.getIdempotency_key(), item.getUser_id(),
+                            System.currentTimeMillis()));
+                }
+            } catch (UserValidationException | WalletOperationException e) {
+                result.setStatus(WalletBatchResult.STATUS_FAILED);
+                result.setReason(e.getMessage());
+                failed = true;
+            }
+        }
+
+        /* In atomic mode, a single failure discards the whole batch */
+        if (failed && atomic_mode) {
+            status.setRollbackOnly();
+            for (WalletBatchResult result : results) {
+                if (result.isApplied()) {
+                    result.setStatus(WalletBatchResult.STATUS_ROLLED_BACK);
+                    result.setBalance(null);
+                }
+            }
+            return results;
         }
-        this.walletRepo.deleteByUser_id(user_id);
+        this.walletRepo.saveTransactions(transactions);
+        this.walletRepo.saveOperationKeys(new_keys);
+        return results;
     }
 
-    public synchronized void deleteAll () {
-        this.walletRepo.deleteAll();
+    /**
+     * Helper method checking the users of a batch which do not have a wallet yet, before locks are taken.
+     *
+     * @return users which User service does not know
+     */
+    Set<Integer> validateUsersWithoutWallet(List<Integer> user_ids) {
+        Set<Integer> invalid_users = new HashSet<>();
+        List<Integer> ids = user_ids.stream().filter(user_id -> user_id != null).toList();
+        if (ids.isEmpty()) {
+            return invalid_users;
+        }
+        Set<Integer> with_wallet = new HashSet<>();
+        for (Wallet wallet : this.transactionTemplate.execute(status -> this.walletRepo.findAllByUser_id(ids))) {
+            with_wallet.add(wallet.getUser_id());
+        }
+        for (Integer user_id : ids) {
+            if (!with_wallet.contains(user_id)) {
+                try {
+                    validateUser(user_id);
+                } catch (UserValidationException e) {
+                    invalid_users.add(user_id);
+                }
+            }
+        }
+        return invalid_users;
+    }
+
+    /**
+     * Check if the user_id is a valid one by RestAPI call to User service, unless it was validated recently.
+     *
+     * @param user_id user id to be validated
+     * @throws UserValidationException if User service does not know the user
+     */
+    void validateUser(Integer user_id) {
+        if (userValidationCache.isValidated(user_id)) {
+            return;
+        }
+        try {
+            String query_url = getUserCheckUri();
+            restTemplate.getForObject(query_url, String.class, user_id);
+            userValidationCache.markValidated(user_id);
+        } catch (HttpClientErrorException e) {
+            if (e.getStatusCode().is4xxClientError()) {
+                throw new UserValidationException(user_id);
+            }
+        }
     }
 }
@@ -0,0 +1,84 @@
+package com.iisc.csa.pods.projects.wallet.ledger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks IntLongMap against a HashMap, with keys drawn from a small range so that probe sequences collide and wrap
+ * around, and removals shift back the entries following them.
+ */
+class IntLongMapTests {
+
+	@Test
+	void findsEntriesAfterBackwardShiftDelete() {
+		// Keys sharing home slot 30 of the initial 32 slots, so that their probe sequence wraps around
+		IntLongMap map = new IntLongMap(16);
+		List<Integer> keys = new ArrayList<>();
+		for (int key = 0; keys.size() < 6; key++) {
+			int hash = ReflectionTestUtils.invokeMethod(IntLongMap.class, "hash", key);
+			if ((hash & 31) == 30) {
+				keys.add(key);
+				map.put(key, key);
+			}
+		}
+		assertTrue(map.remove(keys.get(0)));
+		assertTrue(map.remove(keys.get(3)));
+		assertFalse(map.remove(keys.get(3)));
+		for (int i = 0; i < keys.size(); i++) {
+			boolean present = i != 0 && i != 3;
+			assertEquals(present, map.containsKey(keys.get(i)));
+			assertEquals(present ? keys.get(i) : -1, map.get(keys.get(i), -1));
+		}
+		assertEquals(4, map.size());
+	}
+
+	@Test
+	void matchesHashMap() {
+		Random random = new Random(42);
+		IntLongMap map = new IntLongMap(16);
+		Map<Integer, Long> expected = new HashMap<>();
+		for (int step = 0; step < 100_000; step++) {
+			int key = random.nextInt(200) - 100;
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key) != null, map.remove(key));
+			} else {
+				long value = random.nextLong();
+				map.put(key, value);
+				expected.put(key, value);
+			}
+			if (step % 1000 == 0) {
+				assertSame(expected, map);
+			}
+		}
+		assertSame(expected, map);
+
+		map.clear();
+		assertEquals(0, map.size());
+		assertFalse(map.containsKey(expected.keySet().iterator().next()));
+	}
+
+	private static void assertSame(Map<Integer, Long> expected, IntLongMap map) {
+		assertEquals(expected.size(), map.size());
+		for (int key = -100; key < 100; key++) {
+			assertEquals(expected.containsKey(key), map.containsKey(key));
+			assertEquals(expected.getOrDefault(key, 0L), map.get(key, 0));
+		}
+
+		int[] keys = new int[map.size()];
+		long[] values = new long[map.size()];
+		map.copyTo(keys, values);
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(expected.get(keys[i]), values[i]);
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package com.iisc.csa.pods.projects.wallet.ledger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Writes a ledger in a temporary directory, damages its files as a crash would, and checks what a new ledger
+ * recovers from them. A crash is simulated by abandoning a ledger without closing it, so that no snapshot is
+ * written on the way out.
+ */
+class WalletLedgerTests {
+
+	@TempDir
+	Path directory;
+
+	private final List<WalletLedger> ledgers = new ArrayList<>();
+
+	@AfterEach
+	void closeLedgers() throws InterruptedException {
+		ledgers.get(ledgers.size() - 1).close();
+	}
+
+	@Test
+	void recoversBalancesAndKeysFromJournal() throws IOException {
+		WalletLedger ledger = open(1024);
+		ledger.append(List.of(keyed(WalletLedger.Change.credit(1, 100, 100), "op-1")));
+		ledger.append(List.of(WalletLedger.Change.credit(2, 50, 50), WalletLedger.Change.debit(1, 30, 70),
+				WalletLedger.Change.key(2, WalletLedger.keyOf("op-2"))));
+		ledger.append(List.of(WalletLedger.Change.delete(2)));
+
+		ledger = open(1024);
+		assertEquals(70L, ledger.balance(1));
+		assertNull(ledger.balance(2));
+		assertTrue(ledger.hasKey(WalletLedger.keyOf("op-1")));
+		assertTrue(ledger.hasKey(WalletLedger.keyOf("op-2")));
+		assertFalse(ledger.hasKey(WalletLedger.keyOf("op-3")));
+	}
+
+	@Test
+	void stopsAtRecordWithBadCrc() throws IOException {
+		WalletLedger ledger = open(1024);
+		ledger.append(List.of(WalletLedger.Change.credit(1, 100, 100)));
+		ledger.append(List.of(WalletLedger.Change.credit(1, 10, 110)));
+		ledger.append(List.of(WalletLedger.Change.credit(1, 10, 120)));
+
+		// Flip a bit of the balance of record 2; record 3 is intact but must not be replayed past the gap
+		corrupt(segment(1), WalletLedger.RECORD_SIZE + 16);
+
+		ledger = open(1024);
+		assertEquals(100L, ledger.balance(1));
+
+		ledger.append(List.of(WalletLedger.Change.credit(1, 1, 101)));
+		ledger = open(1024);
+		assertEquals(101L, ledger.balance(1));
+	}
+
+	@Test
+	void discardsTransactionWithTornRecord() throws IOException {
+		WalletLedger ledger = open(1024);
+		ledger.append(List.of(WalletLedger.Change.credit(1, 100, 100)));
+		ledger.append(List.of(keyed(WalletLedger.Change.debit(1, 40, 60), "op-1"),
+				WalletLedger.Change.credit(2, 20, 20), WalletLedger.Change.credit(3, 20, 20)));
+
+		// Record 3 of the transfer is torn, so none of its records is applied
+		truncateRecord(segment(1), 2);
+
+		ledger = open(1024);
+		assertEquals(100L, ledger.balance(1));
+		assertNull(ledger.balance(2));
+		assertNull(ledger.balance(3));
+		assertFalse(ledger.hasKey(WalletLedger.keyOf("op-1")));
+
+		// Records 2 and 3 are written again; the last record of the discarded transfer was zeroed, so it is not
+		// replayed after them
+		ledger.append(List.of(WalletLedger.Change.credit(4, 5, 5), WalletLedger.Change.credit(5, 5, 5)));
+		ledger = open(1024);
+		assertEquals(100L, ledger.balance(1));
+		assertNull(ledger.balance(3));
+		assertEquals(5L, ledger.balance(4));
+		assertEquals(5L, ledger.balance(5));
+	}
+
+	@Test
+	void rollsSegments() throws IOException {
+		WalletLedger ledger = open(4 * WalletLedger.RECORD_SIZE);
+		for (int i = 1; i <= 5; i++) {
+			ledger.append(List.of(WalletLedger.Change.credit(i, i, i)));
+		}
+		// Transaction spanning segments 5 and 9
+		ledger.append(List.of(WalletLedger.Change.credit(1, 10, 11), WalletLedger.Change.credit(2, 10, 12),
+				WalletLedger.Change.credit(3, 10, 13), WalletLedger.Change.credit(4, 10, 14)));
+		assertEquals(List.of("journal-00000000000000000001.log", "journal-00000000000000000005.log",
+				"journal-00000000000000000009.log"), segmentNames());
+
+		ledger = open(4 * WalletLedger.RECORD_SIZE);
+		assertEquals(11L, ledger.balance(1));
+		assertEquals(14L, ledger.balance(4));
+		assertEquals(5L, ledger.balance(5));
+	}
+
+	@Test
+	void deletesSegmentsPastEndOfJournal() throws IOException {
+		WalletLedger ledger = open(4 * WalletLedger.RECORD_SIZE);
+		for (int i = 1; i <= 10; i++) {
+			ledger.append(List.of(WalletLedger.Change.credit(1, 1, i)));
+		}
+		truncateRecord(segment(1), 2);
+
+		ledger = open(4 * WalletLedger.RECORD_SIZE);
+		assertEquals(2L, ledger.balance(1));
+		assertEquals(List.of("journal-00000000000000000001.log"), segmentNames());
+
+		// Records 3 to 5 roll into a new segment 5, rather than onto the stale records 5 to 8
+		for (int i = 1; i <= 3; i++) {
+			ledger.append(List.of(WalletLedger.Change.credit(2, 1, i)));
+		}
+		ledger = open(4 * WalletLedger.RECORD_SIZE);
+		assertEquals(2L, ledger.balance(1));
+		assertEquals(3L, ledger.balance(2));
+	}
+
+	@Test
+	void replaysJournalAfterSnapshot() throws IOException {
+		WalletLedger ledger = open(1024);
+		ledger.append(List.of(keyed(WalletLedger.Change.credit(1, 100, 100), "op-1")));
+		ledger.append(List.of(WalletLedger.Change.credit(2, 20, 20)));
+		ledger.snapshot();
+		ledger.append(List.of(keyed(WalletLedger.Change.debit(1, 30, 70), "op-2")));
+
+		// Records covered by the snapshot are not read again
+		corrupt(segment(1), 16);
+
+		ledger = open(1024);
+		assertEquals(70L, ledger.balance(1));
+		assertEquals(20L, ledger.balance(2));
+		assertTrue(ledger.hasKey(WalletLedger.keyOf("op-1")));
+		assertTrue(ledger.hasKey(WalletLedger.keyOf("op-2")));
+
+		assertEquals(2, ledger.purgeKeysBefore(Long.MAX_VALUE));
+		assertFalse(ledger.hasKey(WalletLedger.keyOf("op-1")));
+	}
+
+	@Test
+	void returnsHoldsNotEndedOnRecovery() throws IOException {
+		WalletLedger ledger = open(1024);
+		ledger.append(List.of(WalletLedger.Change.credit(1, 100, 100)));
+		ledger.append(List.of(WalletLedger.Change.debit(1, 30, 70),
+				WalletLedger.Change.hold(1, 30, WalletLedger.keyOf("hold-1"))));
+		ledger.append(List.of(WalletLedger.Change.debit(1, 20, 50),
+				WalletLedger.Change.hold(1, 20, WalletLedger.keyOf("hold-2"))));
+		ledger.snapshot();
+		ledger.append(List.of(WalletLedger.Change.debit(1, 10, 40),
+				WalletLedger.Change.hold(1, 10, WalletLedger.keyOf("hold-3"))));
+		// hold-1 is committed, hold-2 is released
+		ledger.append(List.of(WalletLedger.Change.endHold(1, WalletLedger.keyOf("hold-1"))));
+		ledger.append(List.of(WalletLedger.Change.credit(1, 20, 60),
+				WalletLedger.Change.endHold(1, WalletLedger.keyOf("hold-2"))));
+
+		// hold-3, journaled after the snapshot, is returned
+		ledger = open(1024);
+		assertEquals(70L, ledger.balance(1));
+
+		// and only once
+		ledger = open(1024);
+		assertEquals(70L, ledger.balance(1));
+	}
+
+	////////////////////////////////////// Helper methods //////////////////////////////////////
+
+	private WalletLedger open(int segment_bytes) throws IOException {
+		WalletLedger ledger = new WalletLedger();
+		ReflectionTestUtils.setField(ledger, "enabled", true);
+		ReflectionTestUtils.setField(ledger, "dir", directory.toString());
+		ReflectionTestUtils.setField(ledger, "segmentBytes", segment_bytes);
+		ReflectionTestUtils.setField(ledger, "snapshotsKept", 2);
+		ledger.init();
+		ledgers.add(ledger);
+		return ledger;
+	}
+
+	private static WalletLedger.Change keyed(WalletLedger.Change change, String idempotency_key) {
+		change.attachKey(WalletLedger.keyOf(idempotency_key));
+		return change;
+	}
+
+	private Path segment(long first_seq) {
+		return directory.resolve(String.format("journal-%020d.log", first_seq));
+	}
+
+	private List<String> segmentNames() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.map(file -> file.getFileName().toString())
+					.filter(name -> name.startsWith("journal-"))
+					.sorted()
+					.toList();
+		}
+	}
+
+	private static void corrupt(Path file, long offset) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer value = ByteBuffer.allocate(1);
+			channel.read(value, offset);
+			value.put(0, (byte) (value.get(0) ^ 1));
+			channel.write(value.rewind(), offset);
+		}
+	}
+
+	/**
+	 * Zero the second half of a record, as a write cut short by a crash leaves it.
+	 */
+	private static void truncateRecord(Path file, long index) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			int half = WalletLedger.RECORD_SIZE / 2;
+			channel.write(ByteBuffer.allocate(half), index * WalletLedger.RECORD_SIZE + half);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package com.iisc.csa.pods.projects.wallet.service;
+
+import com.iisc.csa.pods.projects.wallet.model.WalletBatchItem;
+import com.iisc.csa.pods.projects.wallet.model.WalletBatchPayload;
+import com.iisc.csa.pods.projects.wallet.model.WalletBatchResult;
+import com.iisc.csa.pods.projects.wallet.repository.WalletRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+/**
+ * Checks PUT /wallets/batch at the service layer: atomic batches apply all of their operations or none, best effort
+ * batches skip only failing operations, and balance changes made outside of the stripes of the service, as by
+ * another instance sharing the database, are not overwritten by a batch. User service is replaced by a mock
+ * accepting every user.
+ */
+@SpringBootTest
+class WalletBatchTests {
+
+	private static final int USER = 1;
+	private static final int OTHER_USER = 2;
+
+	@Autowired
+	private WalletService walletService;
+	@Autowired
+	private WalletRepository walletRepo;
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+	@MockBean
+	private RestTemplate restTemplate;
+	@Value("${wallet.ledger.enabled:false}")
+	private boolean ledgerEnabled;
+
+	@BeforeEach
+	void reset() {
+		walletService.deleteAll();
+		walletService.transactBatch(batch("atomic", credit(USER, 100), credit(OTHER_USER, 100)));
+	}
+
+	@Test
+	void atomicBatchWithFailingOperationAppliesNothing() {
+		List<WalletBatchResult> results = walletService.transactBatch(batch("atomic",
+				credit(OTHER_USER, 50), debit(USER, 60), debit(USER, 60)));
+
+		assertEquals(WalletBatchResult.STATUS_ROLLED_BACK, results.get(0).getStatus());
+		assertEquals(WalletBatchResult.STATUS_ROLLED_BACK, results.get(1).getStatus());
+		assertEquals(WalletBatchResult.STATUS_FAILED, results.get(2).getStatus());
+		assertNull(results.get(0).getBalance());
+		assertEquals(100, balance(USER));
+		assertEquals(100, balance(OTHER_USER));
+	}
+
+	@Test
+	void atomicBatchDoesNotRecordIdempotencyKeysOfRolledBackOperations() {
+		WalletBatchItem keyed = credit(OTHER_USER, 50);
+		keyed.setIdempotency_key("rolled-back-credit");
+		walletService.transactBatch(batch("atomic", keyed, debit(USER, 500)));
+
+		List<WalletBatchResult> results = walletService.transactBatch(batch("atomic", keyed));
+		assertEquals(WalletBatchResult.STATUS_APPLIED, results.get(0).getStatus());
+		assertEquals(150, balance(OTHER_USER));
+	}
+
+	@Test
+	void bestEffortBatchSkipsOnlyFailingOperations() {
+		List<WalletBatchResult> results = walletService.transactBatch(batch("best_effort",
+				credit(OTHER_USER, 50), debit(USER, 60), debit(USER, 60)));
+
+		assertEquals(WalletBatchResult.STATUS_APPLIED, results.get(0).getStatus());
+		assertEquals(WalletBatchResult.STATUS_APPLIED, results.get(1).getStatus());
+		assertEquals(WalletBatchResult.STATUS_FAILED, results.get(2).getStatus());
+		assertEquals(40, results.get(1).getBalance());
+		assertEquals(40, balance(USER));
+		assertEquals(150, balance(OTHER_USER));
+	}
+
+	@Test
+	void batchDoesNotOverwriteConcurrentBalanceChanges() throws Exception {
+		// The ledger relies on wallets being changed only with the stripe of their user held
+		assumeFalse(ledgerEnabled);
+		int rounds = 100;
+		TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int thread = 0; thread < 2; thread++) {
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < rounds; i++) {
+						retryOnLockConflict(() -> walletService.transactBatch(batch("atomic",
+								credit(USER, 1), debit(USER, 1), credit(USER, 1))));
+					}
+				}));
+				// Credits made without the stripe of the user, as another instance of the service would
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < rounds; i++) {
+						retryOnLockConflict(() -> transactionTemplate.execute(status -> walletRepo.credit(USER, 1)));
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(100 + 4 * rounds, balance(USER));
+	}
+
+	////////////////////////////////////// Helper methods //////////////////////////////////////
+
+	private int balance(int user_id) {
+		return walletRepo.findByUser_id(user_id).getBalance();
+	}
+
+	/**
+	 * H2 may report a deadlock between transactions updating the same row and rolls one of them back as a whole;
+	 * such a transaction applied nothing and is run again.
+	 */
+	private static void retryOnLockConflict(Runnable transaction) {
+		while (true) {
+			try {
+				transaction.run();
+				return;
+			} catch (CannotAcquireLockException e) {
+				Thread.yield();
+			}
+		}
+	}
+
+	private static WalletBatchPayload batch(String mode, WalletBatchItem... operations) {
+		WalletBatchPayload payload = new WalletBatchPayload();
+		payload.setMode(mode);
+		payload.setOperations(List.of(operations));
+		return payload;
+	}
+
+	private static WalletBatchItem credit(int user_id, int amount) {
+		return item(user_id, "credit", amount);
+	}
+
+	private static WalletBatchItem debit(int user_id, int amount) {
+		return item(user_id, "debit", amount);
+	}
+
+	private static WalletBatchItem item(int user_id, String action, int amount) {
+		WalletBatchItem item = new WalletBatchItem();
+		item.setUser_id(user_id);
+		item.setAction(action);
+		item.setAmount(amount);
+		return item;
+	}
+}
@@ -0,0 +1,96 @@
+"""
+Throughput benchmark for comparing platform and virtual thread request handling.
+
+Each client repeatedly runs a user lifecycle which exercises the remote calls between services:
+    POST /users, PUT /wallets/{id}, POST /bookings, DELETE /bookings/users/{id}, DELETE /users/{id}
+
+Start the services with VIRTUAL_THREADS_ENABLED=false, run the benchmark, then restart them with
+VIRTUAL_THREADS_ENABLED=true (requires Java 21 or later) and run it again with a different label:
+
+    python3 benchmark_threads.py --clients 1000 --duration 60 --label platform
+    python3 benchmark_threads.py --clients 1000 --duration 60 --label virtual
+"""
+import argparse
+import threading
+import time
+from concurrent.futures import ThreadPoolExecutor
+
+import requests
+from requests.adapters import HTTPAdapter
+
+userServiceURL = "http://localhost:8080"
+bookingServiceURL = "http://localhost:8081"
+walletServiceURL = "http://localhost:8082"
+
+class Stats:
+    def __init__(self):
+        self.lock = threading.Lock()
+        self.latencies = {}
+        self.errors = {}
+
+    def record(self, name, latency, ok):
+        with self.lock:
+            self.latencies.setdefault(name, []).append(latency)
+            if not ok:
+                self.errors[name] = self.errors.get(name, 0) + 1
+
+def percentile(values, p):
+    values = sorted(values)
+    return values[min(len(values) - 1, int(len(values) * p / 100))]
+
+def timed(stats, name, call, expected):
+    start = time.perf_counter()
+    try:
+        response = call()
+        ok = response.status_code in expected
+    except requests.RequestException:
+        response, ok = None, False
+    stats.record(name, time.perf_counter() - start, ok)
+    return response if ok else None
+
+def client(client_id, session, stats, deadline, shows):
+    show_id = shows[client_id % len(shows)]
+    while time.time() < deadline:
+        response = timed(stats, "POST /users", lambda: session.post(userServiceURL + "/users",
+                         json={"name": f"bench-{client_id}", "email": f"bench-{client_id}-{time.time_ns()}@bench"}), [201])
+        if response is None:
+            continue
+        user_id = response.json()["id"]
+        timed(stats, "PUT /wallets/{id}", lambda: session.put(f"{walletServiceURL}/wallets/{user_id}",
+              json={"action": "credit", "amount": 1000000}), [200])
+        timed(stats, "POST /bookings", lambda: session.post(bookingServiceURL + "/bookings",
+              json={"show_id": show_id, "user_id": user_id, "seats_booked": 1}), [200])
+        timed(stats, "DELETE /bookings/users/{id}", lambda: session.delete(
+              f"{bookingServiceURL}/bookings/users/{user_id}"), [200, 404])
+        timed(stats, "DELETE /users/{id}", lambda: session.delete(f"{userServiceURL}/users/{user_id}"), [200])
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument("--clients", type=int, default=1000, help="number of concurrent clients")
+    parser.add_argument("--duration", type=int, default=60, help="duration of the run in seconds")
+    parser.add_argument("--label", default="run", help="label printed along with the results")
+    args = parser.parse_args()
+
+    shows = [show["id"] for theatre in requests.get(bookingServiceURL + "/theatres").json()
+             for show in requests.get(f"{bookingServiceURL}/shows/theatres/{theatre['id']}").json()]
+    session = requests.Session()
+    adapter = HTTPAdapter(pool_connections=4, pool_maxsize=args.clients)
+    session.mount("http://", adapter)
+
+    stats = Stats()
+    start = time.time()
+    deadline = start + args.duration
+    with ThreadPoolExecutor(max_workers=args.clients) as executor:
+        for client_id in range(args.clients):
+            executor.submit(client, client_id, session, stats, deadline, shows)
+    elapsed = time.time() - start
+
+    total = sum(len(values) for values in stats.latencies.values())
+    print(f"[{args.label}] clients={args.clients} duration={elapsed:.1f}s requests={total} "
+          f"throughput={total / elapsed:.1f} req/s errors={sum(stats.errors.values())}")
+    for name, values in stats.latencies.items():
+        print(f"  {name:30s} count={len(values):8d} errors={stats.errors.get(name, 0):6d} "
+              f"p50={percentile(values, 50) * 1000:8.1f}ms p99={percentile(values, 99) * 1000:8.1f}ms")
+
+if __name__ == "__main__":
+    main()
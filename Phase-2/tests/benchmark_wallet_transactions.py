@@ -0,0 +1,122 @@
+"""
+Benchmark of the wallet transaction history at a large number of rows.
+
+Creates a number of users, populates their transaction history with credit operations sent through
+PUT /wallets/batch, then measures the latency of GET /wallets/{id}/transactions for:
+    - the first page of a history
+    - deep pages, starting after a seq taken at random from the whole history (keyset paging)
+    - pages restricted to a time range, taken at random within the population run
+
+    python3 benchmark_wallet_transactions.py --users 100 --rows 2000000 --requests 2000
+    python3 benchmark_wallet_transactions.py --users 100 --skip-populate --requests 2000
+"""
+import argparse
+import random
+import time
+from concurrent.futures import ThreadPoolExecutor
+
+import requests
+from requests.adapters import HTTPAdapter
+
+userServiceURL = "http://localhost:8080"
+walletServiceURL = "http://localhost:8082"
+
+def percentile(values, p):
+    values = sorted(values)
+    return values[min(len(values) - 1, int(len(values) * p / 100))]
+
+def create_users(session, count):
+    user_ids = []
+    for index in range(count):
+        response = session.post(userServiceURL + "/users",
+                                json={"name": f"ledger-{index}", "email": f"ledger-{index}-{time.time_ns()}@bench"})
+        response.raise_for_status()
+        user_ids.append(response.json()["id"])
+    return user_ids
+
+def populate(session, user_ids, rows, batch_size, clients):
+    """Send rows credit operations in batches, spread evenly over the users; returns the elapsed time."""
+    def send(batch_index):
+        operations = [{"user_id": user_ids[(batch_index * batch_size + i) % len(user_ids)], "action": "credit",
+                       "amount": 1} for i in range(min(batch_size, rows - batch_index * batch_size))]
+        response = session.put(walletServiceURL + "/wallets/batch",
+                               json={"mode": "best_effort", "operations": operations})
+        response.raise_for_status()
+
+    start = time.time()
+    batches = (rows + batch_size - 1) // batch_size
+    with ThreadPoolExecutor(max_workers=clients) as executor:
+        for done, _ in enumerate(executor.map(send, range(batches)), 1):
+            if done % 100 == 0 or done == batches:
+                print(f"  populated {min(done * batch_size, rows)}/{rows} rows "
+                      f"({min(done * batch_size, rows) / (time.time() - start):.0f} rows/s)")
+    return time.time() - start
+
+def history(session, user_id):
+    """Seq and created_at of all the entries of a user, walking the pages by Link header."""
+    entries = []
+    url = f"{walletServiceURL}/wallets/{user_id}/transactions?limit=1000"
+    while url:
+        response = session.get(url)
+        response.raise_for_status()
+        entries.extend((entry["seq"], entry["created_at"]) for entry in response.json())
+        url = response.links.get("next", {}).get("url")
+    return entries
+
+def measure(session, name, urls, clients):
+    def get(url):
+        start = time.perf_counter()
+        response = session.get(url)
+        return time.perf_counter() - start, response.status_code == 200
+
+    with ThreadPoolExecutor(max_workers=clients) as executor:
+        results = list(executor.map(get, urls))
+    latencies = [latency for latency, _ in results]
+    errors = sum(1 for _, ok in results if not ok)
+    print(f"  {name:30s} count={len(latencies):8d} errors={errors:6d} "
+          f"p50={percentile(latencies, 50) * 1000:8.1f}ms p99={percentile(latencies, 99) * 1000:8.1f}ms")
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument("--users", type=int, default=100, help="number of users sharing the history")
+    parser.add_argument("--rows", type=int, default=1000000, help="number of transaction rows to populate")
+    parser.add_argument("--batch-size", type=int, default=1000, help="operations per PUT /wallets/batch")
+    parser.add_argument("--clients", type=int, default=8, help="number of concurrent clients")
+    parser.add_argument("--requests", type=int, default=1000, help="requests measured per query type")
+    parser.add_argument("--limit", type=int, default=100, help="page size of measured requests")
+    parser.add_argument("--skip-populate", action="store_true", help="reuse the wallets of the first --users users")
+    args = parser.parse_args()
+
+    session = requests.Session()
+    session.mount("http://", HTTPAdapter(pool_connections=4, pool_maxsize=args.clients))
+
+    if args.skip_populate:
+        user_ids = [user["id"] for user in requests.get(userServiceURL + "/users").json()[:args.users]]
+    else:
+        user_ids = create_users(session, args.users)
+        elapsed = populate(session, user_ids, args.rows, args.batch_size, args.clients)
+        print(f"populated rows={args.rows} in {elapsed:.1f}s ({args.rows / elapsed:.0f} rows/s)")
+
+    sample = history(session, user_ids[0])
+    print(f"history of user {user_ids[0]}: {len(sample)} entries")
+    if not sample:
+        return
+    seqs = [seq for seq, _ in sample]
+    times = sorted(created_at for _, created_at in sample)
+
+    def page(user_id, query):
+        return f"{walletServiceURL}/wallets/{user_id}/transactions?limit={args.limit}{query}"
+
+    first = [page(random.choice(user_ids), "") for _ in range(args.requests)]
+    deep = [page(user_ids[0], f"&after={random.choice(seqs)}") for _ in range(args.requests)]
+    ranged = []
+    for _ in range(args.requests):
+        start = random.choice(times)
+        ranged.append(page(user_ids[0], f"&from={start}&to={start + 1000}"))
+
+    measure(session, "first page", first, args.clients)
+    measure(session, "deep page (after=seq)", deep, args.clients)
+    measure(session, "time range (from/to 1s)", ranged, args.clients)
+
+if __name__ == "__main__":
+    main()